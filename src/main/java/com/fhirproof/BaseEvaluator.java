@@ -1,6 +1,7 @@
 package com.fhirproof;
 
 import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.Base;
 
 import java.util.HashMap;
@@ -31,6 +32,20 @@ public abstract class BaseEvaluator implements ISearchEvaluator {
      */
     @Override
     public boolean evaluate(List<Base> bases, List<String> ands, List<String> ors) throws Exception {
+        return evaluate(bases, ands, ors, null);
+    }
+
+    /**
+     * Evaluates the search condition
+     * @param bases Base object to evaluate against
+     * @param ands List of 'and' conditions
+     * @param ors List of 'or' conditions
+     * @param modifier Search parameter modifier (e.g. exact), or <tt>null</tt> if there is none
+     * @return True of the Base object satisfies the conditions
+     * @throws Exception Indicating the underlying failure
+     */
+    @Override
+    public boolean evaluate(List<Base> bases, List<String> ands, List<String> ors, String modifier) throws Exception {
 
         if (bases.size() == 0) {
             // if the path engine returned no elements then this is not a match
@@ -48,7 +63,7 @@ public abstract class BaseEvaluator implements ISearchEvaluator {
             for (Base base : bases) {
                 List<String> comparisonValues = getComparisonValues(base);
 
-                if (comparisonValues.stream().anyMatch(v -> compare(and, v))) {
+                if (comparisonValues.stream().anyMatch(v -> compare(and, v, modifier))) {
                     andMap.replace(and, true);
                 }
             }
@@ -61,7 +76,7 @@ public abstract class BaseEvaluator implements ISearchEvaluator {
             for (Base base : bases) {
                 List<String> comparisonValues = getComparisonValues(base);
 
-                if (comparisonValues.stream().anyMatch(v -> compare(or, v))) {
+                if (comparisonValues.stream().anyMatch(v -> compare(or, v, modifier))) {
                     orMap.replace(or, true);
                 }
             }
@@ -97,4 +112,20 @@ public abstract class BaseEvaluator implements ISearchEvaluator {
      */
     // execute the type specific comparison logic
     protected abstract boolean compare(String param, String query);
+
+    /**
+     * Executes the search type specific comparison logic for a parameter given with a modifier. Evaluators that
+     * support modifiers override this, the default rejects them.
+     * @param param Individual query parameter
+     * @param query Value to evaluate
+     * @param modifier Search parameter modifier (e.g. exact), or <tt>null</tt> if there is none
+     * @return True if the value satisfies the condition
+     */
+    protected boolean compare(String param, String query, String modifier) {
+        if (modifier != null) {
+            throw new FHIRException(
+                    String.format("Modifier ':%s' is not supported for '%s' searches", modifier, getParameterType()));
+        }
+        return compare(param, query);
+    }
 }
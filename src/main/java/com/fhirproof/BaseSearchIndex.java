@@ -0,0 +1,133 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The base class for the FHIR search indexes. An index holds the ids of the resources of a single type keyed by
+ * the values of a single search parameter, and answers the same 'and'/'or' conditions as the matching
+ * {@link BaseEvaluator} without visiting every resource.
+ */
+public abstract class BaseSearchIndex implements ISearchIndex {
+
+    protected final IPathAccessor accessor;
+    private final boolean exact;
+
+    /**
+     * Constructs an empty index whose matches need no further evaluation
+     * @param accessor Accessor for the search parameter path the index is built from
+     */
+    public BaseSearchIndex(IPathAccessor accessor) {
+        this(accessor, true);
+    }
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the values the index is built from
+     * @param exact False if the accessor selects more values than the search parameter path does, in which case
+     *              the matches of the index are only candidates that still need to be evaluated
+     */
+    public BaseSearchIndex(IPathAccessor accessor, boolean exact) {
+        this.accessor = accessor;
+        this.exact = exact;
+    }
+
+    /**
+     * Adds a resource to the index.
+     * @param id ID of the resource
+     * @param resource The resource to index
+     * @throws Exception Indicating the values of the resource could not be indexed
+     */
+    @Override
+    public void add(String id, Base resource) throws Exception {
+        List<Base> values = accessor.evaluate(resource);
+        if (!values.isEmpty()) {
+            index(id, values);
+        }
+    }
+
+    /**
+     * Finds the resources that satisfy the search conditions.
+     * @param ands List of 'and' conditions
+     * @param ors List of 'or' conditions
+     * @param modifier Search parameter modifier (e.g. exact), or <tt>null</tt> if there is none
+     * @return The IDs of the matching resources, or <tt>null</tt> if the index cannot answer a condition
+     */
+    @Override
+    public Set<String> find(List<String> ands, List<String> ors, String modifier) {
+        // every 'and' condition has to be satisfied
+        Set<String> result = null;
+        for (String and : ands) {
+            Set<String> hits = match(and, modifier);
+            if (hits == null) {
+                return null;
+            }
+            result = result == null ? hits : intersect(result, hits);
+        }
+
+        // while only one of the 'or' conditions has to be
+        if (ors.size() > 0) {
+            Set<String> union = new HashSet<>();
+            for (String or : ors) {
+                Set<String> hits = match(or, modifier);
+                if (hits == null) {
+                    return null;
+                }
+                union.addAll(hits);
+            }
+            result = result == null ? union : intersect(result, union);
+        }
+        return result == null ? Collections.emptySet() : result;
+    }
+
+    /**
+     * Indicates whether the matches of the index are final or only candidates.
+     * @return True if the matches of the index satisfy the search conditions without further evaluation
+     */
+    @Override
+    public boolean isExact() {
+        return exact;
+    }
+
+    private static Set<String> intersect(Set<String> left, Set<String> right) {
+        Set<String> smaller = left.size() <= right.size() ? left : right;
+        Set<String> larger = smaller == left ? right : left;
+        Set<String> result = new HashSet<>();
+        for (String id : smaller) {
+            if (larger.contains(id)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indexes the values extracted from a resource.
+     * @param id ID of the resource
+     * @param values Values extracted by the search parameter path, never empty
+     * @throws Exception Indicating the values could not be indexed
+     */
+    protected abstract void index(String id, List<Base> values) throws Exception;
+
+    /**
+     * Finds the resources that satisfy a single search condition.
+     * @param condition Individual query parameter
+     * @return The IDs of the matching resources, or <tt>null</tt> if the index cannot answer the condition
+     */
+    protected abstract Set<String> match(String condition);
+
+    /**
+     * Finds the resources that satisfy a single search condition given with a modifier. Only conditions without
+     * a modifier are answered unless an index overrides this.
+     * @param condition Individual query parameter
+     * @param modifier Search parameter modifier (e.g. exact), or <tt>null</tt> if there is none
+     * @return The IDs of the matching resources, or <tt>null</tt> if the index cannot answer the condition
+     */
+    protected Set<String> match(String condition, String modifier) {
+        return modifier == null ? match(condition) : null;
+    }
+}
@@ -0,0 +1,111 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import org.hl7.fhir.r4.model.DateTimeType;
+
+/**
+ * A single date search condition (e.g. ge1963-05-26) compared using the R4 range semantics: the condition value
+ * covers the span of time implied by its precision and is compared against the span covered by each resource value.
+ */
+public class DateCondition {
+    private final ParamPrefixEnum prefix;
+    private final DateRange range;
+    private final DateRange approximateRange;
+
+    private DateCondition(ParamPrefixEnum prefix, DateRange range) {
+        this.prefix = prefix;
+        this.range = range;
+
+        if (range != null) {
+            // approximately is taken as within 10% of the gap between now and the searched for value
+            long gap = Math.abs(System.currentTimeMillis() - range.getLow());
+            this.approximateRange = new DateRange(range.getLow() - gap / 10, range.getHigh() + gap / 10);
+        } else {
+            this.approximateRange = null;
+        }
+    }
+
+    /**
+     * Parses a date search condition.
+     * @param condition Individual query parameter, with an optional prefix (e.g. ge1963-05-26)
+     * @return The parsed condition. Conditions with an unknown prefix or an invalid date never match.
+     */
+    public static DateCondition parse(String condition) {
+        ParamPrefixEnum prefix = ParamPrefixEnum.EQUAL;
+        String value = condition;
+        if (condition.length() > 1 && Character.isLetter(condition.charAt(0))) {
+            prefix = ParamPrefixEnum.forValue(condition.substring(0, 2));
+            value = condition.substring(2);
+        }
+        if (prefix == null) {
+            return new DateCondition(null, null);
+        }
+
+        try {
+            DateTimeType dateTime = new DateTimeType(value);
+            if (dateTime.getValue() == null) {
+                return new DateCondition(null, null);
+            }
+            return new DateCondition(prefix, DateRange.of(dateTime));
+        } catch (Exception ex) {
+            return new DateCondition(null, null);
+        }
+    }
+
+    /**
+     * Gets the comparison prefix
+     * @return the comparison prefix, or <tt>null</tt> if the condition can never match
+     */
+    public ParamPrefixEnum getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Gets the span of time the condition value covers
+     * @return the span of time the condition value covers
+     */
+    public DateRange getRange() {
+        return range;
+    }
+
+    /**
+     * Gets the widened span of time used by the approximately (ap) prefix
+     * @return the widened span of time used by the approximately (ap) prefix
+     */
+    public DateRange getApproximateRange() {
+        return approximateRange;
+    }
+
+    /**
+     * Compares a resource value against the condition.
+     * @param value The span of time covered by the resource value
+     * @return True if the value satisfies the condition
+     */
+    public boolean matches(DateRange value) {
+        if (prefix == null) {
+            return false;
+        }
+        switch (prefix) {
+            case EQUAL:
+                return value.getLow() >= range.getLow() && value.getHigh() <= range.getHigh();
+            case NOT_EQUAL:
+                return value.getLow() < range.getLow() || value.getHigh() > range.getHigh();
+            case GREATERTHAN:
+                return value.getHigh() > range.getHigh();
+            case GREATERTHAN_OR_EQUALS:
+                return value.getHigh() >= range.getLow();
+            case LESSTHAN:
+                return value.getLow() < range.getLow();
+            case LESSTHAN_OR_EQUALS:
+                return value.getLow() <= range.getHigh();
+            case STARTS_AFTER:
+                return value.getLow() > range.getHigh();
+            case ENDS_BEFORE:
+                return value.getHigh() < range.getLow();
+            case APPROXIMATE:
+                return value.getLow() <= approximateRange.getHigh() && value.getHigh() >= approximateRange.getLow();
+            default:
+                return false;
+        }
+    }
+}
@@ -1,65 +1,58 @@
 package com.fhirproof;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.param.DateParam;
 import org.hl7.fhir.r4.model.Base;
-import org.hl7.fhir.r4.model.DateTimeType;
-import org.hl7.fhir.r4.model.DateType;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.function.BiPredicate;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Search evaluator for date/time parameters
+ * Search evaluator for date/time parameters. Resource values and query parameters are both compared as the span
+ * of time their precision implies (see {@link DateCondition}), rather than as strings.
  */
 public class DateEvaluator extends BaseEvaluator {
 
     protected static final String PARAM_TYPE = "date";
 
+    private static final int MAX_CACHED_CONDITIONS = 1024;
+
+    // the same condition is compared against every resource value, so only parse it once
+    private final ConcurrentHashMap<String, DateCondition> conditions = new ConcurrentHashMap<>();
+
     public DateEvaluator(FhirContext fhirContext) {
         super(fhirContext);
     }
 
     @Override
     protected List<String> getComparisonValues(Base base) {
-        String query;
-        if (base instanceof DateType) {
-            DateParam dp = new DateParam(null, base.castToDate(base));
-            query = dp.getValueAsQueryToken(fhirContext);
-        } else if (base instanceof DateTimeType) {
-            DateParam dp = new DateParam(null, base.castToDateTime(base));
-            query = dp.getValueAsQueryToken(fhirContext);
-        } else {
-            query = "";
+        List<String> values = new ArrayList<>();
+        for (DateRange range : DateRange.of(base)) {
+            values.add(range.toString());
         }
-
-        return Arrays.asList(query);
+        return values;
     }
 
     @Override
     protected boolean compare(String param, String query) {
-        if (Character.isDigit(param.charAt(0))) {
-            return param.equals(query);
-        } else {
-            String modifier = param.substring(0, 2);
-            String justDate = param.substring(2);
-            if (modifier.equals("gt")) {
-                return justDate.compareTo(query) < 0;
-            }
-            if (modifier.equals("ge")) {
-                return justDate.compareTo(query) <= 0;
-            }
-            if (modifier.equals("lt")) {
-                return justDate.compareTo(query) > 0;
-            }
-            if (modifier.equals("le")) {
-                return justDate.compareTo(query) >= 0;
+        return getCondition(param).matches(DateRange.parse(query));
+    }
+
+    /**
+     * Gets the parsed form of a date search condition.
+     * @param param Individual query parameter
+     * @return The parsed condition
+     */
+    protected DateCondition getCondition(String param) {
+        DateCondition condition = conditions.get(param);
+        if (condition == null) {
+            if (conditions.size() >= MAX_CACHED_CONDITIONS) {
+                conditions.clear();
             }
+            condition = DateCondition.parse(param);
+            conditions.put(param, condition);
         }
-        return false;
+        return condition;
     }
 
     @Override
@@ -0,0 +1,177 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Search index for date parameters. Each value is indexed by the span of time it covers, sorted by both its lower
+ * and its upper boundary, so every {@link DateCondition} prefix is answered by one or two range scans rather than
+ * by comparing every resource. The same boundaries give the value a resource is sorted on.
+ */
+public class DateIndex extends BaseSearchIndex implements ISortIndex {
+
+    private final TreeMap<Long, List<Posting>> byLow = new TreeMap<>();
+    private final TreeMap<Long, List<Posting>> byHigh = new TreeMap<>();
+    private final HashMap<String, List<Posting>> postingsById = new HashMap<>();
+    // open ended values are kept aside so the overlap scan can be bounded by the longest closed value
+    private final HashSet<Posting> open = new HashSet<>();
+    private long maxSpan = 0;
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the search parameter path the index is built from
+     */
+    public DateIndex(IPathAccessor accessor) {
+        super(accessor);
+    }
+
+    @Override
+    protected void index(String id, List<Base> values) {
+        List<Posting> postings = new ArrayList<>();
+        for (Base value : values) {
+            for (DateRange range : DateRange.of(value)) {
+                Posting posting = new Posting(id, range);
+                postings.add(posting);
+                byLow.computeIfAbsent(range.getLow(), k -> new ArrayList<>()).add(posting);
+                byHigh.computeIfAbsent(range.getHigh(), k -> new ArrayList<>()).add(posting);
+                if (range.isOpen()) {
+                    open.add(posting);
+                } else {
+                    maxSpan = Math.max(maxSpan, range.getHigh() - range.getLow());
+                }
+            }
+        }
+        if (!postings.isEmpty()) {
+            postingsById.put(id, postings);
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        List<Posting> postings = postingsById.remove(id);
+        if (postings == null) {
+            return;
+        }
+        for (Posting posting : postings) {
+            unlink(byLow, posting.range.getLow(), posting);
+            unlink(byHigh, posting.range.getHigh(), posting);
+            open.remove(posting);
+        }
+    }
+
+    @Override
+    protected Set<String> match(String condition) {
+        DateCondition parsed = DateCondition.parse(condition);
+        if (parsed.getPrefix() == null) {
+            return new HashSet<>();
+        }
+
+        DateRange range = parsed.getRange();
+        Set<String> ids = new HashSet<>();
+        switch (parsed.getPrefix()) {
+            case EQUAL:
+                // values that start within the range, of which only those that also end within it
+                collect(byLow.subMap(range.getLow(), true, range.getHigh(), true).values(), parsed, ids);
+                break;
+            case NOT_EQUAL:
+                collect(byLow.headMap(range.getLow(), false).values(), ids);
+                collect(byHigh.tailMap(range.getHigh(), false).values(), ids);
+                break;
+            case GREATERTHAN:
+                collect(byHigh.tailMap(range.getHigh(), false).values(), ids);
+                break;
+            case GREATERTHAN_OR_EQUALS:
+                collect(byHigh.tailMap(range.getLow(), true).values(), ids);
+                break;
+            case LESSTHAN:
+                collect(byLow.headMap(range.getLow(), false).values(), ids);
+                break;
+            case LESSTHAN_OR_EQUALS:
+                collect(byLow.headMap(range.getHigh(), true).values(), ids);
+                break;
+            case STARTS_AFTER:
+                collect(byLow.tailMap(range.getHigh(), false).values(), ids);
+                break;
+            case ENDS_BEFORE:
+                collect(byHigh.headMap(range.getLow(), false).values(), ids);
+                break;
+            case APPROXIMATE:
+                // a closed value can only overlap if it starts no earlier than the longest value before the range
+                DateRange approximate = parsed.getApproximateRange();
+                long from = approximate.getLow() - maxSpan;
+                if (from > approximate.getLow()) {
+                    from = Long.MIN_VALUE;
+                }
+                collect(byLow.subMap(from, true, approximate.getHigh(), true).values(), parsed, ids);
+                for (Posting posting : open) {
+                    if (parsed.matches(posting.range)) {
+                        ids.add(posting.id);
+                    }
+                }
+                break;
+            default:
+                return null;
+        }
+        return ids;
+    }
+
+    @Override
+    public Comparable<?> getSortKey(String id, boolean descending) {
+        List<Posting> postings = postingsById.get(id);
+        if (postings == null) {
+            return null;
+        }
+        // the earliest start sorts first, or the latest end when descending
+        long key = descending ? Long.MIN_VALUE : Long.MAX_VALUE;
+        for (Posting posting : postings) {
+            key = descending ? Math.max(key, posting.range.getHigh()) : Math.min(key, posting.range.getLow());
+        }
+        return key;
+    }
+
+    private static void collect(Collection<List<Posting>> buckets, Set<String> ids) {
+        for (List<Posting> bucket : buckets) {
+            for (Posting posting : bucket) {
+                ids.add(posting.id);
+            }
+        }
+    }
+
+    private static void collect(Collection<List<Posting>> buckets, DateCondition condition, Set<String> ids) {
+        for (List<Posting> bucket : buckets) {
+            for (Posting posting : bucket) {
+                if (condition.matches(posting.range)) {
+                    ids.add(posting.id);
+                }
+            }
+        }
+    }
+
+    private static void unlink(Map<Long, List<Posting>> boundaries, long boundary, Posting posting) {
+        List<Posting> bucket = boundaries.get(boundary);
+        if (bucket != null) {
+            bucket.remove(posting);
+            if (bucket.isEmpty()) {
+                boundaries.remove(boundary);
+            }
+        }
+    }
+
+    private static class Posting {
+        private final String id;
+        private final DateRange range;
+
+        Posting(String id, DateRange range) {
+            this.id = id;
+            this.range = range;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Timing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The span of time covered by a date, dateTime, instant or Period value, as an inclusive range of epoch
+ * milliseconds. A value's precision determines its span, e.g. 1887 covers the whole year while
+ * 1963-05-26T12:13:14-05:00 covers a single second. Missing Period boundaries are open ended.
+ */
+public class DateRange {
+    private final long low;
+    private final long high;
+
+    /**
+     * Constructs a date range
+     * @param low Inclusive lower boundary in epoch milliseconds, <tt>Long.MIN_VALUE</tt> if open ended
+     * @param high Inclusive upper boundary in epoch milliseconds, <tt>Long.MAX_VALUE</tt> if open ended
+     */
+    public DateRange(long low, long high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Gets the span of time covered by a date/time value at its precision.
+     * @param dateTime A date/time value with a value set
+     * @return The span of time covered by the value
+     */
+    public static DateRange of(BaseDateTimeType dateTime) {
+        long start = dateTime.getValue().getTime();
+        TemporalPrecisionEnum precision =
+                dateTime.getPrecision() == null ? TemporalPrecisionEnum.MILLI : dateTime.getPrecision();
+        long end = precision.add(dateTime.getValue(), 1).getTime() - 1;
+        return new DateRange(start, Math.max(start, end));
+    }
+
+    /**
+     * Gets the spans of time covered by an element a date search parameter path selected.
+     * @param base The selected element
+     * @return The spans of time covered by the element, empty if it is not a (populated) date type
+     */
+    public static List<DateRange> of(Base base) {
+        List<DateRange> ranges = new ArrayList<>();
+        if (base instanceof BaseDateTimeType) {
+            BaseDateTimeType dateTime = (BaseDateTimeType) base;
+            if (dateTime.getValue() != null) {
+                ranges.add(of(dateTime));
+            }
+        } else if (base instanceof Period) {
+            Period period = (Period) base;
+            boolean hasStart = period.hasStart() && period.getStartElement().getValue() != null;
+            boolean hasEnd = period.hasEnd() && period.getEndElement().getValue() != null;
+            if (hasStart || hasEnd) {
+                ranges.add(new DateRange(
+                        hasStart ? of(period.getStartElement()).getLow() : Long.MIN_VALUE,
+                        hasEnd ? of(period.getEndElement()).getHigh() : Long.MAX_VALUE));
+            }
+        } else if (base instanceof Timing) {
+            for (DateTimeType event : ((Timing) base).getEvent()) {
+                if (event.getValue() != null) {
+                    ranges.add(of(event));
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Parses a range previously formatted with {@link #toString()}.
+     * @param value The formatted range
+     * @return The range
+     */
+    public static DateRange parse(String value) {
+        int index = value.indexOf(':');
+        return new DateRange(Long.parseLong(value.substring(0, index)), Long.parseLong(value.substring(index + 1)));
+    }
+
+    /**
+     * Gets the inclusive lower boundary
+     * @return the inclusive lower boundary in epoch milliseconds
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Gets the inclusive upper boundary
+     * @return the inclusive upper boundary in epoch milliseconds
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * Indicates whether either boundary is open ended.
+     * @return True if the range has no lower or no upper boundary
+     */
+    public boolean isOpen() {
+        return low == Long.MIN_VALUE || high == Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return low + ":" + high;
+    }
+}
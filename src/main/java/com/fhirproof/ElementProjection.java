@@ -0,0 +1,169 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The elements of the resources a read or search returns, as chosen by its <tt>_elements</tt> or <tt>_summary</tt>
+ * parameter. A projected resource is built up from the selected top level elements alone, rather than copying the
+ * whole resource and then removing the rest, so the narrative, contained resources and whatever else was not asked
+ * for are never copied. Projected resources are tagged SUBSETTED.
+ *
+ * The elements of each resource type, along with whether they are part of the summary and whether they are
+ * mandatory, are read from the HAPI model of the type once and cached.
+ */
+final class ElementProjection {
+
+    static final String ELEMENTS = "_elements";
+    static final String SUMMARY = "_summary";
+    static final String SUMMARY_COUNT = "count";
+    private static final String SUMMARY_TRUE = "true";
+    private static final String SUMMARY_TEXT = "text";
+    private static final String SUMMARY_DATA = "data";
+    private static final String SUMMARY_FALSE = "false";
+
+    /**
+     * The names the parameters of a projection can be given with
+     */
+    static final List<String> PARAMETERS = Collections.unmodifiableList(Arrays.asList(ELEMENTS, SUMMARY));
+
+    static final String SUBSETTED_SYSTEM = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+    static final String SUBSETTED_CODE = "SUBSETTED";
+
+    private static final String ID = "id";
+    private static final String META = "meta";
+    private static final String TEXT = "text";
+
+    private static final Map<String, List<Element>> ELEMENT_CACHE = new ConcurrentHashMap<>();
+
+    private final FhirContext fhirContext;
+    private final String summary;
+    private final Set<String> elements;
+    // the elements selected from each type, worked out on first use
+    private final Map<String, List<Element>> selected = new ConcurrentHashMap<>();
+
+    private ElementProjection(FhirContext fhirContext, String summary, Set<String> elements) {
+        this.fhirContext = fhirContext;
+        this.summary = summary;
+        this.elements = elements;
+    }
+
+    /**
+     * Gets the projection a read or search asks for.
+     * @param fhirContext FHIR version context of the store, which the elements of each resource type are read from
+     * @param params Parameters of the read or search and their values
+     * @return The projection, or <tt>null</tt> if the whole resources are to be returned
+     * @throws FhirProofException If the <tt>_summary</tt> is not one of true, text, data or false
+     */
+    static ElementProjection of(FhirContext fhirContext, Map<String, List<String>> params) throws FhirProofException {
+        List<String> summaries = params.get(SUMMARY);
+        if (summaries != null) {
+            String summary = summaries.get(0);
+            if (summary.equals(SUMMARY_TRUE) || summary.equals(SUMMARY_TEXT) || summary.equals(SUMMARY_DATA)) {
+                return new ElementProjection(fhirContext, summary, null);
+            } else if (!summary.equals(SUMMARY_FALSE)) {
+                throw new FhirProofException(String.format("Status 400: %s=%s is not supported", SUMMARY, summary));
+            }
+        }
+
+        List<String> values = params.get(ELEMENTS);
+        if (values == null) {
+            return null;
+        }
+        Set<String> elements = new HashSet<>();
+        for (String value : values) {
+            for (String element : value.split(",")) {
+                // the element may be given with its type (e.g. Observation.status)
+                elements.add(element.substring(element.indexOf('.') + 1));
+            }
+        }
+        return new ElementProjection(fhirContext, null, elements);
+    }
+
+    /**
+     * Builds the projection of a resource.
+     * @param stored The stored version of the resource, which is left as it is
+     * @param share True to share the selected elements with the stored version rather than copying them
+     * @return A new resource with only the selected elements, tagged SUBSETTED
+     */
+    Resource project(Resource stored, boolean share) {
+        RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(stored);
+        Resource projected = (Resource) definition.newInstance();
+        for (Element element : selected.computeIfAbsent(definition.getName(), k -> select(definition))) {
+            for (IBase value : element.child.getAccessor().getValues(stored)) {
+                element.child.getMutator().addValue(projected, share ? value : ((Base) value).copy());
+            }
+        }
+        // the id and meta are always returned, and the meta is copied so tagging it never touches the stored version
+        projected.setIdElement(stored.getIdElement().copy());
+        if (stored.hasMeta()) {
+            projected.setMeta(stored.getMeta().copy());
+        }
+        projected.getMeta().addTag(SUBSETTED_SYSTEM, SUBSETTED_CODE, "subsetted");
+        return projected;
+    }
+
+    private List<Element> select(RuntimeResourceDefinition definition) {
+        List<Element> result = new ArrayList<>();
+        for (Element element : getElements(definition)) {
+            if (element.name.equals(ID) || element.name.equals(META)) {
+                continue;
+            }
+            boolean include;
+            if (elements != null) {
+                include = element.mandatory || elements.contains(element.name);
+            } else if (summary.equals(SUMMARY_TRUE)) {
+                include = element.mandatory || element.summary;
+            } else if (summary.equals(SUMMARY_TEXT)) {
+                include = element.mandatory || element.name.equals(TEXT);
+            } else {
+                include = !element.name.equals(TEXT);
+            }
+            if (include) {
+                result.add(element);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static List<Element> getElements(RuntimeResourceDefinition definition) {
+        return ELEMENT_CACHE.computeIfAbsent(definition.getName(), k -> {
+            List<Element> elements = new ArrayList<>();
+            for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+                elements.add(new Element(child));
+            }
+            return Collections.unmodifiableList(elements);
+        });
+    }
+
+    /**
+     * A top level element of a resource type, as described by the HAPI model of the type.
+     */
+    private static final class Element {
+        private final BaseRuntimeChildDefinition child;
+        private final String name;
+        private final boolean summary;
+        private final boolean mandatory;
+
+        Element(BaseRuntimeChildDefinition child) {
+            this.child = child;
+            // choice elements are asked for without their type suffix (e.g. value rather than value[x])
+            this.name = child.getElementName().replace("[x]", "");
+            this.summary = child.isSummary();
+            this.mandatory = child.getMin() > 0;
+        }
+    }
+}
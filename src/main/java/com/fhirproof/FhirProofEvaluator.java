@@ -51,9 +51,12 @@ public class FhirProofEvaluator implements FHIRPathEngine.IEvaluationContext {
 
     @Override
     public Base resolveReference(Object o, String s) throws FHIRException {
-        // Verify a reference against the store
+        // Verify a reference against the store, as of the snapshot being searched
         String[] parts = s.split("/");
-        return store.store().get(parts[0]).get(parts[1]);
+        if (parts.length < 2) {
+            return null;
+        }
+        return store.resolve(parts[0], parts[1]);
     }
 
     @Override
@@ -1,19 +1,29 @@
 package com.fhirproof;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.model.api.annotation.SearchParamDefinition;
 import ca.uhn.fhir.parser.IParser;
-import org.apache.commons.lang3.ClassUtils;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.context.SimpleWorkerContext;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.utils.FHIRPathEngine;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.time.Instant;
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * FhirProofStore is a self contained FHIR store that can be utilized in place of an external FHIR server
@@ -24,16 +34,68 @@ import java.util.stream.Collectors;
  * It is important to note that the data within this store is volatile and the FhirProofStore should not be used for
  * any purposes other than the testing or temporary storage of data.
  *
+ * A single instance can be shared between threads. Every change is committed under a new version, and each read,
+ * search and operation runs against a snapshot of the latest committed version, so it sees the store as of one
+ * point in time without waiting for the writes made while it runs. The versions replaced since are kept until no
+ * snapshot reads them anymore. Writes to a type are serialized by a lock per type, which searches only hold while
+ * looking up a search index. Changes made directly to the raw <tt>Map</tt> are versioned as well, but bypass the
+ * locks.
+ *
  */
 public class FhirProofStore {
     public static final String FHIR_STORE_URL = "https://fhirproof.github.io/fhir-proofer/fhir/";
     private static final FhirContext fhirContext = FhirContext.forR4();
     private static final IParser FHIR_PARSER = FhirContext.forR4().newJsonParser();
+    private static final String COUNT = "_count";
+    private static final String OFFSET = "_offset";
+    private static final String CURSOR = "_cursor";
+    private static final String SORT = "_sort";
+    private static final String TOTAL = "_total";
+    private static final String TOTAL_NONE = "none";
+    private static final String TOTAL_ESTIMATE = "estimate";
+    private static final String TOTAL_ACCURATE = "accurate";
+    private static final String HISTORY = "_history";
+    private static final String SINCE = "_since";
+    private static final String FIRST_VERSION = "1";
+    // parameters that shape the result of a search rather than select the resources it matches
+    private static final Set<String> RESULT_PARAMETERS = new HashSet<>(Arrays.asList(COUNT, OFFSET, CURSOR, SORT, TOTAL));
+    static {
+        RESULT_PARAMETERS.addAll(SearchIncludes.PARAMETERS);
+        RESULT_PARAMETERS.addAll(ElementProjection.PARAMETERS);
+    }
+    // the cursors of paged searches are closed once unused for this long, or when there are too many of them
+    private static final long CURSOR_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_CURSORS = 100;
+    // user data key of the copy of a stored version handed out to every caller when reads are shared
+    private static final String SHARED_COPY = "fhirproof.sharedCopy";
+    // number of candidates a parameter is tried on to estimate its selectivity when there are no statistics yet
+    private static final int SAMPLE_SIZE = 64;
+    // fewest resources a worker of a parallel scan is given, below which splitting costs more than it saves
+    private static final int MIN_SCAN_CHUNK = 64;
+    // failure messages that carry their HTTP status, e.g. "Status 400: Bundle was not a Transaction"
+    private static final Pattern STATUS_MESSAGE = Pattern.compile("Status (\\d{3}): (.*)", Pattern.DOTALL);
 
-    private final FHIRPathEngine pathEngine;
-    private final HashMap<String, HashMap<String, Resource>> store = new HashMap<>();
-    private final HashMap<String, ISearchEvaluator> evaluators = new HashMap<>();
-    private final HashMap<String, IOperationExecutor> executors = new HashMap<>();
+    private final SimpleWorkerContext workerContext;
+    // the engine keeps some state while evaluating, so each thread evaluates with an engine of its own
+    private final ThreadLocal<FHIRPathEngine> pathEngines;
+    private final FHIRPathEngine.IEvaluationContext hostServices;
+    private final ResourceVersions versions = new ResourceVersions();
+    private final ResourceTypeMap store = new ResourceTypeMap(versions);
+    private final Map<String, ISearchEvaluator> evaluators = new ConcurrentHashMap<>();
+    private final Map<String, IOperationExecutor> executors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ExpressionNode> expressions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, IPathAccessor> accessors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, HashMap<String, ISearchIndex>> indexes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+    private final SearchStatistics statistics = new SearchStatistics();
+    // the snapshot a search on this thread is running against, which references are resolved in
+    private final ThreadLocal<Snapshot> searching = new ThreadLocal<>();
+    // the open cursors of paged searches, least recently used first
+    private final LinkedHashMap<String, SearchCursor> cursors = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile boolean indexing = false;
+    private volatile boolean sharedReads = false;
+    private volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+    private volatile int parallelScanThreshold = Integer.MAX_VALUE;
 
     /**
      * Constructs an empty FHIR store with default functionality.
@@ -41,8 +103,9 @@ public class FhirProofStore {
      */
     public FhirProofStore() throws FhirProofException {
         try {
-            pathEngine = new FHIRPathEngine(new SimpleWorkerContext());
-            pathEngine.setHostServices(new FhirProofEvaluator(this));
+            workerContext = new SimpleWorkerContext();
+            hostServices = new FhirProofEvaluator(this);
+            pathEngines = ThreadLocal.withInitial(this::newPathEngine);
             resetEvaluators();
         } catch (IOException ioex) {
             throw new FhirProofException(ioex);
@@ -56,8 +119,9 @@ public class FhirProofStore {
      */
     public FhirProofStore(FHIRPathEngine.IEvaluationContext hostService) throws FhirProofException {
         try {
-            pathEngine = new FHIRPathEngine(new SimpleWorkerContext());
-            pathEngine.setHostServices(hostService);
+            workerContext = new SimpleWorkerContext();
+            hostServices = hostService;
+            pathEngines = ThreadLocal.withInitial(this::newPathEngine);
             resetEvaluators();
         } catch (IOException ioex) {
             throw new FhirProofException(ioex);
@@ -65,7 +129,13 @@ public class FhirProofStore {
     }
 
     /**
-     * The raw <tt>Map</tt> of the FHIR store.
+     * The raw <tt>Map</tt> of the FHIR store. Both levels are <tt>HashMap</tt>s by type but are backed by
+     * concurrent maps holding the latest version of each resource, so the store can be written through them while
+     * other threads read it. Putting or removing a resource commits a new version, which searches already running
+     * don't see.
+     *
+     * A map of resources put into it is copied rather than kept, so resources put into that map afterwards are
+     * not in the store. Get the map of a type back from the store before putting resources into it.
      * @return The raw <tt>Map</tt> of the FHIR store.
      */
     public HashMap<String, HashMap<String, Resource>> store() {
@@ -78,6 +148,8 @@ public class FhirProofStore {
      */
     public void addEvaluator(ISearchEvaluator searchEvaluator) {
         evaluators.put(searchEvaluator.getParameterType(), searchEvaluator);
+        resetIndexes();
+        statistics.clear();
     }
 
     /**
@@ -97,6 +169,49 @@ public class FhirProofStore {
         evaluators.put(NumberEvaluator.PARAM_TYPE, new NumberEvaluator(fhirContext));
         evaluators.put(TokenEvaluator.PARAM_TYPE, new TokenEvaluator(fhirContext));
         evaluators.put(ReferenceEvaluator.PARAM_TYPE, new ReferenceEvaluator(fhirContext));
+        resetIndexes();
+        statistics.clear();
+    }
+
+    /**
+     * Enables or disables the search indexes. When enabled, an index is built for a search parameter the first
+     * time it is searched on and is then kept up to date by create, update and delete. Only parameters evaluated
+     * by the default search evaluators are indexed.
+     *
+     * Changes made directly to the raw <tt>Map</tt> of the store are not seen by the indexes, call
+     * {@link #resetIndexes()} after making them.
+     * @param indexing True to use search indexes
+     */
+    public void setIndexing(boolean indexing) {
+        this.indexing = indexing;
+        resetIndexes();
+    }
+
+    /**
+     * Enables or disables shared reads. By default every resource returned by a read, search, transaction or
+     * batch is a copy of its own, so changing it can't change the store or anything else the caller was given.
+     * With shared reads each stored version is copied once, the first time it is read, and that one copy is
+     * returned to every caller reading the version, saving a copy per read. The store never changes a version
+     * once it is stored, since every write stores a new version, so a shared resource keeps showing the version
+     * that was read.
+     *
+     * The stored version itself is never handed out, so changing a shared resource can't change the store, the
+     * history the version is archived into when it is replaced, or the search indexes built from it. It does
+     * change what every other caller reading the same version is given, for as long as the version is the
+     * latest, so callers must still treat shared resources as read-only, copying one before changing it.
+     *
+     * Resources passed to create, update and transactions are always copied, whether reads are shared or not.
+     * @param sharedReads True to return the stored versions without copying them
+     */
+    public void setSharedReads(boolean sharedReads) {
+        this.sharedReads = sharedReads;
+    }
+
+    /**
+     * Discards all the search indexes so they are rebuilt from the current contents of the store.
+     */
+    public void resetIndexes() {
+        indexes.clear();
     }
 
     /**
@@ -108,10 +223,327 @@ public class FhirProofStore {
      * @throws FhirProofException Indicating why the read failed.
      */
     public <T> T read(String resource, String id) throws FhirProofException {
-        if (!store.containsKey(resource) || !store.get(resource).containsKey(id)) {
+        try (Snapshot snapshot = store.snapshot()) {
+            Resource current = snapshot.get(resource, id);
+            if (current == null) {
+                throw new FhirProofException(String.format("'%s/%s' not found", resource, id));
+            }
+            return (T) share(current);
+        }
+    }
+
+    /**
+     * Performs a read of some of the elements of a FHIR resource, as chosen by an <tt>_elements</tt> or
+     * <tt>_summary</tt> parameter. Only the chosen elements are copied, and the resource is tagged SUBSETTED.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource to read
+     * @param query FHIR formatted query string (e.g. _elements=name,birthDate)
+     * @param <T> Resource type being read
+     * @return The resource requested, with the elements asked for.
+     * @throws FhirProofException Indicating why the read failed.
+     */
+    public <T> T read(String resource, String id, String query) throws FhirProofException {
+        ElementProjection projection = ElementProjection.of(fhirContext, parseQuery(query));
+        try (Snapshot snapshot = store.snapshot()) {
+            Resource current = snapshot.get(resource, id);
+            if (current == null) {
+                throw new FhirProofException(String.format("'%s/%s' not found", resource, id));
+            }
+            return (T) share(current, projection);
+        }
+    }
+
+    /**
+     * Performs a read of a version of a FHIR resource, which may be the latest version or any earlier one. The
+     * earlier versions of a deleted resource can still be read.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource to read
+     * @param versionId Version ID of the version to read (e.g. 2)
+     * @param <T> Resource type being read
+     * @return The version requested.
+     * @throws FhirProofException Indicating why the read failed, with status 410 if the version is the deletion
+     */
+    public <T> T vread(String resource, String id, String versionId) throws FhirProofException {
+        Resource current;
+        Resource version;
+        // writers hold the write lock from archiving a version until its successor is committed, so the latest
+        // version and the history are read as of the same write
+        Lock lock = getLock(resource).readLock();
+        lock.lock();
+        try {
+            Map<String, Resource> resources = store.get(resource);
+            current = resources == null ? null : resources.get(id);
+            version = getVersion(resource, id, versionId, current);
+        } finally {
+            lock.unlock();
+        }
+        // an earlier version is read back as a new instance, so only the latest needs copying
+        return (T) (version == current ? share(version) : version);
+    }
+
+    /**
+     * Gets the history of every resource in the store, the versions of all of them newest first. The query may
+     * have a <tt>_since</tt> instant to leave out versions written before it, and a <tt>_count</tt> and
+     * <tt>_offset</tt> to read one page of the versions, with a <tt>next</tt> link to the following page. As
+     * newer versions come first, versions written while the pages are read shift the later pages.
+     * @param query FHIR formatted query string (e.g. _since=2020-01-01&_count=10), may be empty
+     * @return A history bundle of the versions
+     * @throws FhirProofException Indicating why the history could not be read.
+     */
+    public Bundle history(String query) throws FhirProofException {
+        return history(new ArrayList<>(store.keySet()), null, HISTORY, query);
+    }
+
+    /**
+     * Gets the history of every resource of a type, the versions of all of them newest first. See
+     * {@link #history(String)} for the query.
+     * @param resource Resource type (e.g. Patient)
+     * @param query FHIR formatted query string (e.g. _since=2020-01-01&_count=10), may be empty
+     * @return A history bundle of the versions
+     * @throws FhirProofException Indicating why the history could not be read.
+     */
+    public Bundle history(String resource, String query) throws FhirProofException {
+        ResourceTypeRegistry.getDefinition(resource);
+        return history(Collections.singletonList(resource), null, String.format("%s/%s", resource, HISTORY), query);
+    }
+
+    /**
+     * Gets the history of a resource, its versions newest first, including its deletion if it was deleted. See
+     * {@link #history(String)} for the query.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @param query FHIR formatted query string (e.g. _since=2020-01-01&_count=10), may be empty
+     * @return A history bundle of the versions
+     * @throws FhirProofException Indicating why the history could not be read.
+     */
+    public Bundle history(String resource, String id, String query) throws FhirProofException {
+        ResourceMap resources = (ResourceMap) store.get(resource);
+        if (resources == null || (!resources.containsKey(id) && resources.getHistory(id) == null)) {
             throw new FhirProofException(String.format("'%s/%s' not found", resource, id));
         }
-        return (T) store.get(resource).get(id).copy();
+        return history(Collections.singletonList(resource), id, String.format("%s/%s/%s", resource, id, HISTORY), query);
+    }
+
+    /**
+     * Lists the versions of resources newest first, as a history bundle. Only the versions on the page read are
+     * kept while listing, and only they are read back from the histories.
+     * @param resources Resource types to list the versions of
+     * @param id ID of the one resource to list the versions of, or <tt>null</tt> for every resource of the types
+     * @param path Path the history is read at (e.g. Patient/_history), for the links of the bundle
+     * @param query FHIR formatted query string, may be empty
+     * @return A history bundle of the versions
+     * @throws FhirProofException Indicating why the history could not be read.
+     */
+    private Bundle history(List<String> resources, String id, String path, String query) throws FhirProofException {
+        Map<String, List<String>> params = query == null || query.isEmpty() ? Collections.emptyMap() : parseQuery(query);
+        for (String name : params.keySet()) {
+            if (!name.equals(SINCE) && !name.equals(COUNT) && !name.equals(OFFSET)) {
+                throw new FhirProofException(String.format("Status 400: %s is not supported by history", name));
+            }
+        }
+        long since = getSince(params);
+        Integer count = getPaging(params, COUNT);
+        int offset = params.containsKey(OFFSET) ? getPaging(params, OFFSET) : 0;
+
+        // keep the newest versions up to the end of the page, with the oldest of them at the head of the queue
+        int limit = count == null ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, (long) offset + count);
+        PriorityQueue<HistoryEntry> newest = new PriorityQueue<>(HistoryEntry.NEWEST_FIRST.reversed());
+        int total = 0;
+        for (String resource : resources) {
+            ResourceMap versions = (ResourceMap) store.get(resource);
+            if (versions == null) {
+                continue;
+            }
+            // the write lock is held from archiving a version to committing its successor, so no version is missed
+            Lock lock = getLock(resource).readLock();
+            lock.lock();
+            try {
+                Iterable<String> ids = id == null ? versions.keySet() : Collections.singletonList(id);
+                for (String versioned : ids) {
+                    total += addVersions(newest, limit, since, resource, versioned, versions);
+                }
+                if (id == null) {
+                    for (String deleted : versions.getHistoryIds()) {
+                        if (!versions.containsKey(deleted)) {
+                            total += addVersions(newest, limit, since, resource, deleted, versions);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<HistoryEntry> page = new ArrayList<>(newest);
+        page.sort(HistoryEntry.NEWEST_FIRST);
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.HISTORY);
+        bundle.setTotal(total);
+        for (HistoryEntry entry : page.subList(Math.min(offset, page.size()), page.size())) {
+            addHistoryEntry(bundle, entry);
+        }
+        bundle.addLink().setRelation("self").setUrl(historyLink(path, params, offset, count));
+        if (count != null && count > 0 && (long) offset + count < total) {
+            bundle.addLink().setRelation("next").setUrl(historyLink(path, params, offset + count, count));
+        }
+        return bundle;
+    }
+
+    /**
+     * Adds the versions of one resource written at or after an instant to the newest versions found so far.
+     * @param newest The newest versions found so far, oldest first
+     * @param limit How many of the newest versions to keep
+     * @param since Instant in milliseconds since the epoch
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @param versions The resources of the type
+     * @return The number of versions written at or after the instant
+     */
+    private static int addVersions(PriorityQueue<HistoryEntry> newest, int limit, long since, String resource, String id,
+                                   ResourceMap versions) {
+        int added = 0;
+        Resource current = versions.get(id);
+        if (current != null && ResourceHistory.getTime(current) >= since) {
+            added++;
+            offer(newest, limit, new HistoryEntry(resource, id, ResourceHistory.getNumber(current),
+                    ResourceHistory.getTime(current), current, null, -1));
+        }
+        ResourceHistory history = versions.getHistory(id);
+        if (history != null) {
+            for (int i = history.size() - 1; i >= 0; i--) {
+                // versions are stamped with their time before their writer takes the lock, so the times of
+                // concurrent updates can be out of order and every version is looked at
+                if (history.getTime(i) >= since) {
+                    added++;
+                    offer(newest, limit, new HistoryEntry(resource, id, history.getNumber(i), history.getTime(i), null, history, i));
+                }
+            }
+        }
+        return added;
+    }
+
+    private static void offer(PriorityQueue<HistoryEntry> newest, int limit, HistoryEntry entry) {
+        if (limit == 0) {
+            return;
+        }
+        if (newest.size() < limit) {
+            newest.add(entry);
+        } else if (HistoryEntry.NEWEST_FIRST.compare(entry, newest.peek()) < 0) {
+            newest.poll();
+            newest.add(entry);
+        }
+    }
+
+    /**
+     * Adds a version to a history bundle, with the request that wrote it.
+     * @param bundle The history bundle
+     * @param entry The version
+     */
+    private void addHistoryEntry(Bundle bundle, HistoryEntry entry) {
+        Bundle.BundleEntryComponent component = bundle.addEntry()
+                .setFullUrl(String.format("%s%s/%s", FHIR_STORE_URL, entry.resource, entry.id));
+        Bundle.BundleEntryRequestComponent request = component.getRequest();
+        Bundle.BundleEntryResponseComponent response = component.getResponse();
+        Resource version = entry.current != null ? share(entry.current) : entry.history.get(entry.index, entry.id);
+        if (version == null) {
+            request.setMethod(Bundle.HTTPVerb.DELETE).setUrl(String.format("%s/%s", entry.resource, entry.id));
+            response.setStatus("204 No Content");
+        } else if (entry.number == 1) {
+            request.setMethod(Bundle.HTTPVerb.POST).setUrl(entry.resource);
+            response.setStatus("201 Created");
+            component.setResource(version);
+        } else {
+            request.setMethod(Bundle.HTTPVerb.PUT).setUrl(String.format("%s/%s", entry.resource, entry.id));
+            response.setStatus("200 OK");
+            component.setResource(version);
+        }
+        response.setEtag(String.format("W/\"%d\"", entry.number));
+        response.setLastModified(new Date(entry.time));
+    }
+
+    /**
+     * Gets the <tt>_since</tt> instant of a history.
+     * @param params Parameters of the history and their values
+     * @return The instant in milliseconds since the epoch, or <tt>Long.MIN_VALUE</tt> if there is none
+     * @throws FhirProofException If the value is not a date or instant
+     */
+    private static long getSince(Map<String, List<String>> params) throws FhirProofException {
+        List<String> values = params.get(SINCE);
+        if (values == null) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return new DateTimeType(values.get(0)).getValue().getTime();
+        } catch (RuntimeException ex) {
+            throw new FhirProofException(String.format("Status 400: %s must be an instant", SINCE));
+        }
+    }
+
+    private static String historyLink(String path, Map<String, List<String>> params, int offset, Integer count) {
+        StringBuilder link = new StringBuilder(FHIR_STORE_URL).append(path).append('?');
+        if (params.containsKey(SINCE)) {
+            link.append(SINCE).append('=').append(params.get(SINCE).get(0)).append('&');
+        }
+        if (count != null) {
+            link.append(COUNT).append('=').append(count).append('&');
+        }
+        return link.append(OFFSET).append('=').append(offset).toString();
+    }
+
+    /**
+     * Gets a version of a resource.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @param versionId Version ID of the version
+     * @param current The latest version of the resource, or <tt>null</tt> if it is deleted
+     * @return The latest version itself if it has the version ID, otherwise a new instance of an earlier version
+     * @throws FhirProofException If the resource has no such version, or the version is the deletion
+     */
+    private Resource getVersion(String resource, String id, String versionId, Resource current) throws FhirProofException {
+        if (current != null && versionId.equals(current.getMeta().getVersionId())) {
+            return current;
+        }
+        ResourceMap resources = (ResourceMap) store.get(resource);
+        ResourceHistory history = resources == null ? null : resources.getHistory(id);
+        int index = history == null ? -1 : history.indexOf(versionId);
+        if (index < 0) {
+            throw new FhirProofException(String.format("'%s/%s/%s/%s' not found", resource, id, HISTORY, versionId));
+        }
+        Resource version = history.get(index, id);
+        if (version == null) {
+            throw new FhirProofException(String.format("Status 410: '%s/%s/%s/%s' is deleted", resource, id, HISTORY, versionId));
+        }
+        return version;
+    }
+
+    /**
+     * A version listed in a history, either the latest version of a resource or one kept in its history.
+     */
+    private static final class HistoryEntry {
+        // newest first, then by resource so versions written in the same millisecond come in a stable order
+        private static final Comparator<HistoryEntry> NEWEST_FIRST = Comparator
+                .comparingLong((HistoryEntry entry) -> entry.time).reversed()
+                .thenComparing(entry -> entry.resource)
+                .thenComparing(entry -> entry.id)
+                .thenComparing(Comparator.comparingLong((HistoryEntry entry) -> entry.number).reversed());
+
+        private final String resource;
+        private final String id;
+        private final long number;
+        private final long time;
+        private final Resource current;
+        private final ResourceHistory history;
+        private final int index;
+
+        HistoryEntry(String resource, String id, long number, long time, Resource current, ResourceHistory history,
+                     int index) {
+            this.resource = resource;
+            this.id = id;
+            this.number = number;
+            this.time = time;
+            this.current = current;
+            this.history = history;
+            this.index = index;
+        }
     }
 
     /**
@@ -120,18 +552,30 @@ public class FhirProofStore {
      * @return The ID of the newly created resource.
      */
     public String create(Resource resource) {
-        Resource copy = resource.copy();
-        copy.getMeta().setVersionId(Base64.getEncoder().encodeToString(String.valueOf(Instant.now().getEpochSecond()).getBytes()));
-        copy.getMeta().setLastUpdated(DateTimeType.now().getValue());
-        String resourceType = copy.getResourceType().name();
-        if (!store.containsKey(resourceType)) {
-            store.put(resourceType, new HashMap<>());
-        }
+        return create(resource, ReturnPreference.MINIMAL).getId();
+    }
 
+    /**
+     * Creates a FHIR resource in the store.
+     * @param resource The resource to create
+     * @param preference What to return besides the metadata of the new resource
+     * @return The ID, version and time of the newly created resource, and whatever else was asked for.
+     */
+    public WriteResponse create(Resource resource, ReturnPreference preference) {
+        Resource copy = newVersion(resource);
+        String resourceType = copy.getResourceType().name();
         String id = UUID.randomUUID().toString();
         copy.setId(id);
-        store.get(resourceType).put(id, copy);
-        return id;
+
+        Lock lock = getLock(resourceType).writeLock();
+        lock.lock();
+        try {
+            store.computeIfAbsent(resourceType, k -> new ResourceMap(versions)).put(id, copy);
+            updateIndexes(resourceType, id, copy);
+        } finally {
+            lock.unlock();
+        }
+        return writeResponse(copy, 201, preference);
     }
 
     /**
@@ -143,8 +587,8 @@ public class FhirProofStore {
     public void update(String resource, String content) throws FhirProofException {
 
         try {
-            Class clazz = Class.forName("org.hl7.fhir.r4.model." + resource);
-            update(resource, (Resource) FHIR_PARSER.parseResource(clazz, content));
+            Class<? extends Resource> clazz = ResourceTypeRegistry.getDefinition(resource).getResourceClass();
+            update(resource, FHIR_PARSER.parseResource(clazz, content));
         } catch (Exception ex) {
             if (ex instanceof FhirProofException) {
                 throw (FhirProofException) ex;
@@ -172,13 +616,33 @@ public class FhirProofStore {
      * @throws FhirProofException Indicating why the update failed.
      */
     public void update(String resource, String id, Resource instance) throws FhirProofException {
-        Resource copy = instance.copy();
-        copy.getMeta().setVersionId(Base64.getEncoder().encodeToString(String.valueOf(Instant.now().getEpochSecond()).getBytes()));
-        copy.getMeta().setLastUpdated(DateTimeType.now().getValue());
-        if (!store.containsKey(resource) || !store.get(resource).containsKey(id)) {
-            throw new FhirProofException(String.format("%s/%s not found", resource, id));
+        update(resource, id, instance, ReturnPreference.MINIMAL);
+    }
+
+    /**
+     * Updates the indicated FHIR resource.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource to update
+     * @param instance The updated version of the resource
+     * @param preference What to return besides the metadata of the new version
+     * @return The ID, version and time of the new version, and whatever else was asked for.
+     * @throws FhirProofException Indicating why the update failed.
+     */
+    public WriteResponse update(String resource, String id, Resource instance, ReturnPreference preference) throws FhirProofException {
+        Resource copy = newVersion(instance);
+        Lock lock = getLock(resource).writeLock();
+        lock.lock();
+        try {
+            if (!store.containsKey(resource) || !store.get(resource).containsKey(id)) {
+                throw new FhirProofException(String.format("%s/%s not found", resource, id));
+            }
+            copy.getMeta().setVersionId(nextVersionId(resource, id, store.get(resource).get(id)));
+            store.get(resource).put(id, copy);
+            updateIndexes(resource, id, copy);
+        } finally {
+            lock.unlock();
         }
-        store.get(resource).put(id, copy);
+        return writeResponse(copy, 200, preference);
     }
 
     /**
@@ -188,14 +652,104 @@ public class FhirProofStore {
      * @throws FhirProofException Indicating why the delete failed.
      */
     public void delete(String resource, String id) throws FhirProofException {
-        if (!store.containsKey(resource) || !store.get(resource).containsKey(id)) {
-            throw new FhirProofException(String.format("%s/%s not found", resource, id));
+        Lock lock = getLock(resource).writeLock();
+        lock.lock();
+        try {
+            if (!store.containsKey(resource) || !store.get(resource).containsKey(id)) {
+                throw new FhirProofException(String.format("%s/%s not found", resource, id));
+            }
+            store.get(resource).remove(id);
+            updateIndexes(resource, id, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the resource to hand out for a stored version, which is a new copy of it unless reads are shared. With
+     * shared reads it is the one copy of the version handed out to every caller, made the first time it is read
+     * and kept with the version, so the stored version that the history and indexes are built from never leaves
+     * the store.
+     * @param stored The stored version
+     * @return The resource to return to the caller
+     */
+    private Resource share(Resource stored) {
+        if (!sharedReads) {
+            return stored.copy();
+        }
+        synchronized (stored) {
+            Resource shared = (Resource) stored.getUserData(SHARED_COPY);
+            if (shared == null) {
+                shared = stored.copy();
+                stored.setUserData(SHARED_COPY, shared);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Gets the resource to hand out for a stored version when only some of its elements were asked for. The
+     * projection is a new resource, whose elements are shared with the copy of the version handed out when reads
+     * are shared, and are copied otherwise.
+     * @param stored The stored version
+     * @param projection The elements to return, or <tt>null</tt> for the whole resource
+     * @return The resource to return to the caller
+     */
+    private Resource share(Resource stored, ElementProjection projection) {
+        return projection == null ? share(stored) : projection.project(sharedReads ? share(stored) : stored, sharedReads);
+    }
+
+    /**
+     * Copies a resource into the version to be stored, stamped with the time of the change and the version ID of a
+     * new resource. An update stamps the copy with the ID following the current version once it holds the lock.
+     * @param instance The resource being written
+     * @return The version to store
+     */
+    private static Resource newVersion(Resource instance) {
+        Resource copy = instance.copy();
+        copy.getMeta().setVersionId(FIRST_VERSION);
+        copy.getMeta().setLastUpdated(DateTimeType.now().getValue());
+        return copy;
+    }
+
+    /**
+     * Gets the version ID of the next version of a resource. Version IDs count up from 1 for each resource, and a
+     * deletion takes up a version as well. Only called while holding the write lock of the type, or by a batch
+     * entry that checks the current version is unchanged once it holds the lock.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @param current The current version of the resource, which may be staged by a transaction
+     * @return The next version ID
+     */
+    private String nextVersionId(String resource, String id, Resource current) {
+        ResourceMap resources = (ResourceMap) store.get(resource);
+        long latest = ResourceHistory.getNumber(current);
+        if (resources != null) {
+            latest = Math.max(latest, resources.getLatestNumber(id));
         }
-        store.get(resource).remove(id);
+        return String.valueOf(latest + 1);
     }
 
     /**
      * Performs a search for the matching FHIR resources.
+     *
+     * Without a <tt>_count</tt> or <tt>_offset</tt> the Bundle holds every match. Otherwise it holds one page of
+     * <tt>_count</tt> matches starting at <tt>_offset</tt>, with the total number of matches and <tt>next</tt> and
+     * <tt>previous</tt> links to the neighbouring pages. The links refer to a cursor holding the matching IDs and the
+     * snapshot of the store the search ran against, so reading another page neither runs the search again nor sees
+     * later changes. Pass the query of a link to this method, or the whole link to {@link #loadPage(String)}.
+     * Cursors expire after a few minutes without use.
+     *
+     * A <tt>_sort</tt> parameter orders the matches, and a page of sorted matches is selected from them rather than
+     * the matches being sorted in full.
+     *
+     * <tt>_elements</tt> and <tt>_summary=true|text|data</tt> return only some of the elements of each match, tagged
+     * SUBSETTED. Only those elements are copied, and the resources added by <tt>_include</tt> are returned whole.
+     *
+     * With <tt>_summary=count</tt> the Bundle only holds the number of matches, which is counted without reading
+     * any of the matching resources. <tt>_total=none</tt> leaves the total out, and <tt>_total=estimate</tt> lets a
+     * count be estimated from the search statistics rather than evaluating every candidate. Other searches know the
+     * accurate total anyway, so they give it for an estimate as well.
      * @param resource Resource type (e.g. Patient)
      * @param query FHIR formatted query string
      * @return A bundle containing the matching resources
@@ -203,314 +757,2144 @@ public class FhirProofStore {
      */
     public Bundle search(String resource, String query) throws FhirProofException {
         try {
-
-            // if the resource set being searched on hasn't been populated then create it
-            if (!store.containsKey(resource)) {
-                store.put(resource, new HashMap<>());
+            Map<String, List<String>> params = parseQuery(query);
+            SearchIncludes includes = new SearchIncludes(params);
+            String total = getTotal(params);
+            if (isCountSummary(params)) {
+                return inSnapshot(snapshot -> countMatches(resource, params, total, snapshot));
             }
-
-            Class clazz = Class.forName("org.hl7.fhir.r4.model." + resource);
-            List<SearchParamDefinition> paramDefs =
-                    Arrays.stream(clazz.getDeclaredFields())
-                            .map(f -> f.getDeclaredAnnotation(SearchParamDefinition.class))
-                            .filter(a -> a != null)
-                            .collect(Collectors.toList());
-
-            for (Class<?> i : ClassUtils.getAllInterfaces(clazz)) {
-                for (Field f : i.getDeclaredFields()) {
-                    SearchParamDefinition def = f.getDeclaredAnnotation(SearchParamDefinition.class);
-                    if (def != null) {
-                        paramDefs.add(def);
-                    }
-                }
+            ElementProjection projection = ElementProjection.of(fhirContext, params);
+            Integer count = getPaging(params, COUNT);
+            Integer offset = getPaging(params, OFFSET);
+            if (params.containsKey(CURSOR)) {
+                return readPage(resource, params.get(CURSOR).get(0), offset == null ? 0 : offset, count);
             }
 
-            Map<String, List<String>> params =
-                    Arrays.stream(query.split("&"))
-                            .collect(
-                                    Collectors.groupingBy(
-                                            p -> p.split("=")[0],
-                                            Collectors.mapping((String p) -> p.split("=")[1], Collectors.toList())));
-
-            // Loop through each search parameter (key) and compare to each resource to see if it
-            // satisfies the condition. If it does, then add that match to a paired down match list and
-            // repeat the process using the paired down match list and the next parameter.
-            List<String> matches = store.get(resource).keySet().stream().collect(Collectors.toList());
-            List<String> revIncludeQueries = null;
-            for (String key : params.keySet()) {
-                if (key.equals("_revinclude")) {
-                    // Just flag that we want to do a RevInclude after we do the
-                    // initial matching and then continue to skip this parameter
-                    revIncludeQueries = params.get(key);
-                    continue;
-                }
-
-                List<String> ands = new ArrayList<>();
-                List<String> ors = new ArrayList<>();
-
-                // Build the list(s) of conditions from the parameter structure
-                for (String value : params.get(key)) {
-                    if (value.contains(",")) {
-                        ors.addAll(Arrays.asList(value.split(",")));
-                    } else {
-                        ands.add(value);
-                    }
-                }
-
-                // Look for a search parameter definition attribute that defines this parameter
-                Optional<SearchParamDefinition> paramDef =
-                        paramDefs.stream().filter(pd -> pd.name().equals(key)).findFirst();
-                String path;
-                if (!paramDef.isPresent()) {
-                    throw new FhirProofException(
-                            String.format("No search parameter found for '%s'", key));
-                } else if (paramDef.get().path().equals("")) {
-                    switch (paramDef.get().name()) {
-                        case "_id":
-                            path = String.format("%s.id", resource);
-                            break;
-                        default:
-                            throw new FhirProofException(
-                                    String.format(
-                                            "Universal parameter of '%s' is not supported", paramDef.get().name()));
-                    }
-                } else {
-                    path = paramDef.get().path();
-                }
-
-                List<String> workingMatches = new ArrayList<>();
-                for (String id : matches) {
-                    // Use a FHIR Path evaluation engine to extract the actual data field for the resource
-                    List<Base> base = pathEngine.evaluate(store.get(resource).get(id), path);
-                    if (!evaluators.containsKey(paramDef.get().type())) {
-                        throw new FHIRException(
-                                String.format(
-                                        "No SearchEvaluator defined for '%s' searches", paramDef.get().type()));
-                    }
-                    // get the ISearchEvaluator for this type of parameter and call the evaluate method
-                    if (evaluators.get(paramDef.get().type()).evaluate(base, ands, ors)) {
-                        workingMatches.add(id);
+            if (count == null && offset == null) {
+                return inSnapshot(snapshot -> {
+                    // Apply the search parameters in the order the planner chose, narrowing the matches down
+                    // with each parameter
+                    List<String> matches = sort(
+                            resource, params, executePlan(createPlan(resource, params, snapshot), snapshot), snapshot);
+                    Bundle bundle = new Bundle();
+                    addMatches(bundle, resource, matches, includes, projection, snapshot);
+                    if (!TOTAL_NONE.equals(total)) {
+                        bundle.setTotal(bundle.getEntry().size());
                     }
-                }
-                matches = workingMatches;
+                    return bundle;
+                });
             }
 
-            Bundle bundle = new Bundle();
-            for (String id : matches) {
-                // Safety check to prevent duplicate primary matches
-                if (bundle.getEntry().stream().noneMatch(e -> e.getResource().getIdElement().getIdPart().equals(id))) {
-                    bundle.addEntry().setResource(store.get(resource).get(id).copy());
+            // the snapshot of a paged search stays open in its cursor if there are other pages to read
+            Snapshot snapshot = store.snapshot();
+            SearchCursor cursor = null;
+            try {
+                // only the matches up to the end of the page read are put in order
+                List<String> matches = inSnapshot(snapshot,
+                        s -> sort(resource, params, executePlan(createPlan(resource, params, s), s), s));
+                int from = offset == null ? 0 : offset;
+                int pageSize = count == null ? matches.size() : count;
+                if (pageSize > 0 && (from > 0 || (long) from + pageSize < matches.size())) {
+                    cursor = openCursor(resource, matches, includes, projection, !TOTAL_NONE.equals(total), snapshot);
+                    return readPage(cursor, from, pageSize);
                 }
-            }
-
-            if (revIncludeQueries != null) {
-                for (String id : matches) {
-                    for (String revInclude : revIncludeQueries) {
-                        String[] parts = revInclude.split(":");
-                        if (store().containsKey(parts[0])) {
-                            Bundle revSearch = search(parts[0], String.format("%s=%s/%s", parts[1], resource, id));
-                            revSearch.getEntry().forEach(e -> {
-                                // Check if we've already added this _revinclude hit to prevent duplicates
-                                // NOTE: you cannot use the default distinct, which uses the Object.equals(), since
-                                //      a copy is performed on the hits specifically to ensure that the returned
-                                //      resources refer to a unique reference, thus isolating the stored version
-                                //      from accidental changes
-                                if (bundle.getEntry().stream().noneMatch(existing -> existing.getResource().getId().equals(e.getResource().getId()))) {
-                                    bundle.addEntry().setResource(e.getResource());
-                                }
-                            });
-                        }
-                    }
+                Bundle bundle = inSnapshot(snapshot,
+                        s -> createPage(resource, matches, includes, projection, !TOTAL_NONE.equals(total), from, pageSize, s));
+                bundle.addLink().setRelation("self").setUrl(String.format("%s%s?%s", FHIR_STORE_URL, resource, query));
+                return bundle;
+            } finally {
+                if (cursor == null) {
+                    snapshot.close();
                 }
             }
-
-            bundle.setTotal(bundle.getEntry().size());
-            return bundle;
         } catch (Exception ex) {
             throw new FhirProofException(ex.getMessage());
         }
     }
 
     /**
-     * Performs a conditional create of a FHIR resource.
-     * @param type Resource type (e.g. Patient)
-     * @param resource The resource to create
-     * @param ifNoneExistsQuery If-None-Exists FHIR query
-     * @return ConditionalCreateResponse with the ID and status code of the request
-     * @throws FhirProofException Indicating why the conditional create failed.
+     * Reads a page of search results from the link of another page (e.g. its <tt>next</tt> link).
+     * @param url The link to the page
+     * @return A bundle containing the page
+     * @throws FhirProofException Indicating why the page could not be read, e.g. because its cursor expired
      */
-    public ConditionalCreateResponse conditionalCreate(String type, String resource, String ifNoneExistsQuery) throws FhirProofException {
-        try {
-            Class clazz = Class.forName("org.hl7.fhir.r4.model." + resource);
-            return conditionalCreate((Resource) FHIR_PARSER.parseResource(clazz, resource), ifNoneExistsQuery);
-        } catch (Exception ex) {
-            if (ex instanceof FhirProofException) {
-                throw (FhirProofException) ex;
-            }
-            throw new FhirProofException(ex.getMessage());
+    public Bundle loadPage(String url) throws FhirProofException {
+        String path = url.startsWith(FHIR_STORE_URL) ? url.substring(FHIR_STORE_URL.length()) : url;
+        String[] parts = path.split("\\?", 2);
+        if (parts.length < 2) {
+            throw new FhirProofException(String.format("Status 400: '%s' is not a search link", url));
         }
+        return search(parts[0], parts[1]);
     }
 
     /**
-     * Performs a conditional create of a FHIR resource.
-     * @param resource The resource to create
-     * @param ifNoneExistsQuery If-None-Exists FHIR query
-     * @return ConditionalCreateResponse with the ID and status code of the request
+     * Performs a search for the matching FHIR resources, returning them as a lazy stream. The search parameters are
+     * only evaluated on a resource, and the resource only copied, when the stream gets to it, so a stream stopped
+     * early (e.g. by <tt>findFirst</tt> or <tt>limit</tt>) doesn't pay for the rest of the matches. The resources
+     * come in the order {@link #search(String, String)} returns them, <tt>_count</tt> and <tt>_offset</tt> limit
+     * and skip them, and <tt>_elements</tt> and <tt>_summary</tt> project them, but there are no includes, no
+     * sorting and no counts.
+     *
+     * The stream reads the store as of when it was created, holding a snapshot until it is closed or consumed to
+     * the end, so use it in a try-with-resources block.
+     * @param resource Resource type (e.g. Patient)
+     * @param query FHIR formatted query string
+     * @return A stream of the matching resources
+     * @throws FhirProofException Indicating why the search failed.
      */
-    public ConditionalCreateResponse conditionalCreate(Resource resource, String ifNoneExistsQuery) {
-        try {
-            String type = resource.getResourceType().name();
-            String id;
-            int status;
-            Bundle search = search(type, ifNoneExistsQuery);
-
-            if (search.getEntry().size() == 0) {
-                id = create(resource);
-                status = 201;
-            } else if (search.getEntry().size() == 1) {
-                Resource match = search.getEntryFirstRep().getResource();
-                id = match.getIdElement().getIdPart();
-                status = 200;
-            } else {
-                return new ConditionalCreateResponse("Multiple matches found for conditional create", 412);
+    public Stream<Resource> searchStream(String resource, String query) throws FhirProofException {
+        Map<String, List<String>> params = parseQuery(query);
+        for (String name : params.keySet()) {
+            if (RESULT_PARAMETERS.contains(name) && !name.equals(COUNT) && !name.equals(OFFSET)
+                    && !ElementProjection.PARAMETERS.contains(name)) {
+                throw new FhirProofException(String.format("Status 400: %s is not supported by streaming searches", name));
             }
-            return new ConditionalCreateResponse(id, status);
-        } catch (Exception ex) {
-            return new ConditionalCreateResponse(ex.getMessage(), 500);
         }
-    }
+        if (isCountSummary(params)) {
+            throw new FhirProofException(String.format(
+                    "Status 400: %s=%s is not supported by streaming searches", ElementProjection.SUMMARY, ElementProjection.SUMMARY_COUNT));
+        }
+        ElementProjection projection = ElementProjection.of(fhirContext, params);
+        Integer count = getPaging(params, COUNT);
+        Integer offset = getPaging(params, OFFSET);
 
-    /**
-     * Executes a FHIR server operation defined for the given path and name.
-     *
-     * Note that the output of this method is dependant on the specific implementation being
-     * invoked. Please consult the documentation for the specific {@link IOperationExecutor}
-     * for the specifics on what type of output is returned.
-     *
-     * @param path Server path of the operation (e.g. Patient/[id])
-     * @param operation Operation name without $ sign (e.g. everything)
-     * @param parameters Any additional input needed for the operation
-     * @param <T> Operation output
-     * @return The result of the operation
-     * @throws FhirProofException Indicating why the operation failed.
-     */
-    public <T> T executeOperation(String path, String operation, String parameters)
-            throws FhirProofException {
+        Snapshot snapshot = store.snapshot();
         try {
-            if (!executors.containsKey(operation)) {
-                throw new FhirProofException(String.format("No operation defined for '%s'", operation));
+            Stream<String> ids = streamPlan(inSnapshot(snapshot, s -> createPlan(resource, params, s)), snapshot);
+            if (offset != null) {
+                ids = ids.skip(offset);
+            }
+            if (count != null) {
+                ids = ids.limit(count);
             }
 
-            IOperationExecutor<T> executor = executors.get(operation);
-            return executor.execute(path, operation, parameters, store);
+            // release the snapshot as soon as the last match has been read, in case the stream is never closed
+            Iterator<String> matches = ids.iterator();
+            Iterator<Resource> resources = new Iterator<Resource>() {
+                @Override
+                public boolean hasNext() {
+                    boolean hasNext = matches.hasNext();
+                    if (!hasNext) {
+                        snapshot.close();
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public Resource next() {
+                    return share(snapshot.get(resource, matches.next()), projection);
+                }
+            };
+            return StreamSupport.stream(
+                    Spliterators.spliteratorUnknownSize(resources, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(snapshot::close);
         } catch (Exception ex) {
+            snapshot.close();
+            if (ex instanceof FhirProofException) {
+                throw (FhirProofException) ex;
+            }
             throw new FhirProofException(ex.getMessage());
         }
     }
 
     /**
-     * Executes a FHIR transaction Bundle against the FHIR store.
-     * @param transaction Input transaction Bundle.
-     * @return A Bundle with the specific results of the transaction
-     * @throws FhirProofException Indicating why the transaction failed.
+     * Adds the matches of a search, and the resources they include and reverse include, to a Bundle. The includes
+     * are applied to all the matches at once, and then the <tt>:iterate</tt> ones to each round of included
+     * resources in turn, until a round includes nothing new.
+     * @param bundle Bundle to add to
+     * @param resource Resource type searched (e.g. Patient)
+     * @param matches IDs of the matches to add
+     * @param includes The include parameters of the search
+     * @param projection The elements of the matches to return, or <tt>null</tt> for the whole matches
+     * @param snapshot Snapshot of the store being searched
+     * @throws Exception Indicating why the includes could not be looked up
      */
-    public Bundle executeTransaction(Bundle transaction) throws FhirProofException {
-
+    private void addMatches(Bundle bundle, String resource, List<String> matches, SearchIncludes includes,
+                            ElementProjection projection, Snapshot snapshot) throws Exception {
+        // entries are keyed on Type/id, so each resource is added once however often it is matched or included,
+        // which also ends the iteration
+        Set<String> added = new HashSet<>();
+        Map<String, List<String>> round = new LinkedHashMap<>();
+        for (String id : matches) {
+            if (added.add(resource + "/" + id)) {
+                // only the matches are projected, the resources they include are returned whole
+                bundle.addEntry().setResource(share(snapshot.get(resource, id), projection));
+                round.computeIfAbsent(resource, k -> new ArrayList<>()).add(id);
+            }
+        }
+
+        boolean first = true;
+        while (!round.isEmpty() && (first || includes.isIterated())) {
+            Map<String, List<String>> next = new LinkedHashMap<>();
+            for (String include : includes.getIncludes(first)) {
+                addReferenced(bundle, include, round, added, next, snapshot);
+            }
+            for (String revInclude : includes.getRevIncludes(first)) {
+                addReferring(bundle, revInclude, round, added, next, snapshot);
+            }
+            round = next;
+            first = false;
+        }
+    }
+
+    /**
+     * Adds the resources a round of resources refer to through an include (e.g. Encounter:subject:Patient). The
+     * references of the whole round are collected first and grouped by target type, so each type is looked up once.
+     * @param bundle Bundle to add to
+     * @param include The include, the source type and reference parameter optionally followed by a target type
+     * @param round The resources to include from, by type
+     * @param added The resources already in the Bundle, as Type/id
+     * @param next The resources added, by type, to which this adds
+     * @param snapshot Snapshot of the store being searched
+     * @throws Exception Indicating why the references could not be evaluated
+     */
+    private void addReferenced(Bundle bundle, String include, Map<String, List<String>> round, Set<String> added,
+                               Map<String, List<String>> next, Snapshot snapshot) throws Exception {
+        String[] parts = include.split(":");
+        if (parts.length < 2) {
+            throw new FhirProofException(String.format("Status 400: Invalid _include '%s'", include));
+        }
+        List<String> sources = round.get(parts[0]);
+        if (sources == null) {
+            return;
+        }
+        SearchParameter paramDef = getParameter(ResourceTypeRegistry.getDefinition(parts[0]), parts[1]);
+        if (!ReferenceEvaluator.PARAM_TYPE.equals(paramDef.getType())) {
+            throw new FhirProofException(String.format("Status 400: '%s' is not a reference parameter", parts[1]));
+        }
+
+        IPathAccessor accessor = getAccessor(paramDef.getPath());
+        Map<String, Set<String>> targets = new LinkedHashMap<>();
+        for (Resource source : snapshot.get(parts[0], sources).values()) {
+            for (Base base : accessor.evaluate(source)) {
+                if (!(base instanceof Reference) || !((Reference) base).hasReference()) {
+                    continue;
+                }
+                String reference = ((Reference) base).getReference();
+                IdType target = new IdType(reference);
+                // only references to resources in this store can be included
+                if (target.isAbsolute() && !reference.startsWith(FHIR_STORE_URL)) {
+                    continue;
+                }
+                if (!target.hasResourceType() || !target.hasIdPart()
+                        || (parts.length > 2 && !parts[2].equals(target.getResourceType()))) {
+                    continue;
+                }
+                targets.computeIfAbsent(target.getResourceType(), k -> new LinkedHashSet<>()).add(target.getIdPart());
+            }
+        }
+
+        for (Map.Entry<String, Set<String>> type : targets.entrySet()) {
+            for (Map.Entry<String, Resource> target : snapshot.get(type.getKey(), type.getValue()).entrySet()) {
+                if (added.add(type.getKey() + "/" + target.getKey())) {
+                    bundle.addEntry().setResource(share(target.getValue()));
+                    next.computeIfAbsent(type.getKey(), k -> new ArrayList<>()).add(target.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the resources referring to a round of resources through a reverse include (e.g. Encounter:subject).
+     * @param bundle Bundle to add to
+     * @param revInclude The reverse include, the referring type and its reference parameter
+     * @param round The resources to include from, by type
+     * @param added The resources already in the Bundle, as Type/id
+     * @param next The resources added, by type, to which this adds
+     * @param snapshot Snapshot of the store being searched
+     * @throws Exception Indicating why the references could not be evaluated
+     */
+    private void addReferring(Bundle bundle, String revInclude, Map<String, List<String>> round, Set<String> added,
+                              Map<String, List<String>> next, Snapshot snapshot) throws Exception {
+        String[] parts = revInclude.split(":");
+        if (parts.length < 2) {
+            throw new FhirProofException(String.format("Status 400: Invalid _revinclude '%s'", revInclude));
+        }
+        if (!store.containsKey(parts[0])) {
+            return;
+        }
+        Set<String> targets = new LinkedHashSet<>();
+        for (Map.Entry<String, List<String>> type : round.entrySet()) {
+            for (String id : type.getValue()) {
+                targets.add(type.getKey() + "/" + id);
+            }
+        }
+        // look up the resources referring to any of the round at once, rather than once per resource
+        SearchParameter revParam = getParameter(ResourceTypeRegistry.getDefinition(parts[0]), parts[1]);
+        for (String revId : findReferring(parts[0], revParam, targets, snapshot)) {
+            if (added.add(parts[0] + "/" + revId)) {
+                bundle.addEntry().setResource(share(snapshot.get(parts[0], revId)));
+                next.computeIfAbsent(parts[0], k -> new ArrayList<>()).add(revId);
+            }
+        }
+    }
+
+    /**
+     * Builds one page of the matches of a search, along with the resources they include.
+     * @param resource Resource type searched (e.g. Patient)
+     * @param matches IDs of all the matches of the search
+     * @param includes The include parameters of the search
+     * @param projection The elements of the matches to return, or <tt>null</tt> for the whole matches
+     * @param total False to leave the total out of the page
+     * @param offset Index of the first match on the page
+     * @param count Number of matches on the page
+     * @param snapshot Snapshot of the store being searched
+     * @return A bundle containing the page, its total being the number of matches of the whole search
+     * @throws Exception Indicating why the includes could not be looked up
+     */
+    private Bundle createPage(String resource, List<String> matches, SearchIncludes includes, ElementProjection projection,
+                              boolean total, int offset, int count, Snapshot snapshot) throws Exception {
+        int from = Math.min(offset, matches.size());
+        int to = (int) Math.min(matches.size(), (long) from + count);
+        Bundle bundle = new Bundle();
+        addMatches(bundle, resource, matches.subList(from, to), includes, projection, snapshot);
+        if (total) {
+            bundle.setTotal(matches.size());
+        }
+        return bundle;
+    }
+
+    /**
+     * Reads a page of a search through the cursor a link to the page refers to.
+     * @param resource Resource type searched (e.g. Patient)
+     * @param cursorId ID of the cursor
+     * @param offset Index of the first match on the page
+     * @param count Number of matches on the page, or <tt>null</tt> for all the remaining matches
+     * @return A bundle containing the page
+     * @throws Exception Indicating why the page could not be read
+     */
+    private Bundle readPage(String resource, String cursorId, int offset, Integer count) throws Exception {
+        SearchCursor cursor = getCursor(cursorId);
+        if (cursor == null) {
+            throw new FhirProofException(String.format("Status 410: Search cursor '%s' has expired", cursorId));
+        }
+        if (!cursor.getResource().equals(resource)) {
+            throw new FhirProofException(
+                    String.format("Status 400: Search cursor '%s' is for %s searches", cursorId, cursor.getResource()));
+        }
+        return readPage(cursor, offset, count == null ? cursor.getMatches().size() : count);
+    }
+
+    /**
+     * Reads a page of a search through its cursor, linking it to the neighbouring pages.
+     * @param cursor Cursor of the search
+     * @param offset Index of the first match on the page
+     * @param count Number of matches on the page
+     * @return A bundle containing the page
+     * @throws Exception Indicating why the page could not be read
+     */
+    private Bundle readPage(SearchCursor cursor, int offset, int count) throws Exception {
+        // the cursor can't be closed while the page is read from its snapshot
+        synchronized (cursor) {
+            if (cursor.isClosed()) {
+                throw new FhirProofException(String.format("Status 410: Search cursor '%s' has expired", cursor.getId()));
+            }
+            Bundle bundle = inSnapshot(cursor.getSnapshot(), snapshot -> createPage(cursor.getResource(), cursor.getMatches(),
+                    cursor.getIncludes(), cursor.getProjection(), cursor.hasTotal(), offset, count, snapshot));
+
+            int total = cursor.getMatches().size();
+            int from = Math.min(offset, total);
+            bundle.addLink().setRelation("self").setUrl(pageLink(cursor, from, count));
+            if (count > 0 && (long) from + count < total) {
+                bundle.addLink().setRelation("next").setUrl(pageLink(cursor, from + count, count));
+            }
+            if (count > 0 && from > 0) {
+                bundle.addLink().setRelation("previous").setUrl(pageLink(cursor, Math.max(0, from - count), count));
+            }
+            return bundle;
+        }
+    }
+
+    private static String pageLink(SearchCursor cursor, int offset, int count) {
+        return String.format("%s%s?%s=%s&%s=%d&%s=%d",
+                FHIR_STORE_URL, cursor.getResource(), CURSOR, cursor.getId(), OFFSET, offset, COUNT, count);
+    }
+
+    /**
+     * Opens a cursor over the matches of a paged search, closing the cursors that expired.
+     * @param resource Resource type searched (e.g. Patient)
+     * @param matches IDs of all the matches of the search
+     * @param includes The include parameters of the search
+     * @param projection The elements of the matches to return, or <tt>null</tt> for the whole matches
+     * @param total False to leave the total out of the pages
+     * @param snapshot Snapshot the search ran against, which is closed along with the cursor
+     * @return The cursor
+     */
+    private SearchCursor openCursor(String resource, List<String> matches, SearchIncludes includes,
+                                    ElementProjection projection, boolean total, Snapshot snapshot) {
+        long now = System.currentTimeMillis();
+        SearchCursor cursor = new SearchCursor(
+                UUID.randomUUID().toString(), resource, matches, includes, projection, total, snapshot, now);
+        List<SearchCursor> expired;
+        synchronized (cursors) {
+            cursors.put(cursor.getId(), cursor);
+            expired = expireCursors(now);
+        }
+        expired.forEach(SearchCursor::close);
+        return cursor;
+    }
+
+    /**
+     * Looks up the cursor of a paged search, closing the cursors that expired.
+     * @param cursorId ID of the cursor
+     * @return The cursor, or <tt>null</tt> if it expired
+     */
+    private SearchCursor getCursor(String cursorId) {
+        long now = System.currentTimeMillis();
+        List<SearchCursor> expired;
+        SearchCursor cursor;
+        synchronized (cursors) {
+            expired = expireCursors(now);
+            cursor = cursors.get(cursorId);
+            if (cursor != null) {
+                cursor.touch(now);
+            }
+        }
+        expired.forEach(SearchCursor::close);
+        return cursor;
+    }
+
+    /**
+     * Takes the cursors unused for too long, or beyond the most that are kept open, out of the open cursors. Only
+     * called while holding the lock of the open cursors.
+     * @param now The current time
+     * @return The cursors taken out, to be closed once the lock is released
+     */
+    private List<SearchCursor> expireCursors(long now) {
+        List<SearchCursor> expired = new ArrayList<>();
+        // the least recently used cursors come first, so the expired ones are all at the start
+        for (Iterator<SearchCursor> open = cursors.values().iterator(); open.hasNext(); ) {
+            SearchCursor cursor = open.next();
+            if (cursors.size() <= MAX_CURSORS && !cursor.isExpired(now, CURSOR_TIME_TO_LIVE)) {
+                break;
+            }
+            open.remove();
+            expired.add(cursor);
+        }
+        return expired;
+    }
+
+    /**
+     * Gets the value of a paging parameter of a search.
+     * @param params Search parameters and their values
+     * @param name Name of the paging parameter (e.g. _count)
+     * @return The value, or <tt>null</tt> if the search does not have the parameter
+     * @throws FhirProofException If the value is not a non-negative integer
+     */
+    private static Integer getPaging(Map<String, List<String>> params, String name) throws FhirProofException {
+        List<String> values = params.get(name);
+        if (values == null) {
+            return null;
+        }
+        try {
+            int value = Integer.parseInt(values.get(0));
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below along with negative values
+        }
+        throw new FhirProofException(String.format("Status 400: %s must be a non-negative integer", name));
+    }
+
+    /**
+     * Gets how a search gives its total number of matches.
+     * @param params Search parameters and their values
+     * @return The <tt>_total</tt> of the search, <tt>accurate</tt> if it has none
+     * @throws FhirProofException If the value is not one of none, estimate or accurate
+     */
+    private static String getTotal(Map<String, List<String>> params) throws FhirProofException {
+        List<String> values = params.get(TOTAL);
+        if (values == null) {
+            return TOTAL_ACCURATE;
+        }
+        String total = values.get(0);
+        if (!total.equals(TOTAL_NONE) && !total.equals(TOTAL_ESTIMATE) && !total.equals(TOTAL_ACCURATE)) {
+            throw new FhirProofException(String.format("Status 400: Unknown %s '%s'", TOTAL, total));
+        }
+        return total;
+    }
+
+    /**
+     * Indicates whether a search only asks for its number of matches.
+     * @param params Search parameters and their values
+     * @return True if the search has <tt>_summary=count</tt>
+     */
+    private static boolean isCountSummary(Map<String, List<String>> params) {
+        List<String> values = params.get(ElementProjection.SUMMARY);
+        return values != null && values.get(0).equals(ElementProjection.SUMMARY_COUNT);
+    }
+
+    /**
+     * Counts the matches of a search for <tt>_summary=count</tt>. Only the IDs of the matches are collected, so none
+     * of the matching resources are copied, and when the indexes answer every parameter the candidates they found
+     * are the matches without any resource being read at all.
+     * @param resource Resource type searched (e.g. Patient)
+     * @param params Search parameters and their values
+     * @param total How the total is to be given (e.g. estimate)
+     * @param snapshot Snapshot of the store being searched
+     * @return A bundle with the number of matches as its total and no entries
+     * @throws Exception Indicating why the search failed
+     */
+    private Bundle countMatches(String resource, Map<String, List<String>> params, String total, Snapshot snapshot)
+            throws Exception {
+        ResourceTypeRegistry.getDefinition(resource);
+        Bundle bundle = new Bundle();
+        if (TOTAL_NONE.equals(total)) {
+            return bundle;
+        }
+        if (RESULT_PARAMETERS.containsAll(params.keySet())) {
+            // every resource of the type matches, so they are counted without listing them
+            Lock lock = getLock(resource).readLock();
+            lock.lock();
+            try {
+                return bundle.setTotal(snapshot.count(resource));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        SearchPlan plan = createPlan(resource, params, snapshot);
+        if (TOTAL_ESTIMATE.equals(total)) {
+            return bundle.setTotal(estimateMatches(plan, snapshot));
+        }
+        return bundle.setTotal(executePlan(plan, snapshot).size());
+    }
+
+    /**
+     * Estimates the number of matches of a search plan for <tt>_total=estimate</tt>. The candidates found by the
+     * indexes are counted, and each parameter left to evaluate is taken to match the fraction of them the search
+     * statistics recorded for it, a parameter without statistics first being tried on a sample of the candidates.
+     * A plan with no more candidates than the sample is run instead.
+     * @param plan The plan of the search
+     * @param snapshot Snapshot of the store being searched
+     * @return The estimated number of matches
+     * @throws Exception Indicating why a parameter could not be evaluated
+     */
+    private int estimateMatches(SearchPlan plan, Snapshot snapshot) throws Exception {
+        List<String> candidates = plan.getCandidates();
+        if (candidates.size() <= SAMPLE_SIZE) {
+            return executePlan(plan, snapshot).size();
+        }
+        double estimate = candidates.size();
+        for (SearchPlan.Step step : plan.getSteps()) {
+            // the indexed parameters already narrowed the candidates down, the inexact ones as far as they could
+            if (step.isIndexed()) {
+                continue;
+            }
+            double selectivity = statistics.getSelectivity(plan.getResource(), step.getName());
+            if (selectivity < 0) {
+                scan(plan.getResource(), step, candidates.subList(0, SAMPLE_SIZE), snapshot);
+                selectivity = statistics.getSelectivity(plan.getResource(), step.getName());
+            }
+            estimate *= selectivity;
+        }
+        return (int) Math.round(estimate);
+    }
+
+    /**
+     * Plans a search without running it, showing the order its parameters would be applied in and whether each
+     * is answered by a search index or by evaluating the resources.
+     * @param resource Resource type (e.g. Patient)
+     * @param query FHIR formatted query string
+     * @return The plan the search would follow
+     * @throws FhirProofException Indicating why the search could not be planned.
+     */
+    public SearchPlan plan(String resource, String query) throws FhirProofException {
+        try {
+            Map<String, List<String>> params = parseQuery(query);
+            return inSnapshot(snapshot -> createPlan(resource, params, snapshot));
+        } catch (Exception ex) {
+            throw new FhirProofException(ex.getMessage());
+        }
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) {
+        // keep the parameters in query order, which the planner falls back on for equally selective ones
+        return Arrays.stream(query.split("&"))
+                .collect(
+                        Collectors.groupingBy(
+                                p -> p.split("=")[0],
+                                LinkedHashMap::new,
+                                Collectors.mapping((String p) -> p.split("=")[1], Collectors.toList())));
+    }
+
+    /**
+     * Puts the matches of a search in the order of its <tt>_sort</tt> parameter, a comma separated list of search
+     * parameters that each sort in descending order when prefixed with '-' (e.g. _sort=-date,code). The value each
+     * match is sorted on is read from the index of the parameter when there is one, and is otherwise extracted from
+     * the match, once. The matches are only put in order as far as they are read (see {@link SortedMatches}).
+     * @param resource Resource type searched (e.g. Patient)
+     * @param params Search parameters and their values
+     * @param matches IDs of the matches, in the order they were found
+     * @param snapshot Snapshot of the store being searched
+     * @return The matches in order, or as they were found if the search isn't sorted
+     * @throws Exception Indicating why the matches could not be sorted
+     */
+    private List<String> sort(String resource, Map<String, List<String>> params, List<String> matches, Snapshot snapshot)
+            throws Exception {
+        if (!params.containsKey(SORT)) {
+            return matches;
+        }
+        List<String> names = new ArrayList<>();
+        for (String value : params.get(SORT)) {
+            names.addAll(Arrays.asList(value.split(",")));
+        }
+
+        ResourceTypeDefinition typeDef = ResourceTypeRegistry.getDefinition(resource);
+        List<SearchParameter> sortParams = new ArrayList<>();
+        boolean[] descending = new boolean[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            descending[i] = names.get(i).startsWith("-");
+            SearchParameter paramDef = getParameter(typeDef, descending[i] ? names.get(i).substring(1) : names.get(i));
+            if (!(evaluators.get(paramDef.getType()) instanceof BaseEvaluator)) {
+                throw new FhirProofException(String.format("Status 400: Cannot sort on '%s'", paramDef.getName()));
+            }
+            sortParams.add(paramDef);
+        }
+        if (matches.size() < 2) {
+            return matches;
+        }
+
+        Comparable<?>[][] keys = new Comparable<?>[matches.size()][sortParams.size()];
+        for (int i = 0; i < sortParams.size(); i++) {
+            addSortKeys(resource, sortParams.get(i), descending[i], matches, keys, i, snapshot);
+        }
+        return new SortedMatches(matches, keys, descending);
+    }
+
+    /**
+     * Gets the value each of the matches of a search is sorted on for one sort parameter.
+     * @param resource Resource type searched (e.g. Patient)
+     * @param paramDef The sort parameter
+     * @param descending True if the parameter sorts in descending order
+     * @param matches IDs of the matches
+     * @param keys Receives the value of each match, at its position in the matches and the position of the parameter
+     * @param column Position of the parameter in the <tt>_sort</tt> parameter
+     * @param snapshot Snapshot of the store being searched
+     * @throws Exception Indicating why the values could not be extracted
+     */
+    private void addSortKeys(String resource, SearchParameter paramDef, boolean descending, List<String> matches,
+                             Comparable<?>[][] keys, int column, Snapshot snapshot) throws Exception {
+        Set<String> extracted = null;
+        if (indexing) {
+            Lock lock = getLock(resource).readLock();
+            lock.lock();
+            try {
+                ISearchIndex index = getIndex(resource, paramDef);
+                if (index instanceof ISortIndex) {
+                    // as for matching, the index only has the values of the resources that haven't changed since
+                    // the snapshot
+                    extracted = snapshot.getChanged(resource);
+                    for (int row = 0; row < matches.size(); row++) {
+                        if (!extracted.contains(matches.get(row))) {
+                            keys[row][column] = ((ISortIndex) index).getSortKey(matches.get(row), descending);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        IPathAccessor accessor = getAccessor(paramDef.getPath());
+        BaseEvaluator evaluator = (BaseEvaluator) evaluators.get(paramDef.getType());
+        for (int row = 0; row < matches.size(); row++) {
+            String id = matches.get(row);
+            if (extracted == null || extracted.contains(id)) {
+                keys[row][column] = getSortKey(paramDef, evaluator, accessor.evaluate(snapshot.get(resource, id)), descending);
+            }
+        }
+    }
+
+    /**
+     * Gets the value a resource is sorted on, the same value the index of the parameter would give.
+     * @param paramDef The sort parameter
+     * @param evaluator Evaluator of the parameter
+     * @param values The values the parameter path selects from the resource
+     * @param descending True if the parameter sorts in descending order
+     * @return The lowest value, or the highest when sorting in descending order, or <tt>null</tt> if there is none
+     * @throws Exception Indicating why the values could not be compared
+     */
+    @SuppressWarnings("unchecked")
+    private static Comparable<?> getSortKey(SearchParameter paramDef, BaseEvaluator evaluator, List<Base> values,
+                                            boolean descending) throws Exception {
+        List<Comparable<?>> candidates = new ArrayList<>();
+        for (Base value : values) {
+            switch (paramDef.getType()) {
+                case DateEvaluator.PARAM_TYPE:
+                    // the earliest start sorts first, or the latest end when descending
+                    for (DateRange range : DateRange.of(value)) {
+                        candidates.add(descending ? range.getHigh() : range.getLow());
+                    }
+                    break;
+                case NumberEvaluator.PARAM_TYPE:
+                    for (NumberRange range : NumberRange.of(value)) {
+                        BigDecimal boundary = descending ? range.getHigh() : range.getLow();
+                        candidates.add(boundary != null ? boundary : descending ? range.getLow() : range.getHigh());
+                    }
+                    break;
+                case StringEvaluator.PARAM_TYPE:
+                    for (String string : evaluator.getComparisonValues(value)) {
+                        candidates.add(StringEvaluator.normalize(string));
+                    }
+                    break;
+                default:
+                    candidates.addAll(evaluator.getComparisonValues(value));
+            }
+        }
+
+        Comparable<Object> key = null;
+        for (Comparable<?> candidate : candidates) {
+            Comparable<Object> comparable = (Comparable<Object>) candidate;
+            if (key == null || (descending ? comparable.compareTo(key) > 0 : comparable.compareTo(key) < 0)) {
+                key = comparable;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Builds the list(s) of conditions from the values of a search parameter.
+     * @param values Values the parameter was given in the query
+     * @param ands Receives the conditions that all have to be satisfied
+     * @param ors Receives the conditions of which one has to be satisfied
+     */
+    private static void splitConditions(List<String> values, List<String> ands, List<String> ors) {
+        for (String value : values) {
+            if (value.contains(",")) {
+                ors.addAll(Arrays.asList(value.split(",")));
+            } else {
+                ands.add(value);
+            }
+        }
+    }
+
+    /**
+     * Orders the parameters of a search. Indexed parameters are looked up straight away, smallest result first,
+     * and together produce the candidates. The other parameters are ordered by the fraction of resources they
+     * matched in earlier searches. Parameters that haven't been searched on yet are first tried on a sample of
+     * the candidates when there are enough of them for the order to matter.
+     * @param resource Resource type (e.g. Patient)
+     * @param params Search parameters and their values
+     * @param snapshot Snapshot of the store being searched
+     * @return The plan for the search
+     * @throws Exception Indicating why the search could not be planned
+     */
+    private SearchPlan createPlan(String resource, Map<String, List<String>> params, Snapshot snapshot) throws Exception {
+        ResourceTypeDefinition typeDef = ResourceTypeRegistry.getDefinition(resource);
+
+        List<SearchPlan.Step> indexed = new ArrayList<>();
+        List<SearchPlan.Step> scanned = new ArrayList<>();
+        for (Map.Entry<String, List<String>> param : params.entrySet()) {
+            if (RESULT_PARAMETERS.contains(param.getKey())) {
+                // not a search parameter, the includes and paging are done after the initial matching
+                continue;
+            }
+
+            List<String> ands = new ArrayList<>();
+            List<String> ors = new ArrayList<>();
+            splitConditions(param.getValue(), ands, ors);
+
+            // a modifier follows the parameter name (e.g. name:exact)
+            String[] keyParts = param.getKey().split(":", 2);
+            String modifier = keyParts.length > 1 ? keyParts[1] : null;
+            SearchParameter paramDef = getParameter(typeDef, keyParts[0]);
+            SearchPlan.Step step = createStep(resource, paramDef, modifier, ands, ors, snapshot);
+            if (step.isIndexed()) {
+                indexed.add(step);
+            } else {
+                scanned.add(step);
+            }
+        }
+
+        // intersect the indexed results starting from the smallest
+        indexed.sort(Comparator.comparingInt(step -> step.getFound().size()));
+        List<String> candidates = null;
+        for (SearchPlan.Step step : indexed) {
+            if (candidates == null) {
+                candidates = new ArrayList<>(step.getFound());
+            } else {
+                candidates = candidates.stream().filter(step.getFound()::contains).collect(Collectors.toList());
+            }
+        }
+        if (candidates == null) {
+            candidates = snapshot.getIds(resource);
+        }
+
+        List<SearchPlan.Step> estimated = new ArrayList<>();
+        for (SearchPlan.Step step : scanned) {
+            double selectivity = statistics.getSelectivity(resource, step.getName());
+            if (selectivity < 0 && scanned.size() > 1 && candidates.size() > SAMPLE_SIZE) {
+                scan(resource, step, candidates.subList(0, SAMPLE_SIZE), snapshot);
+                selectivity = statistics.getSelectivity(resource, step.getName());
+            }
+            double estimate = (selectivity < 0 ? 1 : selectivity) * candidates.size();
+            estimated.add(new SearchPlan.Step(
+                    step.getParameter(), step.getModifier(), step.getAnds(), step.getOrs(), null, false, estimate));
+        }
+        // the sort is stable, so equally selective parameters keep their query order
+        estimated.sort(Comparator.comparingDouble(SearchPlan.Step::getEstimate));
+
+        List<SearchPlan.Step> steps = new ArrayList<>(indexed);
+        steps.addAll(estimated);
+        return new SearchPlan(resource, steps, candidates);
+    }
+
+    /**
+     * Creates the step of a search plan for one search parameter, looking the conditions up in the search index
+     * of the parameter if it has one.
+     * @param resource Resource type (e.g. Patient)
+     * @param paramDef Search parameter the conditions are for
+     * @param modifier Search parameter modifier (e.g. exact), or <tt>null</tt> if there is none
+     * @param ands List of 'and' conditions
+     * @param ors List of 'or' conditions
+     * @param snapshot Snapshot of the store being searched
+     * @return The step, which is indexed if the index could answer the conditions
+     * @throws Exception Indicating why the conditions could not be looked up
+     */
+    private SearchPlan.Step createStep(String resource, SearchParameter paramDef, String modifier, List<String> ands, List<String> ors,
+                                       Snapshot snapshot) throws Exception {
+        if (!evaluators.containsKey(paramDef.getType())) {
+            throw new FHIRException(
+                    String.format(
+                            "No SearchEvaluator defined for '%s' searches", paramDef.getType()));
+        }
+        if (indexing) {
+            // the indexes are changed by writes, so they are only read under the lock of the type
+            Lock lock = getLock(resource).readLock();
+            lock.lock();
+            try {
+                ISearchIndex index = getIndex(resource, paramDef);
+                Set<String> found = index == null ? null : index.find(ands, ors, modifier);
+                if (found != null) {
+                    // the index holds the latest version of each resource, so the resources changed since the
+                    // snapshot are taken out of its result and evaluated as of the snapshot instead
+                    found = new HashSet<>(found);
+                    Set<String> changed = snapshot.getChanged(resource);
+                    if (!changed.isEmpty()) {
+                        found.removeAll(changed);
+                        changed.removeIf(id -> snapshot.get(resource, id) == null);
+                        found.addAll(changed);
+                    }
+                    return new SearchPlan.Step(paramDef, modifier, ands, ors, found, index.isExact(), found.size(), changed);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return new SearchPlan.Step(paramDef, modifier, ands, ors, null, false, 0);
+    }
+
+    /**
+     * Runs a search plan.
+     * @param plan The plan to run
+     * @param snapshot Snapshot of the store being searched
+     * @return IDs of the resources that satisfy every parameter of the plan
+     * @throws Exception Indicating why a parameter could not be evaluated
+     */
+    private List<String> executePlan(SearchPlan plan, Snapshot snapshot) throws Exception {
+        List<String> matches = plan.getCandidates();
+        if (matches.size() >= parallelScanThreshold) {
+            return parallelScan(plan, snapshot);
+        }
+        for (SearchPlan.Step step : plan.getSteps()) {
+            if (matches.isEmpty()) {
+                break;
+            }
+            // the candidates already satisfy the exact indexed steps, the rest are evaluated on them
+            if (!step.isExact()) {
+                matches = scan(plan.getResource(), step, matches, snapshot);
+            } else if (!step.getChanged().isEmpty()) {
+                // apart from the resources that changed since the snapshot, which the index can't answer for
+                Set<String> changed = step.getChanged();
+                Set<String> verified = new HashSet<>(scan(plan.getResource(), step,
+                        matches.stream().filter(changed::contains).collect(Collectors.toList()), snapshot));
+                matches = matches.stream()
+                        .filter(id -> !changed.contains(id) || verified.contains(id))
+                        .collect(Collectors.toList());
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Runs a search plan on the fork/join pool of the store. The candidates are split into chunks, and each worker
+     * evaluates every step of the plan on each resource of its chunk in turn. The chunks are joined back together
+     * in candidate order, so the result is the same as when the plan is run serially.
+     * @param plan The plan to run
+     * @param snapshot Snapshot of the store being searched
+     * @return IDs of the resources that satisfy every parameter of the plan
+     * @throws Exception Indicating why a parameter could not be evaluated
+     */
+    private List<String> parallelScan(SearchPlan plan, Snapshot snapshot) throws Exception {
+        RowMatcher matcher = new RowMatcher(plan);
+        List<SearchPlan.Step> steps = matcher.steps;
+        List<String> candidates = plan.getCandidates();
+        if (steps.isEmpty() || candidates.isEmpty()) {
+            return candidates;
+        }
+
+        ForkJoinPool scanPool = pool;
+        int chunkSize = Math.max(MIN_SCAN_CHUNK, candidates.size() / (scanPool.getParallelism() * 4));
+        ParallelScan scan = new ParallelScan(plan.getResource(), matcher, candidates, chunkSize, snapshot);
+        ScanTask task = scan.new ScanTask(0, scan.chunks.length);
+        // a search already running on the pool (e.g. in a batch) works on its own chunks rather than waiting
+        if (ForkJoinTask.getPool() == scanPool) {
+            task.invoke();
+        } else {
+            scanPool.invoke(task);
+        }
+        if (scan.failure.get() != null) {
+            throw scan.failure.get();
+        }
+
+        for (int i = 0; i < steps.size(); i++) {
+            statistics.record(plan.getResource(), steps.get(i).getName(), scan.evaluated.get(i), scan.matched.get(i));
+        }
+        List<String> matches = new ArrayList<>();
+        for (List<String> chunk : scan.chunks) {
+            matches.addAll(chunk);
+        }
+        return matches;
+    }
+
+    /**
+     * The state shared by the workers of a parallel scan. Each chunk of the candidates is scanned by one worker,
+     * which stores its matches under the index of the chunk.
+     */
+    private class ParallelScan {
+        private final String resource;
+        private final RowMatcher matcher;
+        private final List<String> candidates;
+        private final int chunkSize;
+        private final Snapshot snapshot;
+        private final List<String>[] chunks;
+        private final AtomicLongArray evaluated;
+        private final AtomicLongArray matched;
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        ParallelScan(String resource, RowMatcher matcher, List<String> candidates, int chunkSize, Snapshot snapshot) {
+            this.resource = resource;
+            this.matcher = matcher;
+            this.candidates = candidates;
+            this.chunkSize = chunkSize;
+            this.snapshot = snapshot;
+            this.chunks = new List[(candidates.size() + chunkSize - 1) / chunkSize];
+            this.evaluated = new AtomicLongArray(matcher.steps.size());
+            this.matched = new AtomicLongArray(matcher.steps.size());
+        }
+
+        /**
+         * Evaluates the steps on the resources of one chunk. References are resolved in the snapshot being
+         * searched, as they are on the thread that started the search.
+         */
+        void scanChunk(int chunk) {
+            int steps = matcher.steps.size();
+            long[] chunkEvaluated = new long[steps];
+            long[] chunkMatched = new long[steps];
+            List<String> chunkMatches = new ArrayList<>();
+            Snapshot outer = searching.get();
+            searching.set(snapshot);
+            try {
+                int end = Math.min(candidates.size(), (chunk + 1) * chunkSize);
+                for (int c = chunk * chunkSize; c < end && failure.get() == null; c++) {
+                    String id = candidates.get(c);
+                    if (matcher.matches(id, snapshot.get(resource, id), chunkEvaluated, chunkMatched)) {
+                        chunkMatches.add(id);
+                    }
+                }
+            } catch (Exception ex) {
+                failure.compareAndSet(null, ex);
+            } finally {
+                if (outer == null) {
+                    searching.remove();
+                } else {
+                    searching.set(outer);
+                }
+            }
+            chunks[chunk] = chunkMatches;
+            for (int i = 0; i < steps; i++) {
+                evaluated.addAndGet(i, chunkEvaluated[i]);
+                matched.addAndGet(i, chunkMatched[i]);
+            }
+        }
+
+        /**
+         * Scans a range of chunks, splitting it in half until a single chunk is left.
+         */
+        private class ScanTask extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            ScanTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    scanChunk(from);
+                    return;
+                }
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScanTask(from, middle), new ScanTask(middle, to));
+            }
+        }
+    }
+
+    /**
+     * Evaluates the steps of a search plan on one resource at a time, for scans that go through the candidates
+     * one by one rather than step by step.
+     */
+    private class RowMatcher {
+        private final List<SearchPlan.Step> steps;
+        private final IPathAccessor[] stepAccessors;
+        private final ISearchEvaluator[] stepEvaluators;
+
+        RowMatcher(SearchPlan plan) {
+            // the exact indexed steps only have to be evaluated on the resources that changed since the snapshot
+            this.steps = plan.getSteps().stream()
+                    .filter(step -> !step.isExact() || !step.getChanged().isEmpty())
+                    .collect(Collectors.toList());
+            this.stepAccessors = new IPathAccessor[steps.size()];
+            this.stepEvaluators = new ISearchEvaluator[steps.size()];
+            for (int i = 0; i < steps.size(); i++) {
+                SearchParameter paramDef = steps.get(i).getParameter();
+                stepAccessors[i] = getAccessor(paramDef.getPath());
+                stepEvaluators[i] = evaluators.get(paramDef.getType());
+            }
+        }
+
+        /**
+         * Evaluates the steps on a resource, stopping at the first step it fails.
+         * @param id ID of the resource
+         * @param instance The resource as of the snapshot being searched
+         * @param evaluated Number of resources each step was evaluated on, added to unless <tt>null</tt>
+         * @param matched Number of resources that satisfied each step, added to unless <tt>null</tt>
+         * @return True if the resource satisfies every step
+         * @throws Exception Indicating why a step could not be evaluated
+         */
+        boolean matches(String id, Resource instance, long[] evaluated, long[] matched) throws Exception {
+            for (int i = 0; i < steps.size(); i++) {
+                SearchPlan.Step step = steps.get(i);
+                if (step.isExact() && !step.getChanged().contains(id)) {
+                    continue;
+                }
+                List<Base> base = stepAccessors[i].evaluate(instance);
+                boolean matches = stepEvaluators[i].evaluate(base, step.getAnds(), step.getOrs(), step.getModifier());
+                if (evaluated != null) {
+                    evaluated[i]++;
+                    matched[i] += matches ? 1 : 0;
+                }
+                if (!matches) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Streams the IDs of the resources matching a search plan. Each candidate is only evaluated when the stream
+     * gets to it, so a stream that is stopped early doesn't evaluate the rest.
+     * @param plan The plan to run
+     * @param snapshot Snapshot of the store being searched, which has to stay open while the stream is consumed
+     * @return IDs of the resources that satisfy every parameter of the plan, in candidate order
+     */
+    private Stream<String> streamPlan(SearchPlan plan, Snapshot snapshot) {
+        RowMatcher matcher = new RowMatcher(plan);
+        return plan.getCandidates().stream().filter(id -> {
+            try {
+                // the stream can be consumed outside of any search, so references are resolved in its snapshot
+                return inSnapshot(snapshot, s -> matcher.matches(id, s.get(plan.getResource(), id), null, null));
+            } catch (Exception ex) {
+                throw new FHIRException(ex.getMessage(), ex);
+            }
+        });
+    }
+
+    /**
+     * Looks up a search parameter that can be searched on.
+     * @param typeDef Definition of the resource type being searched
+     * @param name Search parameter name (e.g. identifier)
+     * @return The search parameter
+     * @throws FhirProofException If the parameter is not defined or not supported
+     */
+    private SearchParameter getParameter(ResourceTypeDefinition typeDef, String name) throws FhirProofException {
+        SearchParameter paramDef = typeDef.getParameter(name);
+        if (paramDef == null) {
+            throw new FhirProofException(
+                    String.format("No search parameter found for '%s'", name));
+        } else if (paramDef.getPath() == null) {
+            throw new FhirProofException(
+                    String.format("Universal parameter of '%s' is not supported", paramDef.getName()));
+        }
+        return paramDef;
+    }
+
+    /**
+     * Finds the resources whose reference parameter refers to any of a set of resources, in a single pass over the
+     * referring type rather than one search per referenced resource.
+     * @param resource Referring resource type (e.g. Encounter)
+     * @param paramDef Reference search parameter of the referring type (e.g. subject)
+     * @param targets The referenced resources (e.g. Patient/123)
+     * @param snapshot Snapshot of the store being searched
+     * @return IDs of the referring resources
+     * @throws Exception Indicating why the references could not be evaluated
+     */
+    private List<String> findReferring(String resource, SearchParameter paramDef, Set<String> targets, Snapshot snapshot)
+            throws Exception {
+        List<String> references = new ArrayList<>(targets);
+        ISearchEvaluator evaluator = evaluators.get(paramDef.getType());
+        if (evaluator == null || evaluator.getClass() != ReferenceEvaluator.class) {
+            // a custom evaluator may compare references differently, so it is given them as 'or' conditions
+            return applyParameter(resource, paramDef, null, Collections.emptyList(), references, snapshot);
+        }
+
+        // the index answers the 'or' conditions with one lookup each
+        SearchPlan.Step step = createStep(resource, paramDef, null, Collections.emptyList(), references, snapshot);
+        List<String> candidates = step.isIndexed() ? new ArrayList<>(step.getFound()) : snapshot.getIds(resource);
+        if (step.isExact() && step.getChanged().isEmpty()) {
+            return candidates;
+        }
+
+        // the default evaluator matches a Type/id condition on equality, so the references of each candidate are
+        // looked up in the targets instead of being compared with each of them
+        ReferenceEvaluator referenceEvaluator = (ReferenceEvaluator) evaluator;
+        IPathAccessor accessor = getAccessor(paramDef.getPath());
+        List<String> referring = new ArrayList<>();
+        for (String id : candidates) {
+            if (step.isExact() && !step.getChanged().contains(id)) {
+                referring.add(id);
+                continue;
+            }
+            for (Base base : accessor.evaluate(snapshot.get(resource, id))) {
+                if (referenceEvaluator.getComparisonValues(base).stream().anyMatch(targets::contains)) {
+                    referring.add(id);
+                    break;
+                }
+            }
+        }
+        return referring;
+    }
+
+    /**
+     * Finds the resources that satisfy the conditions of one search parameter.
+     * @param resource Resource type (e.g. Patient)
+     * @param paramDef Search parameter the conditions are for
+     * @param modifier Search parameter modifier (e.g. exact), or <tt>null</tt> if there is none
+     * @param ands List of 'and' conditions
+     * @param ors List of 'or' conditions
+     * @param snapshot Snapshot of the store being searched
+     * @return IDs of the resources that satisfy the conditions
+     * @throws Exception Indicating why the conditions could not be evaluated
+     */
+    private List<String> applyParameter(String resource, SearchParameter paramDef, String modifier, List<String> ands, List<String> ors,
+                                        Snapshot snapshot) throws Exception {
+        // When the parameter is indexed, start from the resources the index found instead of evaluating
+        // every resource
+        SearchPlan.Step step = createStep(resource, paramDef, modifier, ands, ors, snapshot);
+        List<String> candidates = step.isIndexed() ? new ArrayList<>(step.getFound()) : snapshot.getIds(resource);
+        return executePlan(new SearchPlan(resource, Collections.singletonList(step), candidates), snapshot);
+    }
+
+    /**
+     * Evaluates the conditions of one search parameter against each of a list of resources, recording how
+     * selective the parameter was.
+     * @param resource Resource type (e.g. Patient)
+     * @param step Search parameter and conditions to evaluate
+     * @param matches IDs of the resources to evaluate
+     * @param snapshot Snapshot of the store the resources are read from
+     * @return IDs of the resources that satisfy the conditions
+     * @throws Exception Indicating why the conditions could not be evaluated
+     */
+    private List<String> scan(String resource, SearchPlan.Step step, List<String> matches, Snapshot snapshot) throws Exception {
+        IPathAccessor accessor = getAccessor(step.getParameter().getPath());
+        ISearchEvaluator evaluator = evaluators.get(step.getParameter().getType());
+        List<String> workingMatches = new ArrayList<>();
+        for (String id : matches) {
+            // Use the compiled FHIR Path accessor to extract the actual data field for the resource
+            List<Base> base = accessor.evaluate(snapshot.get(resource, id));
+            // get the ISearchEvaluator for this type of parameter and call the evaluate method
+            if (evaluator.evaluate(base, step.getAnds(), step.getOrs(), step.getModifier())) {
+                workingMatches.add(id);
+            }
+        }
+        statistics.record(resource, step.getName(), matches.size(), workingMatches.size());
+        return workingMatches;
+    }
+
+    /**
+     * Gets the parsed form of a FHIR Path expression, parsing it only the first time it is requested.
+     * @param path FHIR Path expression (e.g. Patient.name | Practitioner.name)
+     * @return The parsed expression
+     */
+    private ExpressionNode getExpression(String path) {
+        return expressions.computeIfAbsent(path, p -> pathEngines.get().parse(p));
+    }
+
+    /**
+     * Creates a FHIR Path engine for a thread, sharing the worker context and host services of the store with the
+     * engines of the other threads.
+     * @return The new engine
+     */
+    private FHIRPathEngine newPathEngine() {
+        FHIRPathEngine engine = new FHIRPathEngine(workerContext);
+        engine.setHostServices(hostServices);
+        return engine;
+    }
+
+    /**
+     * Gets the accessor for a FHIR Path expression. Simple expressions are compiled into direct element accessors
+     * while anything more complex is evaluated by the FHIR Path engine.
+     * @param path FHIR Path expression (e.g. Patient.name | Practitioner.name)
+     * @return The accessor for the expression
+     */
+    private IPathAccessor getAccessor(String path) {
+        return accessors.computeIfAbsent(path, p -> {
+            IPathAccessor accessor = PathCompiler.compile(p, hostServices);
+            if (accessor == null) {
+                ExpressionNode expression = getExpression(p);
+                // evaluated with the engine of the calling thread, so scan workers evaluate in parallel
+                accessor = base -> pathEngines.get().evaluate(base, expression);
+            }
+            return accessor;
+        });
+    }
+
+    /**
+     * Gets the search index for a parameter, building it from the current contents of the store on first use.
+     * @param resource Resource type (e.g. Patient)
+     * @param param Search parameter to get the index of
+     * @return The index, or <tt>null</tt> if indexing is disabled or the parameter cannot be indexed
+     */
+    private ISearchIndex getIndex(String resource, SearchParameter param) {
+        if (!indexing) {
+            return null;
+        }
+        HashMap<String, ISearchIndex> typeIndexes = indexes.computeIfAbsent(resource, k -> new HashMap<>());
+        // searches only hold the read lock of the type, so concurrent searches can get here together
+        synchronized (typeIndexes) {
+            if (typeIndexes.containsKey(param.getName())) {
+                return typeIndexes.get(param.getName());
+            }
+
+            ISearchIndex index = createIndex(param);
+            if (index != null && store.containsKey(resource)) {
+                try {
+                    for (Map.Entry<String, Resource> entry : store.get(resource).entrySet()) {
+                        index.add(entry.getKey(), entry.getValue());
+                    }
+                } catch (Exception ex) {
+                    // leave values the index can't handle to the evaluator
+                    index = null;
+                }
+            }
+            // a null entry records that the parameter can't be indexed so it isn't attempted again
+            typeIndexes.put(param.getName(), index);
+            return index;
+        }
+    }
+
+    private ISearchIndex createIndex(SearchParameter param) {
+        ISearchEvaluator evaluator = evaluators.get(param.getType());
+        if (evaluator == null) {
+            return null;
+        }
+        // custom evaluators may compare differently than the index would, so only index the defaults
+        if (evaluator.getClass() == TokenEvaluator.class) {
+            return new TokenIndex(getAccessor(param.getPath()), (TokenEvaluator) evaluator);
+        } else if (evaluator.getClass() == StringEvaluator.class) {
+            return new StringIndex(getAccessor(param.getPath()), (StringEvaluator) evaluator);
+        } else if (evaluator.getClass() == DateEvaluator.class) {
+            return new DateIndex(getAccessor(param.getPath()));
+        } else if (evaluator.getClass() == NumberEvaluator.class) {
+            return new NumberIndex(getAccessor(param.getPath()));
+        } else if (evaluator.getClass() == ReferenceEvaluator.class) {
+            // references are indexed whether or not their target resolves, since the target can come and go
+            // independently of the referring resource, and matches are then checked against the full path
+            String unresolvedPath = PathCompiler.withoutResolveFilters(param.getPath());
+            return new ReferenceIndex(
+                    getAccessor(unresolvedPath), (ReferenceEvaluator) evaluator, unresolvedPath.equals(param.getPath()));
+        }
+        return null;
+    }
+
+    /**
+     * Brings the search indexes of a resource type up to date with a change to one resource. Only called while
+     * holding the write lock of the type, which keeps searches of the type out of the indexes.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the changed resource
+     * @param instance The new version of the resource, or <tt>null</tt> if it was deleted
+     */
+    private void updateIndexes(String resource, String id, Resource instance) {
+        // read once, as the indexes can be discarded by another thread between a check and a get
+        HashMap<String, ISearchIndex> typeIndexes = indexes.get(resource);
+        if (typeIndexes == null) {
+            return;
+        }
+        for (Map.Entry<String, ISearchIndex> entry : typeIndexes.entrySet()) {
+            ISearchIndex index = entry.getValue();
+            if (index == null) {
+                continue;
+            }
+            index.remove(id);
+            if (instance != null) {
+                try {
+                    index.add(id, instance);
+                } catch (Exception ex) {
+                    entry.setValue(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs a conditional create of a FHIR resource.
+     * @param type Resource type (e.g. Patient)
+     * @param resource The resource to create
+     * @param ifNoneExistsQuery If-None-Exists FHIR query
+     * @return ConditionalCreateResponse with the ID and status code of the request
+     * @throws FhirProofException Indicating why the conditional create failed.
+     */
+    public ConditionalCreateResponse conditionalCreate(String type, String resource, String ifNoneExistsQuery) throws FhirProofException {
+        try {
+            Class<? extends Resource> clazz = ResourceTypeRegistry.getDefinition(type).getResourceClass();
+            return conditionalCreate(FHIR_PARSER.parseResource(clazz, resource), ifNoneExistsQuery);
+        } catch (Exception ex) {
+            if (ex instanceof FhirProofException) {
+                throw (FhirProofException) ex;
+            }
+            throw new FhirProofException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Performs a conditional create of a FHIR resource.
+     * @param resource The resource to create
+     * @param ifNoneExistsQuery If-None-Exists FHIR query
+     * @return ConditionalCreateResponse with the ID and status code of the request
+     */
+    public ConditionalCreateResponse conditionalCreate(Resource resource, String ifNoneExistsQuery) {
+        try {
+            String type = resource.getResourceType().name();
+            String id;
+            int status;
+
+            // hold the write lock between the search and the create, so two threads can't both create
+            Lock lock = getLock(type).writeLock();
+            lock.lock();
+            try {
+                // only whether there are none, one or more matches matters, so the search stops at the second
+                Map<String, List<String>> params = parseQuery(ifNoneExistsQuery);
+                List<String> found = inSnapshot(snapshot ->
+                        streamPlan(createPlan(type, params, snapshot), snapshot).limit(2).collect(Collectors.toList()));
+
+                if (found.size() == 0) {
+                    id = create(resource);
+                    status = 201;
+                } else if (found.size() == 1) {
+                    id = found.get(0);
+                    status = 200;
+                } else {
+                    return new ConditionalCreateResponse("Multiple matches found for conditional create", 412);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new ConditionalCreateResponse(id, status);
+        } catch (Exception ex) {
+            return new ConditionalCreateResponse(ex.getMessage(), 500);
+        }
+    }
+
+    /**
+     * Executes a FHIR server operation defined for the given path and name.
+     *
+     * Note that the output of this method is dependant on the specific implementation being
+     * invoked. Please consult the documentation for the specific {@link IOperationExecutor}
+     * for the specifics on what type of output is returned.
+     *
+     * @param path Server path of the operation (e.g. Patient/[id])
+     * @param operation Operation name without $ sign (e.g. everything)
+     * @param parameters Any additional input needed for the operation
+     * @param <T> Operation output
+     * @return The result of the operation
+     * @throws FhirProofException Indicating why the operation failed.
+     */
+    public <T> T executeOperation(String path, String operation, String parameters)
+            throws FhirProofException {
+        try {
+            if (!executors.containsKey(operation)) {
+                throw new FhirProofException(String.format("No operation defined for '%s'", operation));
+            }
+
+            IOperationExecutor<T> executor = executors.get(operation);
+            // operations can read any type, so they are given a view of every type as of one snapshot, which
+            // reads the snapshot lazily rather than copying the store on every call
+            return inSnapshot(snapshot -> executor.execute(path, operation, parameters, snapshot.asMap()));
+        } catch (Exception ex) {
+            throw new FhirProofException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Executes a FHIR transaction or batch Bundle against the FHIR store.
+     *
+     * A transaction is all or nothing: if any entry fails none of the entries are written, and otherwise all of
+     * them become visible together. References to the full URL of another entry (e.g. urn:uuid:[uuid]) and
+     * conditional references (e.g. Patient?identifier=1234567) are resolved to the IDs of the stored resources.
+     *
+     * The entries of a batch are independent of each other and run in parallel on the fork/join pool of the
+     * store, except that entries for the same resource run one after the other in the order of the batch. Entries
+     * for different resources of the same type only wait for each other while their changes are published. Each
+     * batch entry succeeds or fails by itself, a failed entry responding with an OperationOutcome.
+     * @param transaction Input transaction or batch Bundle.
+     * @return A Bundle with the specific results of the transaction
+     * @throws FhirProofException Indicating why the transaction failed.
+     */
+    public Bundle executeTransaction(Bundle transaction) throws FhirProofException {
+        return executeTransaction(transaction, ReturnPreference.MINIMAL);
+    }
+
+    /**
+     * Executes a FHIR transaction or batch Bundle against the FHIR store, as {@link #executeTransaction(Bundle)}
+     * does. The responses to creates and updates always carry the location, ETag and time of the write, which
+     * are taken from the written version itself. The written resources are only copied into the responses when
+     * the representation is asked for.
+     * @param transaction Input transaction or batch Bundle.
+     * @param preference What the responses to creates, updates and deletes return besides their metadata
+     * @return A Bundle with the specific results of the transaction
+     * @throws FhirProofException Indicating why the transaction failed.
+     */
+    public Bundle executeTransaction(Bundle transaction, ReturnPreference preference) throws FhirProofException {
+
+        if (transaction.hasType() && transaction.getType() == Bundle.BundleType.BATCH) {
+            return processBatch(transaction, preference);
+        }
         if (!transaction.hasType() || transaction.getType() != Bundle.BundleType.TRANSACTION) {
-            throw new FhirProofException("Status 400: Bundle was not a Transaction");
+            throw new FhirProofException("Status 400: Bundle was not a Transaction or Batch");
         }
 
+        // keep every type the transaction touches locked until it is done
+        Set<String> types = new HashSet<>();
+        for (Bundle.BundleEntryComponent entry : transaction.getEntry()) {
+            types.addAll(getEntryTypes(entry));
+        }
+        List<Lock> acquired = lockTypes(types, true);
+        try {
+            return processTransaction(transaction, preference);
+        } finally {
+            unlock(acquired);
+        }
+    }
+
+    /**
+     * Sets the pool the entries of batches and parallel scans are run on, which is the common fork/join pool by
+     * default.
+     * @param pool The pool to run on
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the number of resources from which a search evaluates its parameters in parallel on the fork/join pool
+     * of the store. Parallel scans are off by default.
+     * @param threshold The fewest candidate resources to scan in parallel, or <tt>Integer.MAX_VALUE</tt> to
+     *                  always scan serially
+     */
+    public void setParallelScanThreshold(int threshold) {
+        this.parallelScanThreshold = threshold;
+    }
+
+    /**
+     * Stages the entries of a transaction in a write set, which is only published to the store once every entry
+     * has succeeded. Only called while holding the write locks of the types the transaction touches.
+     * @param transaction Input transaction Bundle
+     * @param preference What the responses to writes return besides their metadata
+     * @return A Bundle with the specific results of the transaction
+     * @throws FhirProofException Indicating why the transaction failed, in which case nothing was written
+     */
+    private Bundle processTransaction(Bundle transaction, ReturnPreference preference) throws FhirProofException {
         Bundle response = new Bundle();
         response.setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+        WriteSet writes = new WriteSet();
+        ReferenceResolver resolver = new ReferenceResolver((type, query) -> find(writes, type, query));
+        List<Bundle.BundleEntryComponent> represented = new ArrayList<>();
 
         for (Bundle.BundleEntryComponent entry : transaction.getEntry()) {
+            Bundle.BundleEntryComponent responseEntry = processEntry(entry, prepare(entry), writes, preference);
+            if (responseEntry != null) {
+                response.addEntry(responseEntry);
+                Bundle.HTTPVerb method = entry.getRequest().getMethod();
+                if (method == Bundle.HTTPVerb.POST || method == Bundle.HTTPVerb.PUT) {
+                    if (entry.hasFullUrl()) {
+                        // other entries refer to this one by its full URL until it has an ID
+                        resolver.addPlaceholder(entry.getFullUrl(),
+                                responseEntry.getResponse().getLocation().substring(FHIR_STORE_URL.length()));
+                    }
+                    if (responseEntry.hasResource()) {
+                        represented.add(responseEntry);
+                    }
+                }
+            }
+        }
+
+        // every placeholder is known once all the entries are staged, so the references are rewritten in one go
+        resolver.resolve(writes);
+        publish(writes);
+        detach(represented);
+        return response;
+    }
+
+    /**
+     * Runs the entries of a batch. Entries for different resources run in parallel, while the entries for the
+     * same resource are run in order by a single task.
+     * @param batch Input batch Bundle
+     * @param preference What the responses to writes return besides their metadata
+     * @return A Bundle with the result of each entry, in the order of the batch
+     */
+    private Bundle processBatch(Bundle batch, ReturnPreference preference) {
+        List<Bundle.BundleEntryComponent> entries = batch.getEntry();
+        Bundle.BundleEntryComponent[] responses = new Bundle.BundleEntryComponent[entries.size()];
+
+        // creates have no ID yet, so each one is independent of all the other entries
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            Bundle.BundleEntryRequestComponent request = entries.get(i).getRequest();
+            String key = request.getMethod() == Bundle.HTTPVerb.POST || !request.hasUrl()
+                    ? String.valueOf(i)
+                    : getBatchKey(request.getUrl());
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (List<Integer> group : groups.values()) {
+            tasks.add(pool.submit(() -> {
+                for (int i : group) {
+                    responses[i] = processBatchEntry(entries.get(i), preference);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (Bundle.BundleEntryComponent responseEntry : responses) {
+            response.addEntry(responseEntry);
+        }
+        return response;
+    }
+
+    /**
+     * Gets the resource a batch entry addresses, which the entries run in order for.
+     * @param url Request URL of the entry (e.g. Patient/123/_history/2 or Patient?identifier=1234567)
+     * @return The type and ID of the resource (e.g. Patient/123), or just the type if the URL names no ID
+     */
+    private static String getBatchKey(String url) {
+        String[] parts = url.split("\\?")[0].split("/");
+        return parts.length > 1 ? parts[0] + "/" + parts[1] : parts[0];
+    }
+
+    /**
+     * Runs a single batch entry as a transaction of its own.
+     *
+     * Most entries are staged without holding any lock, and only take the write lock of the types they write to
+     * publish, once they have checked that the resources they changed are still at the versions they were staged
+     * against. If another write got in between, the entry is staged again. Entries for different resources of one
+     * type are thus only serialized while publishing. A conditional create has to search and create as one, so it
+     * holds the write locks of its types throughout, and a read holds the read lock of its type.
+     * @param entry The batch entry
+     * @param preference What the response to a write returns besides its metadata
+     * @return The response to the entry, an OperationOutcome if it failed
+     */
+    private Bundle.BundleEntryComponent processBatchEntry(Bundle.BundleEntryComponent entry, ReturnPreference preference) {
+        try {
+            Resource prepared = prepare(entry);
             Bundle.BundleEntryRequestComponent request = entry.getRequest();
-            if (!request.hasMethod()) {
-                throw new FhirProofException("Status 400: Bundle Entry did not contain a request method");
-            }
-
-            Bundle.BundleEntryComponent responseEntry = new Bundle.BundleEntryComponent();
-            Bundle.BundleEntryResponseComponent responseComponent = new Bundle.BundleEntryResponseComponent();
-
-            if (request.getMethod() == Bundle.HTTPVerb.DELETE) {
-                String[] parts = request.getUrl().split("/");
-                Resource current = read(parts[0], parts[1]);
-                String version = current.getMeta().getVersionId();
-                Date lastUpdate = current.getMeta().getLastUpdated();
-                delete(parts[0], parts[1]);
-
-                responseComponent.setEtag(String.format("W/\"%s\"", version));
-                responseComponent.setLocation(FHIR_STORE_URL + request.getUrl());
-                responseComponent.setLastModified(lastUpdate);
-                responseComponent.setStatus("204 No Content");
-
-            } else if (request.getMethod() == Bundle.HTTPVerb.GET) {
-                String[] parts = request.getUrl().split("/");
-                Resource current = read(parts[0], parts[1]);
-                String version = current.getMeta().getVersionId();
-                Date lastUpdate = current.getMeta().getLastUpdated();
-
-                responseComponent.setEtag(String.format("W/\"%s\"", version));
-                responseComponent.setLocation(FHIR_STORE_URL + request.getUrl());
-                responseComponent.setLastModified(lastUpdate);
-                responseComponent.setStatus("200 OK");
-                responseEntry.setResource(current);
-
-            } else if (request.getMethod() == Bundle.HTTPVerb.PUT) {
-
-                Resource instance = entry.getResource();
-                String[] parts = request.getUrl().split("/");
-                String type = parts[0];
-                String id = parts[1];
-
-                update(type, id, instance);
-                Resource current = read(type, id);
-                String version = current.getMeta().getVersionId();
-                Date lastUpdate = current.getMeta().getLastUpdated();
-
-                responseComponent.setStatus("200 OK");
-                responseComponent.setEtag(String.format("W/\"%s\"", version));
-                responseComponent.setLocation(String.format("%s%s/%s", FHIR_STORE_URL, type, id));
-                responseComponent.setLastModified(lastUpdate);
-
-            } else if (request.getMethod() == Bundle.HTTPVerb.POST) {
-                if (!entry.hasResource()) {
-                    throw new FhirProofException("Status 400: PUT Transaction did not contain a resource");
+            boolean conditional = request.hasIfNoneExist();
+            boolean read = request.getMethod() == Bundle.HTTPVerb.GET;
+            Bundle.BundleEntryComponent responseEntry;
+            while (true) {
+                WriteSet writes = new WriteSet();
+                List<Lock> acquired = conditional || read
+                        ? lockTypes(getEntryTypes(entry), conditional)
+                        : Collections.emptyList();
+                try {
+                    responseEntry = processEntry(entry, prepared, writes, preference);
+                    new ReferenceResolver((type, query) -> find(writes, type, query)).resolve(writes);
+                    if (conditional) {
+                        publish(writes);
+                        break;
+                    }
+                } finally {
+                    unlock(acquired);
                 }
-                Resource resource = entry.getResource();
-
-                String id;
-                String status;
-                if (request.hasIfNoneExist()) {
-                    String params = request.getIfNoneExist();
-                    ConditionalCreateResponse storeResponse = conditionalCreate(resource, params);
-                    id = storeResponse.getResponse();
-                    if (storeResponse.getStatus() == 200) {
-                        status = "200 OK";
-                    } else if (storeResponse.getStatus() == 201) {
-                        status = "201 Created";
-                    } else {
-                        throw new FhirProofException(storeResponse.getResponse());
+                if (publishIfCurrent(writes)) {
+                    break;
+                }
+            }
+            if (responseEntry == null) {
+                throw new FhirProofException(
+                        String.format("Status 400: Request method %s is not supported", entry.getRequest().getMethod().toCode()));
+            }
+            if (entry.getRequest().getMethod() != Bundle.HTTPVerb.GET && responseEntry.hasResource()) {
+                detach(Collections.singletonList(responseEntry));
+            }
+            return responseEntry;
+        } catch (Exception ex) {
+            return errorEntry(ex);
+        }
+    }
+
+    /**
+     * Publishes a write set staged without holding the locks of its types, unless a resource it changes is no longer
+     * at the version the change was staged against.
+     * @param writes The write set to publish
+     * @return True if the write set was published, false if it has to be staged again
+     */
+    private boolean publishIfCurrent(WriteSet writes) {
+        List<Lock> acquired = lockTypes(writes.getTypes(), true);
+        try {
+            for (String resource : writes.getTypes()) {
+                Map<String, Resource> resources = store.get(resource);
+                for (Map.Entry<String, Resource> read : writes.getReads(resource).entrySet()) {
+                    // stored versions are replaced rather than changed, so an unchanged resource is the same instance
+                    Resource stored = resources == null ? null : resources.get(read.getKey());
+                    if (stored != read.getValue()) {
+                        return false;
                     }
+                }
+            }
+            publish(writes);
+            return true;
+        } finally {
+            unlock(acquired);
+        }
+    }
 
-                } else {
-                    id = create(resource);
-                    status = "201 Created";
+    /**
+     * Copies the resource of an entry into the version to be stored, if the entry writes one.
+     * @param entry Transaction or batch entry
+     * @return The version to store, or <tt>null</tt> if the entry has no resource to write
+     */
+    private static Resource prepare(Bundle.BundleEntryComponent entry) {
+        Bundle.HTTPVerb method = entry.getRequest().getMethod();
+        if (entry.hasResource() && (method == Bundle.HTTPVerb.PUT || method == Bundle.HTTPVerb.POST)) {
+            return newVersion(entry.getResource());
+        }
+        return null;
+    }
+
+    /**
+     * Stages a single transaction or batch entry in a write set.
+     * @param entry Transaction or batch entry
+     * @param prepared The version of the resource of the entry to store, from {@link #prepare}
+     * @param writes Write set to stage the changes of the entry in
+     * @param preference What the response to a write returns besides its metadata. The representation of a write
+     *                   is the staged version itself, which the caller must {@link #detach} once the references
+     *                   in it are resolved.
+     * @return The response to the entry, or <tt>null</tt> if the request method is not supported
+     * @throws FhirProofException Indicating why the entry failed
+     */
+    private Bundle.BundleEntryComponent processEntry(Bundle.BundleEntryComponent entry, Resource prepared, WriteSet writes,
+                                                     ReturnPreference preference) throws FhirProofException {
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        if (!request.hasMethod()) {
+            throw new FhirProofException("Status 400: Bundle Entry did not contain a request method");
+        }
+
+        Bundle.BundleEntryComponent responseEntry = new Bundle.BundleEntryComponent();
+        Bundle.BundleEntryResponseComponent responseComponent = new Bundle.BundleEntryResponseComponent();
+
+        if (request.getMethod() == Bundle.HTTPVerb.DELETE) {
+            String[] parts = request.getUrl().split("/");
+            Resource current = getCurrent(writes, parts[0], parts[1]);
+            if (current == null) {
+                throw new FhirProofException(String.format("%s/%s not found", parts[0], parts[1]));
+            }
+            checkIfMatch(request, parts[0], parts[1], current);
+            writes.delete(parts[0], parts[1]);
+
+            responseComponent.setEtag(String.format("W/\"%s\"", current.getMeta().getVersionId()));
+            responseComponent.setLocation(FHIR_STORE_URL + request.getUrl());
+            responseComponent.setLastModified(current.getMeta().getLastUpdated());
+            responseComponent.setStatus("204 No Content");
+            if (preference == ReturnPreference.OPERATION_OUTCOME) {
+                responseComponent.setOutcome(informationOutcome("Deleted", parts[0], parts[1]));
+            }
+
+        } else if (request.getMethod() == Bundle.HTTPVerb.GET) {
+            // a read may ask for only some elements, e.g. Patient/123?_elements=name
+            String[] url = request.getUrl().split("\\?", 2);
+            String[] parts = url[0].split("/");
+            ElementProjection projection = url.length > 1 ? ElementProjection.of(fhirContext, parseQuery(url[1])) : null;
+            Resource current = getCurrent(writes, parts[0], parts[1]);
+            if (parts.length > 3 && parts[2].equals(HISTORY)) {
+                // a read of one version, e.g. Patient/123/_history/2
+                current = getVersion(parts[0], parts[1], parts[3], current);
+            } else if (current == null) {
+                throw new FhirProofException(String.format("'%s/%s' not found", parts[0], parts[1]));
+            }
+
+            responseComponent.setEtag(String.format("W/\"%s\"", current.getMeta().getVersionId()));
+            responseComponent.setLocation(FHIR_STORE_URL + url[0]);
+            responseComponent.setLastModified(current.getMeta().getLastUpdated());
+            responseComponent.setStatus("200 OK");
+            responseEntry.setResource(share(current, projection));
+
+        } else if (request.getMethod() == Bundle.HTTPVerb.PUT) {
+
+            String[] parts = request.getUrl().split("/");
+            String type = parts[0];
+            String id = parts[1];
+
+            Resource current = getCurrent(writes, type, id);
+            if (current == null) {
+                throw new FhirProofException(String.format("%s/%s not found", type, id));
+            }
+            checkIfMatch(request, type, id, current);
+            if (prepared == null) {
+                throw new FhirProofException("Status 400: PUT Transaction did not contain a resource");
+            }
+            // the staged version is what gets stored, so the response is taken from it rather than a read
+            Resource staged = prepared;
+            staged.getMeta().setVersionId(nextVersionId(type, id, current));
+            writes.put(type, id, staged);
+
+            responseComponent.setStatus("200 OK");
+            responseComponent.setEtag(String.format("W/\"%s\"", staged.getMeta().getVersionId()));
+            responseComponent.setLocation(String.format("%s%s/%s", FHIR_STORE_URL, type, id));
+            responseComponent.setLastModified(staged.getMeta().getLastUpdated());
+            represent(responseEntry, staged, "Updated", preference);
+
+        } else if (request.getMethod() == Bundle.HTTPVerb.POST) {
+            if (!entry.hasResource()) {
+                throw new FhirProofException("Status 400: POST Transaction did not contain a resource");
+            }
+            Resource resource = entry.getResource();
+            String type = resource.getResourceType().name();
+
+            String id = null;
+            Resource current = null;
+            if (request.hasIfNoneExist()) {
+                // only whether there are none, one or more matches matters, so the search stops at the second
+                List<String> found = find(writes, type, request.getIfNoneExist(), 2);
+                if (found.size() > 1) {
+                    throw new FhirProofException("Multiple matches found for conditional create");
+                } else if (found.size() == 1) {
+                    id = found.get(0);
+                    current = getCurrent(writes, type, id);
                 }
-                Resource current = read(resource.getResourceType().name(), id);
-                String version = current.getMeta().getVersionId();
-                Date lastUpdate = current.getMeta().getLastUpdated();
-
-                responseComponent.setStatus(status);
-                responseComponent.setEtag(String.format("W/\"%s\"", version));
-                responseComponent.setLocation(String.format("%s%s/%s", FHIR_STORE_URL, resource.getResourceType().name(), id));
-                responseComponent.setLastModified(lastUpdate);
+            }
+
+            String status;
+            if (current == null) {
+                id = UUID.randomUUID().toString();
+                current = prepared;
+                current.setId(id);
+                writes.put(type, id, current);
+                status = "201 Created";
             } else {
+                status = "200 OK";
+            }
+
+            responseComponent.setStatus(status);
+            responseComponent.setEtag(String.format("W/\"%s\"", current.getMeta().getVersionId()));
+            responseComponent.setLocation(String.format("%s%s/%s", FHIR_STORE_URL, type, id));
+            responseComponent.setLastModified(current.getMeta().getLastUpdated());
+            represent(responseEntry, current, status.startsWith("201") ? "Created" : "Matched", preference);
+        } else {
+            return null;
+        }
+        responseEntry.setResponse(responseComponent);
+        return responseEntry;
+    }
+
+    /**
+     * Adds what the preference asks for to the response to a write.
+     * @param responseEntry Response to the write, with its response component already set
+     * @param written The version written, or matched by a conditional create
+     * @param action What the write did (e.g. Created)
+     * @param preference What the response returns besides its metadata
+     */
+    private static void represent(Bundle.BundleEntryComponent responseEntry, Resource written, String action,
+                                  ReturnPreference preference) {
+        if (preference == ReturnPreference.REPRESENTATION) {
+            responseEntry.setResource(written);
+        } else if (preference == ReturnPreference.OPERATION_OUTCOME) {
+            responseEntry.getResponse().setOutcome(
+                    informationOutcome(action, written.getResourceType().name(), written.getIdElement().getIdPart()));
+        }
+    }
+
+    /**
+     * Replaces the staged versions in the responses to writes with copies, so callers cannot change the store
+     * through them, unless reads are shared.
+     * @param responseEntries Responses holding the representations of writes
+     */
+    private void detach(List<Bundle.BundleEntryComponent> responseEntries) {
+        for (Bundle.BundleEntryComponent responseEntry : responseEntries) {
+            responseEntry.setResource(share(responseEntry.getResource()));
+        }
+    }
+
+    /**
+     * Builds the response to a create or update outside of a transaction.
+     * @param written The version written
+     * @param status Response HTTP status code
+     * @param preference What the response returns besides the metadata of the write
+     * @return The response to the write
+     */
+    private WriteResponse writeResponse(Resource written, int status, ReturnPreference preference) {
+        String type = written.getResourceType().name();
+        String id = written.getIdElement().getIdPart();
+        return new WriteResponse(id, written.getMeta().getVersionId(), written.getMeta().getLastUpdated(), status,
+                preference == ReturnPreference.REPRESENTATION ? share(written) : null,
+                preference == ReturnPreference.OPERATION_OUTCOME
+                        ? informationOutcome(status == 201 ? "Created" : "Updated", type, id)
+                        : null);
+    }
+
+    /**
+     * Builds the OperationOutcome describing a successful write.
+     * @param action What the write did (e.g. Created)
+     * @param type Resource type written
+     * @param id ID of the resource written
+     * @return An OperationOutcome with a single informational issue
+     */
+    private static OperationOutcome informationOutcome(String action, String type, String id) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(String.format("%s %s/%s", action, type, id));
+        return outcome;
+    }
+
+    /**
+     * Builds the response to a failed batch entry.
+     * @param ex Why the entry failed
+     * @return Response entry with the status of the failure and an OperationOutcome describing it
+     */
+    private static Bundle.BundleEntryComponent errorEntry(Exception ex) {
+        String message = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+        int status;
+        Matcher matcher = STATUS_MESSAGE.matcher(message);
+        if (matcher.matches()) {
+            status = Integer.parseInt(matcher.group(1));
+            message = matcher.group(2);
+        } else if (message.endsWith("not found")) {
+            status = 404;
+        } else if (message.startsWith("Multiple matches")) {
+            status = 412;
+        } else if (ex instanceof FhirProofException) {
+            status = 400;
+        } else {
+            status = 500;
+        }
+
+        OperationOutcome.IssueType issueType;
+        String reason;
+        switch (status) {
+            case 404:
+                issueType = OperationOutcome.IssueType.NOTFOUND;
+                reason = "Not Found";
+                break;
+            case 409:
+            case 412:
+                issueType = OperationOutcome.IssueType.CONFLICT;
+                reason = status == 409 ? "Conflict" : "Precondition Failed";
+                break;
+            case 500:
+                issueType = OperationOutcome.IssueType.EXCEPTION;
+                reason = "Internal Server Error";
+                break;
+            default:
+                issueType = OperationOutcome.IssueType.INVALID;
+                reason = "Bad Request";
+        }
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(issueType)
+                .setDiagnostics(message);
+        Bundle.BundleEntryComponent responseEntry = new Bundle.BundleEntryComponent();
+        responseEntry.getResponse()
+                .setStatus(String.format("%d %s", status, reason))
+                .setOutcome(outcome);
+        return responseEntry;
+    }
+
+    /**
+     * Gets the current version of a resource as a transaction sees it, which is the version staged by the
+     * transaction if there is one.
+     * @param writes Write set of the transaction
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @return The current version, or <tt>null</tt> if there is none
+     */
+    private Resource getCurrent(WriteSet writes, String resource, String id) {
+        if (writes.contains(resource, id)) {
+            return writes.get(resource, id);
+        }
+        Map<String, Resource> resources = store.get(resource);
+        Resource current = resources == null ? null : resources.get(id);
+        writes.addRead(resource, id, current);
+        return current;
+    }
+
+    /**
+     * Checks the If-Match condition of a transaction entry against the current version of the resource.
+     * @param request Request of the entry
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @param current The current version of the resource
+     * @throws FhirProofException If the resource is not at the version the entry expects
+     */
+    private static void checkIfMatch(Bundle.BundleEntryRequestComponent request, String resource, String id, Resource current)
+            throws FhirProofException {
+        if (!request.hasIfMatch()) {
+            return;
+        }
+        // the version is normally given as a weak ETag, e.g. W/"1"
+        String expected = request.getIfMatch().trim();
+        if (expected.startsWith("W/")) {
+            expected = expected.substring(2);
+        }
+        if (expected.length() > 1 && expected.startsWith("\"") && expected.endsWith("\"")) {
+            expected = expected.substring(1, expected.length() - 1);
+        }
+        if (!expected.equals(current.getMeta().getVersionId())) {
+            throw new FhirProofException(
+                    String.format("Status 412: %s/%s is not at version '%s'", resource, id, expected));
+        }
+    }
+
+    /**
+     * Finds the resources matching a query as a transaction sees them, with the versions staged by the
+     * transaction in place of the stored ones.
+     * @param writes Write set of the transaction
+     * @param resource Resource type (e.g. Patient)
+     * @param query FHIR formatted query string
+     * @return IDs of the matching resources
+     * @throws FhirProofException Indicating why the search failed.
+     */
+    private List<String> find(WriteSet writes, String resource, String query) throws FhirProofException {
+        return find(writes, resource, query, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds up to a number of the resources matching a query as a transaction sees them, stopping the search once
+     * that many are found.
+     * @param writes Write set of the transaction
+     * @param resource Resource type (e.g. Patient)
+     * @param query FHIR formatted query string
+     * @param limit The most matches to find
+     * @return IDs of the matching resources
+     * @throws FhirProofException Indicating why the search failed.
+     */
+    private List<String> find(WriteSet writes, String resource, String query, int limit) throws FhirProofException {
+        try {
+            Map<String, List<String>> params = parseQuery(query);
+            Map<String, Resource> staged = writes.getWrites(resource);
+            List<String> matches = inSnapshot(snapshot -> {
+                SearchPlan plan = createPlan(resource, params, snapshot);
+                // the whole search is run the usual way, a limited one stops once it has found enough
+                Stream<String> found = limit == Integer.MAX_VALUE
+                        ? executePlan(plan, snapshot).stream()
+                        : streamPlan(plan, snapshot);
+                return found.filter(id -> !staged.containsKey(id))
+                        .limit(limit)
+                        .collect(Collectors.toList());
+            });
+            for (Map.Entry<String, Resource> entry : staged.entrySet()) {
+                if (matches.size() >= limit) {
+                    break;
+                }
+                if (entry.getValue() != null && matches(resource, params, entry.getValue())) {
+                    matches.add(entry.getKey());
+                }
+            }
+            return matches;
+        } catch (Exception ex) {
+            if (ex instanceof FhirProofException) {
+                throw (FhirProofException) ex;
+            }
+            throw new FhirProofException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Evaluates the parameters of a search against a single resource.
+     * @param resource Resource type (e.g. Patient)
+     * @param params Search parameters and their values
+     * @param instance The resource to evaluate
+     * @return True if the resource satisfies every parameter
+     * @throws Exception Indicating why a parameter could not be evaluated
+     */
+    private boolean matches(String resource, Map<String, List<String>> params, Resource instance) throws Exception {
+        ResourceTypeDefinition typeDef = ResourceTypeRegistry.getDefinition(resource);
+        for (Map.Entry<String, List<String>> param : params.entrySet()) {
+            if (RESULT_PARAMETERS.contains(param.getKey())) {
                 continue;
             }
-            responseEntry.setResponse(responseComponent);
-            response.addEntry(responseEntry);
+            List<String> ands = new ArrayList<>();
+            List<String> ors = new ArrayList<>();
+            splitConditions(param.getValue(), ands, ors);
+
+            String[] keyParts = param.getKey().split(":", 2);
+            String modifier = keyParts.length > 1 ? keyParts[1] : null;
+            SearchParameter paramDef = getParameter(typeDef, keyParts[0]);
+            ISearchEvaluator evaluator = evaluators.get(paramDef.getType());
+            if (evaluator == null) {
+                throw new FHIRException(
+                        String.format(
+                                "No SearchEvaluator defined for '%s' searches", paramDef.getType()));
+            }
+            if (!evaluator.evaluate(getAccessor(paramDef.getPath()).evaluate(instance), ands, ors, modifier)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Publishes a write set to the store as a single commit, so snapshots see all of its changes or none of them,
+     * and brings the search indexes up to date with it. Only called while holding the write locks of the types
+     * in the write set.
+     * @param writes The write set to publish
+     */
+    private void publish(WriteSet writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        List<ResourceVersions.Write> batch = new ArrayList<>();
+        for (String resource : writes.getTypes()) {
+            ResourceMap resources = (ResourceMap) store.computeIfAbsent(resource, k -> new ResourceMap(versions));
+            for (Map.Entry<String, Resource> entry : writes.getWrites(resource).entrySet()) {
+                batch.add(new ResourceVersions.Write(resources, entry.getKey(), entry.getValue()));
+            }
+        }
+        versions.commit(batch);
+
+        for (String resource : writes.getTypes()) {
+            for (Map.Entry<String, Resource> entry : writes.getWrites(resource).entrySet()) {
+                updateIndexes(resource, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Resolves a reference against the store, as of the snapshot being searched if there is one.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @return The stored resource, or <tt>null</tt> if there is none
+     */
+    Resource resolve(String resource, String id) {
+        Snapshot snapshot = searching.get();
+        if (snapshot != null) {
+            return snapshot.get(resource, id);
+        }
+        Map<String, Resource> resources = store.get(resource);
+        return resources == null ? null : resources.get(id);
+    }
+
+    /**
+     * Runs a task against a snapshot of the latest committed version of the store, which references resolved
+     * during the task are looked up in as well.
+     * @param task Task to run
+     * @param <T> Result of the task
+     * @return The result of the task
+     * @throws Exception Indicating why the task failed
+     */
+    private <T> T inSnapshot(SnapshotTask<T> task) throws Exception {
+        try (Snapshot snapshot = store.snapshot()) {
+            return inSnapshot(snapshot, task);
+        }
+    }
+
+    /**
+     * Runs a task against a snapshot that is already open, which references resolved during the task are looked
+     * up in as well. The snapshot is left open.
+     * @param snapshot Snapshot to run against
+     * @param task Task to run
+     * @param <T> Result of the task
+     * @return The result of the task
+     * @throws Exception Indicating why the task failed
+     */
+    private <T> T inSnapshot(Snapshot snapshot, SnapshotTask<T> task) throws Exception {
+        Snapshot outer = searching.get();
+        try {
+            searching.set(snapshot);
+            return task.run(snapshot);
+        } finally {
+            if (outer == null) {
+                searching.remove();
+            } else {
+                searching.set(outer);
+            }
+        }
+    }
+
+    private interface SnapshotTask<T> {
+        T run(Snapshot snapshot) throws Exception;
+    }
+
+    /**
+     * Gets the resource types a transaction or batch entry reads or writes.
+     * @param entry Transaction or batch entry
+     * @return The resource types named by the request URL and the resource of the entry, and those its
+     *         conditional references are looked up in
+     */
+    private static Set<String> getEntryTypes(Bundle.BundleEntryComponent entry) {
+        Set<String> types = new HashSet<>();
+        if (entry.getRequest().hasUrl()) {
+            types.add(entry.getRequest().getUrl().split("[/?]")[0]);
+        }
+        if (entry.hasResource()) {
+            types.add(entry.getResource().getResourceType().name());
+            // taken with the others, rather than by the lookup, so the alphabetical order still prevents deadlocks
+            types.addAll(ReferenceResolver.getConditionalTypes(entry.getResource()));
+        }
+        return types;
+    }
+
+    /**
+     * Gets the read/write lock guarding the resources of a type.
+     * @param resource Resource type (e.g. Patient)
+     * @return The lock of the type
+     */
+    private ReentrantReadWriteLock getLock(String resource) {
+        return locks.computeIfAbsent(resource, k -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Locks several resource types. The types are always locked in the same (alphabetical) order, so threads
+     * locking overlapping types can't deadlock.
+     * @param resources Resource types to lock
+     * @param write True to take the write locks, false for the read locks
+     * @return The locks taken, to be passed to {@link #unlock(List)}
+     */
+    private List<Lock> lockTypes(Collection<String> resources, boolean write) {
+        List<Lock> acquired = new ArrayList<>();
+        for (String resource : new TreeSet<>(resources)) {
+            Lock lock = write ? getLock(resource).writeLock() : getLock(resource).readLock();
+            lock.lock();
+            acquired.add(lock);
+        }
+        return acquired;
+    }
+
+    private static void unlock(List<Lock> acquired) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            acquired.get(i).unlock();
         }
-        return response;
     }
 }
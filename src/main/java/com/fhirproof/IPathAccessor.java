@@ -0,0 +1,13 @@
+package com.fhirproof;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.List;
+
+/**
+ * Defining interface for the extraction of the elements a search parameter path selects from a resource
+ */
+public interface IPathAccessor {
+    List<Base> evaluate(Base base) throws FHIRException;
+}
@@ -1,5 +1,6 @@
 package com.fhirproof;
 
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.Base;
 
 import java.util.List;
@@ -10,5 +11,17 @@ import java.util.List;
 public interface ISearchEvaluator {
     boolean evaluate(List<Base> base, List<String> ands, List<String> ors) throws Exception;
 
+    /**
+     * Evaluates the search condition for a parameter given with a modifier (e.g. name:exact). Evaluators that
+     * don't support any modifiers can rely on this default, which rejects them.
+     */
+    default boolean evaluate(List<Base> base, List<String> ands, List<String> ors, String modifier) throws Exception {
+        if (modifier != null) {
+            throw new FHIRException(
+                    String.format("Modifier ':%s' is not supported for '%s' searches", modifier, getParameterType()));
+        }
+        return evaluate(base, ands, ors);
+    }
+
     String getParameterType();
 }
@@ -0,0 +1,19 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Defining interface for the FHIR search indexes
+ */
+public interface ISearchIndex {
+    void add(String id, Base resource) throws Exception;
+
+    void remove(String id);
+
+    Set<String> find(List<String> ands, List<String> ors, String modifier);
+
+    boolean isExact();
+}
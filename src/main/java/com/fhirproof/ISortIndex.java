@@ -0,0 +1,15 @@
+package com.fhirproof;
+
+/**
+ * Defining interface for the search indexes that can give the value a resource is sorted on for <tt>_sort</tt>
+ */
+public interface ISortIndex {
+    /**
+     * Gets the value a resource is sorted on, the lowest of its values when sorting in ascending order and the
+     * highest when sorting in descending order.
+     * @param id ID of the resource
+     * @param descending True if sorting in descending order
+     * @return The value, or <tt>null</tt> if the resource has none
+     */
+    Comparable<?> getSortKey(String id, boolean descending);
+}
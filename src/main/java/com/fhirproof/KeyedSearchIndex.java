@@ -0,0 +1,83 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A search index backed by a hash of exact keys to the IDs of the resources that have them.
+ */
+public abstract class KeyedSearchIndex extends BaseSearchIndex {
+
+    private final HashMap<String, Set<String>> postings = new HashMap<>();
+    private final HashMap<String, List<String>> keysById = new HashMap<>();
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the search parameter path the index is built from
+     */
+    public KeyedSearchIndex(IPathAccessor accessor) {
+        super(accessor);
+    }
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the values the index is built from
+     * @param exact False if the matches of the index are only candidates that still need to be evaluated
+     */
+    public KeyedSearchIndex(IPathAccessor accessor, boolean exact) {
+        super(accessor, exact);
+    }
+
+    @Override
+    protected void index(String id, List<Base> values) throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (Base value : values) {
+            keys.addAll(getKeys(value));
+        }
+        keysById.put(id, keys);
+        for (String key : keys) {
+            postings.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        List<String> keys = keysById.remove(id);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            Set<String> ids = postings.get(key);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the IDs of the resources indexed under a key.
+     * @param key Index key
+     * @return The IDs of the resources indexed under the key
+     */
+    protected Set<String> lookup(String key) {
+        Set<String> ids = postings.get(key);
+        return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Extracts the index keys from a single value.
+     * @param value Value extracted by the search parameter path
+     * @return The keys the resource should be found under
+     * @throws Exception Indicating the value could not be indexed
+     */
+    protected abstract List<String> getKeys(Base value) throws Exception;
+}
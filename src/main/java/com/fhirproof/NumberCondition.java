@@ -0,0 +1,154 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+
+import java.math.BigDecimal;
+
+/**
+ * A single number search condition (e.g. gt22.1) compared using the R4 number semantics. Equality uses the range
+ * implied by the precision of the condition value, so 100 matches anything from 99.5 up to (but not including)
+ * 100.5, while the other comparisons use the value as given.
+ */
+public class NumberCondition {
+    private static final BigDecimal APPROXIMATELY = new BigDecimal("0.1");
+
+    private final ParamPrefixEnum prefix;
+    private final BigDecimal value;
+    private final BigDecimal low;
+    private final BigDecimal high;
+    private final BigDecimal approximateLow;
+    private final BigDecimal approximateHigh;
+
+    private NumberCondition(ParamPrefixEnum prefix, BigDecimal value) {
+        this.prefix = prefix;
+        this.value = value;
+
+        if (value != null) {
+            // half of the last significant digit either side, e.g. 22.1 covers [22.05, 22.15)
+            BigDecimal half = BigDecimal.valueOf(5, value.scale() + 1);
+            this.low = value.subtract(half);
+            this.high = value.add(half);
+
+            // approximately is taken as within 10% of the value, but no tighter than the implied precision
+            BigDecimal margin = value.abs().multiply(APPROXIMATELY).max(half);
+            this.approximateLow = value.subtract(margin);
+            this.approximateHigh = value.add(margin);
+        } else {
+            this.low = null;
+            this.high = null;
+            this.approximateLow = null;
+            this.approximateHigh = null;
+        }
+    }
+
+    /**
+     * Parses a number search condition.
+     * @param condition Individual query parameter, with an optional prefix (e.g. gt22.1)
+     * @return The parsed condition. Conditions with an unknown prefix or an invalid number never match.
+     */
+    public static NumberCondition parse(String condition) {
+        ParamPrefixEnum prefix = ParamPrefixEnum.EQUAL;
+        String number = condition;
+        if (condition.length() > 1 && Character.isLetter(condition.charAt(0))) {
+            prefix = ParamPrefixEnum.forValue(condition.substring(0, 2));
+            number = condition.substring(2);
+        }
+        if (prefix == null) {
+            return new NumberCondition(null, null);
+        }
+
+        try {
+            return new NumberCondition(prefix, new BigDecimal(number));
+        } catch (NumberFormatException ex) {
+            return new NumberCondition(null, null);
+        }
+    }
+
+    /**
+     * Gets the comparison prefix
+     * @return the comparison prefix, or <tt>null</tt> if the condition can never match
+     */
+    public ParamPrefixEnum getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Gets the condition value as given
+     * @return the condition value as given
+     */
+    public BigDecimal getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the inclusive lower boundary of the range implied by the precision of the value
+     * @return the inclusive lower boundary of the implied range
+     */
+    public BigDecimal getLow() {
+        return low;
+    }
+
+    /**
+     * Gets the exclusive upper boundary of the range implied by the precision of the value
+     * @return the exclusive upper boundary of the implied range
+     */
+    public BigDecimal getHigh() {
+        return high;
+    }
+
+    /**
+     * Gets the inclusive lower boundary used by the approximately (ap) prefix
+     * @return the inclusive lower boundary used by the approximately (ap) prefix
+     */
+    public BigDecimal getApproximateLow() {
+        return approximateLow;
+    }
+
+    /**
+     * Gets the inclusive upper boundary used by the approximately (ap) prefix
+     * @return the inclusive upper boundary used by the approximately (ap) prefix
+     */
+    public BigDecimal getApproximateHigh() {
+        return approximateHigh;
+    }
+
+    /**
+     * Compares a resource value against the condition.
+     * @param range The numbers covered by the resource value
+     * @return True if the value satisfies the condition
+     */
+    public boolean matches(NumberRange range) {
+        if (prefix == null) {
+            return false;
+        }
+        BigDecimal rangeLow = range.getLow();
+        BigDecimal rangeHigh = range.getHigh();
+        switch (prefix) {
+            case EQUAL:
+                return isEqual(rangeLow, rangeHigh);
+            case NOT_EQUAL:
+                return !isEqual(rangeLow, rangeHigh);
+            case GREATERTHAN:
+                return rangeHigh == null || rangeHigh.compareTo(value) > 0;
+            case GREATERTHAN_OR_EQUALS:
+                return rangeHigh == null || rangeHigh.compareTo(value) >= 0;
+            case LESSTHAN:
+                return rangeLow == null || rangeLow.compareTo(value) < 0;
+            case LESSTHAN_OR_EQUALS:
+                return rangeLow == null || rangeLow.compareTo(value) <= 0;
+            case STARTS_AFTER:
+                return rangeLow != null && rangeLow.compareTo(high) >= 0;
+            case ENDS_BEFORE:
+                return rangeHigh != null && rangeHigh.compareTo(low) < 0;
+            case APPROXIMATE:
+                return (rangeLow == null || rangeLow.compareTo(approximateHigh) <= 0)
+                        && (rangeHigh == null || rangeHigh.compareTo(approximateLow) >= 0);
+            default:
+                return false;
+        }
+    }
+
+    private boolean isEqual(BigDecimal rangeLow, BigDecimal rangeHigh) {
+        return rangeLow != null && rangeLow.compareTo(low) >= 0 && rangeHigh != null && rangeHigh.compareTo(high) < 0;
+    }
+}
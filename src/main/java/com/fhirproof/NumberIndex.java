@@ -0,0 +1,180 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Search index for number parameters. Each value is indexed by the decimals it covers, sorted by both its lower
+ * and its upper boundary, so every {@link NumberCondition} prefix is answered by one or two range scans rather
+ * than by comparing every resource. Decimals are compared by value, so 84 and 84.0 share a key.
+ */
+public class NumberIndex extends BaseSearchIndex implements ISortIndex {
+
+    private final TreeMap<BigDecimal, List<Posting>> byLow = new TreeMap<>();
+    private final TreeMap<BigDecimal, List<Posting>> byHigh = new TreeMap<>();
+    private final HashMap<String, List<Posting>> postingsById = new HashMap<>();
+    // open ended values have no boundary to be sorted on, so they are kept aside and compared on every match
+    private final HashSet<Posting> open = new HashSet<>();
+    private BigDecimal maxSpan = BigDecimal.ZERO;
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the search parameter path the index is built from
+     */
+    public NumberIndex(IPathAccessor accessor) {
+        super(accessor);
+    }
+
+    @Override
+    protected void index(String id, List<Base> values) {
+        List<Posting> postings = new ArrayList<>();
+        for (Base value : values) {
+            for (NumberRange range : NumberRange.of(value)) {
+                Posting posting = new Posting(id, range);
+                postings.add(posting);
+                if (range.isOpen()) {
+                    open.add(posting);
+                } else {
+                    byLow.computeIfAbsent(range.getLow(), k -> new ArrayList<>()).add(posting);
+                    byHigh.computeIfAbsent(range.getHigh(), k -> new ArrayList<>()).add(posting);
+                    maxSpan = maxSpan.max(range.getHigh().subtract(range.getLow()));
+                }
+            }
+        }
+        if (!postings.isEmpty()) {
+            postingsById.put(id, postings);
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        List<Posting> postings = postingsById.remove(id);
+        if (postings == null) {
+            return;
+        }
+        for (Posting posting : postings) {
+            if (!open.remove(posting)) {
+                unlink(byLow, posting.range.getLow(), posting);
+                unlink(byHigh, posting.range.getHigh(), posting);
+            }
+        }
+    }
+
+    @Override
+    protected Set<String> match(String condition) {
+        NumberCondition parsed = NumberCondition.parse(condition);
+        if (parsed.getPrefix() == null) {
+            return new HashSet<>();
+        }
+
+        Set<String> ids = new HashSet<>();
+        switch (parsed.getPrefix()) {
+            case EQUAL:
+                // values that start within the implied range, of which only those that also end within it
+                collect(byLow.subMap(parsed.getLow(), true, parsed.getHigh(), false).values(), parsed, ids);
+                break;
+            case NOT_EQUAL:
+                collect(byLow.headMap(parsed.getLow(), false).values(), ids);
+                collect(byHigh.tailMap(parsed.getHigh(), true).values(), ids);
+                break;
+            case GREATERTHAN:
+                collect(byHigh.tailMap(parsed.getValue(), false).values(), ids);
+                break;
+            case GREATERTHAN_OR_EQUALS:
+                collect(byHigh.tailMap(parsed.getValue(), true).values(), ids);
+                break;
+            case LESSTHAN:
+                collect(byLow.headMap(parsed.getValue(), false).values(), ids);
+                break;
+            case LESSTHAN_OR_EQUALS:
+                collect(byLow.headMap(parsed.getValue(), true).values(), ids);
+                break;
+            case STARTS_AFTER:
+                collect(byLow.tailMap(parsed.getHigh(), true).values(), ids);
+                break;
+            case ENDS_BEFORE:
+                collect(byHigh.headMap(parsed.getLow(), false).values(), ids);
+                break;
+            case APPROXIMATE:
+                // a value can only overlap if it starts no earlier than the widest value before the range
+                collect(byLow.subMap(parsed.getApproximateLow().subtract(maxSpan), true,
+                        parsed.getApproximateHigh(), true).values(), parsed, ids);
+                break;
+            default:
+                return null;
+        }
+        for (Posting posting : open) {
+            if (parsed.matches(posting.range)) {
+                ids.add(posting.id);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public Comparable<?> getSortKey(String id, boolean descending) {
+        List<Posting> postings = postingsById.get(id);
+        if (postings == null) {
+            return null;
+        }
+        BigDecimal key = null;
+        for (Posting posting : postings) {
+            BigDecimal boundary = descending ? posting.range.getHigh() : posting.range.getLow();
+            if (boundary == null) {
+                // an open ended value sorts on the boundary it does have
+                boundary = descending ? posting.range.getLow() : posting.range.getHigh();
+            }
+            if (key == null || (descending ? boundary.compareTo(key) > 0 : boundary.compareTo(key) < 0)) {
+                key = boundary;
+            }
+        }
+        return key;
+    }
+
+    private static void collect(Collection<List<Posting>> buckets, Set<String> ids) {
+        for (List<Posting> bucket : buckets) {
+            for (Posting posting : bucket) {
+                ids.add(posting.id);
+            }
+        }
+    }
+
+    private static void collect(Collection<List<Posting>> buckets, NumberCondition condition, Set<String> ids) {
+        for (List<Posting> bucket : buckets) {
+            for (Posting posting : bucket) {
+                if (condition.matches(posting.range)) {
+                    ids.add(posting.id);
+                }
+            }
+        }
+    }
+
+    private static void unlink(Map<BigDecimal, List<Posting>> boundaries, BigDecimal boundary, Posting posting) {
+        List<Posting> bucket = boundaries.get(boundary);
+        if (bucket != null) {
+            bucket.remove(posting);
+            if (bucket.isEmpty()) {
+                boundaries.remove(boundary);
+            }
+        }
+    }
+
+    private static class Posting {
+        private final String id;
+        private final NumberRange range;
+
+        Posting(String id, NumberRange range) {
+            this.id = id;
+            this.range = range;
+        }
+    }
+}
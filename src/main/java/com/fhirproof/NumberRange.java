@@ -0,0 +1,100 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Range;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The numbers covered by a decimal, integer or Range value, as an inclusive range. Single numbers cover just
+ * themselves. Missing Range boundaries are open ended and are represented as <tt>null</tt>.
+ */
+public class NumberRange {
+    private final BigDecimal low;
+    private final BigDecimal high;
+
+    /**
+     * Constructs a number range
+     * @param low Inclusive lower boundary, <tt>null</tt> if open ended
+     * @param high Inclusive upper boundary, <tt>null</tt> if open ended
+     */
+    public NumberRange(BigDecimal low, BigDecimal high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Gets the numbers covered by an element a number search parameter path selected.
+     * @param base The selected element
+     * @return The numbers covered by the element, empty if it is not a (populated) numeric type
+     */
+    public static List<NumberRange> of(Base base) {
+        List<NumberRange> ranges = new ArrayList<>();
+        if (base instanceof Range) {
+            Range range = (Range) base;
+            BigDecimal low = range.hasLow() && range.getLow().hasValue() ? range.getLow().getValue() : null;
+            BigDecimal high = range.hasHigh() && range.getHigh().hasValue() ? range.getHigh().getValue() : null;
+            if (low != null || high != null) {
+                ranges.add(new NumberRange(low, high));
+            }
+        } else if (base.isPrimitive() && base.primitiveValue() != null) {
+            try {
+                BigDecimal value = new BigDecimal(base.primitiveValue());
+                ranges.add(new NumberRange(value, value));
+            } catch (NumberFormatException ex) {
+                // not a number, so there is nothing to compare
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Parses a range previously formatted with {@link #toString()}.
+     * @param value The formatted range
+     * @return The range
+     */
+    public static NumberRange parse(String value) {
+        int index = value.indexOf(':');
+        if (index < 0) {
+            BigDecimal number = new BigDecimal(value);
+            return new NumberRange(number, number);
+        }
+        String low = value.substring(0, index);
+        String high = value.substring(index + 1);
+        return new NumberRange(low.isEmpty() ? null : new BigDecimal(low), high.isEmpty() ? null : new BigDecimal(high));
+    }
+
+    /**
+     * Gets the inclusive lower boundary
+     * @return the inclusive lower boundary, <tt>null</tt> if open ended
+     */
+    public BigDecimal getLow() {
+        return low;
+    }
+
+    /**
+     * Gets the inclusive upper boundary
+     * @return the inclusive upper boundary, <tt>null</tt> if open ended
+     */
+    public BigDecimal getHigh() {
+        return high;
+    }
+
+    /**
+     * Indicates whether either boundary is open ended.
+     * @return True if the range has no lower or no upper boundary
+     */
+    public boolean isOpen() {
+        return low == null || high == null;
+    }
+
+    @Override
+    public String toString() {
+        if (low != null && high != null && low.compareTo(high) == 0) {
+            return low.toPlainString();
+        }
+        return (low == null ? "" : low.toPlainString()) + ":" + (high == null ? "" : high.toPlainString());
+    }
+}
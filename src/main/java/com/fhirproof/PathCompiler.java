@@ -0,0 +1,311 @@
+package com.fhirproof;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the simple FHIR Path expressions used by most search parameter definitions into chains of direct
+ * element accessors, so they can be evaluated without going through the general {@link FHIRPathEngine}.
+ *
+ * The supported forms are dotted element paths (e.g. Patient.name.given), unions of them, <tt>as</tt> casts
+ * (e.g. (Observation.value as Quantity)) and <tt>where(resolve() is Type)</tt> filters on references. Any other
+ * expression is left to the engine.
+ */
+public final class PathCompiler {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+    private static final Pattern AS_CAST = Pattern.compile("(.+) as ([A-Za-z][A-Za-z0-9_]*)");
+    private static final Pattern WHERE_RESOLVE_IS = Pattern.compile("where\\(resolve\\(\\) is ([A-Za-z][A-Za-z0-9_]*)\\)");
+    private static final Pattern RESOLVE_FILTER = Pattern.compile("\\.where\\(resolve\\(\\) is [A-Za-z][A-Za-z0-9_]*\\)");
+
+    private PathCompiler() {
+    }
+
+    /**
+     * Compiles a FHIR Path expression into a direct accessor.
+     * @param path FHIR Path expression (e.g. Patient.name | Practitioner.name)
+     * @param hostServices Evaluation context used to resolve references, as the engine would
+     * @return The compiled accessor, or <tt>null</tt> if the expression is not simple enough to compile
+     */
+    public static IPathAccessor compile(String path, FHIRPathEngine.IEvaluationContext hostServices) {
+        List<String> branches = split(path.trim(), '|');
+        if (branches == null) {
+            return null;
+        }
+
+        List<List<Step>> chains = new ArrayList<>();
+        for (String branch : branches) {
+            List<Step> chain = compileBranch(branch.trim(), hostServices);
+            if (chain == null) {
+                return null;
+            }
+            chains.add(chain);
+        }
+
+        if (chains.size() == 1) {
+            List<Step> chain = chains.get(0);
+            return base -> evaluate(chain, base);
+        }
+        return base -> {
+            List<Base> result = new ArrayList<>();
+            for (List<Step> chain : chains) {
+                for (Base item : evaluate(chain, base)) {
+                    // like the engine's union, an item equal to one already selected is left out
+                    if (!contains(result, item)) {
+                        result.add(item);
+                    }
+                }
+            }
+            return result;
+        };
+    }
+
+    private static boolean contains(List<Base> items, Base item) {
+        for (Base other : items) {
+            if (other == item) {
+                return true;
+            }
+            if (other.isPrimitive() && item.isPrimitive()
+                    ? Objects.equals(other.primitiveValue(), item.primitiveValue())
+                    : !other.isPrimitive() && !item.isPrimitive() && other.equalsDeep(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the <tt>where(resolve() is Type)</tt> filters from an expression, so it selects every reference
+     * regardless of what, if anything, the reference resolves to.
+     * @param path FHIR Path expression (e.g. Encounter.subject.where(resolve() is Patient))
+     * @return The expression without the filters (e.g. Encounter.subject)
+     */
+    public static String withoutResolveFilters(String path) {
+        return RESOLVE_FILTER.matcher(path).replaceAll("");
+    }
+
+    private static List<Step> compileBranch(String branch, FHIRPathEngine.IEvaluationContext hostServices) {
+        // strip grouping parentheses that wrap the entire branch, e.g. (Observation.value as Quantity)
+        while (branch.startsWith("(") && closingParen(branch, 0) == branch.length() - 1) {
+            branch = branch.substring(1, branch.length() - 1).trim();
+        }
+
+        String cast = null;
+        Matcher asMatcher = AS_CAST.matcher(branch);
+        if (asMatcher.matches() && !asMatcher.group(1).contains(" as ")) {
+            branch = asMatcher.group(1).trim();
+            cast = asMatcher.group(2);
+        }
+
+        List<String> segments = split(branch, '.');
+        if (segments == null || segments.isEmpty()) {
+            return null;
+        }
+
+        List<Step> chain = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            Matcher whereMatcher = WHERE_RESOLVE_IS.matcher(segment);
+            if (i > 0 && whereMatcher.matches()) {
+                chain.add(new ResolvesToStep(whereMatcher.group(1), hostServices));
+            } else if (!NAME.matcher(segment).matches()) {
+                return null;
+            } else if (i == 0) {
+                // like the engine, a leading type name only selects the context resource if it is of that type
+                if (!Character.isUpperCase(segment.charAt(0))) {
+                    return null;
+                }
+                chain.add(new ResourceTypeStep(segment));
+            } else {
+                chain.add(new ChildStep(segment));
+            }
+        }
+
+        if (cast != null) {
+            chain.add(new CastStep(cast));
+        }
+        return chain;
+    }
+
+    private static List<Base> evaluate(List<Step> chain, Base base) {
+        List<Base> focus = Collections.singletonList(base);
+        for (Step step : chain) {
+            if (focus.isEmpty()) {
+                break;
+            }
+            focus = step.apply(base, focus);
+        }
+        return focus;
+    }
+
+    /**
+     * Splits an expression on a delimiter that is not nested inside parentheses.
+     * @return The parts, or <tt>null</tt> if the parentheses are unbalanced or the expression contains
+     *         anything other than names and grouping (quoted literals, indexers, operators, etc.)
+     */
+    private static List<String> split(String expression, char delimiter) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth < 0) {
+                    return null;
+                }
+            } else if (c == '\'' || c == '"' || c == '`' || c == '[' || c == '$' || c == '%') {
+                return null;
+            } else if (c == delimiter && depth == 0) {
+                parts.add(expression.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if (depth != 0) {
+            return null;
+        }
+        parts.add(expression.substring(start));
+        return parts;
+    }
+
+    private static int closingParen(String expression, int open) {
+        int depth = 0;
+        for (int i = open; i < expression.length(); i++) {
+            if (expression.charAt(i) == '(') {
+                depth++;
+            } else if (expression.charAt(i) == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private interface Step {
+        List<Base> apply(Base root, List<Base> focus) throws FHIRException;
+    }
+
+    private static class ResourceTypeStep implements Step {
+        private final String type;
+
+        ResourceTypeStep(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public List<Base> apply(Base root, List<Base> focus) {
+            List<Base> result = new ArrayList<>(focus.size());
+            for (Base item : focus) {
+                if (item.isResource() && item.fhirType().equals(type)) {
+                    result.add(item);
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class ChildStep implements Step {
+        private final String name;
+        private final int hash;
+
+        ChildStep(String name) {
+            this.name = name;
+            this.hash = name.hashCode();
+        }
+
+        @Override
+        public List<Base> apply(Base root, List<Base> focus) throws FHIRException {
+            List<Base> result = new ArrayList<>();
+            for (Base item : focus) {
+                // the generated getProperty switch is the same accessor the engine ends up calling
+                Base[] children = item.getProperty(hash, name, false);
+                if (children != null) {
+                    for (Base child : children) {
+                        if (child != null) {
+                            result.add(child);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class CastStep implements Step {
+        private final String type;
+
+        CastStep(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public List<Base> apply(Base root, List<Base> focus) {
+            // like the engine, only the type itself is matched and not its specialisations (e.g. Age of Quantity)
+            List<Base> result = new ArrayList<>(focus.size());
+            for (Base item : focus) {
+                if (type.equals(item.fhirType())) {
+                    result.add(item);
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class ResolvesToStep implements Step {
+        private final String type;
+        private final FHIRPathEngine.IEvaluationContext hostServices;
+
+        ResolvesToStep(String type, FHIRPathEngine.IEvaluationContext hostServices) {
+            this.type = type;
+            this.hostServices = hostServices;
+        }
+
+        @Override
+        public List<Base> apply(Base root, List<Base> focus) throws FHIRException {
+            List<Base> result = new ArrayList<>();
+            for (Base item : focus) {
+                if (!(item instanceof Reference) || !((Reference) item).hasReference()) {
+                    continue;
+                }
+                String reference = ((Reference) item).getReference();
+                Base resolved;
+                if (reference.startsWith("#")) {
+                    resolved = resolveContained(root, reference.substring(1));
+                } else if (hostServices != null) {
+                    resolved = hostServices.resolveReference(null, reference);
+                } else {
+                    resolved = null;
+                }
+                if (resolved != null && resolved.hasType(type)) {
+                    result.add(item);
+                }
+            }
+            return result;
+        }
+
+        private Base resolveContained(Base root, String id) {
+            if (!(root instanceof DomainResource)) {
+                return null;
+            }
+            for (Resource contained : ((DomainResource) root).getContained()) {
+                String containedId = contained.getIdElement().getIdPart();
+                if (containedId != null && id.equals(containedId.startsWith("#") ? containedId.substring(1) : containedId)) {
+                    return contained;
+                }
+            }
+            return null;
+        }
+    }
+}
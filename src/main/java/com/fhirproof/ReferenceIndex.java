@@ -0,0 +1,52 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Search index for reference parameters. This is a reverse reference index: each referring resource is indexed
+ * under the <tt>Type/id</tt> it references, as well as under the bare id, which covers every form
+ * {@link ReferenceEvaluator} compares against with a single hash lookup.
+ */
+public class ReferenceIndex extends KeyedSearchIndex {
+
+    private static final String REFERENCE = "=";
+    private static final String ID = "i";
+
+    private final ReferenceEvaluator evaluator;
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the references the index is built from
+     * @param evaluator Evaluator used to build the comparison values
+     * @param exact False if the accessor selects more references than the search parameter path does
+     */
+    public ReferenceIndex(IPathAccessor accessor, ReferenceEvaluator evaluator, boolean exact) {
+        super(accessor, exact);
+        this.evaluator = evaluator;
+    }
+
+    @Override
+    protected List<String> getKeys(Base value) throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (String reference : evaluator.getComparisonValues(value)) {
+            keys.add(REFERENCE + reference);
+            int index = reference.indexOf('/');
+            keys.add(ID + (index >= 0 ? reference.substring(index + 1) : reference));
+        }
+        return keys;
+    }
+
+    @Override
+    protected Set<String> match(String condition) {
+        // mirrors ReferenceEvaluator.compare
+        if (condition.contains("/") || condition.startsWith("http")) {
+            return lookup(REFERENCE + condition);
+        } else {
+            return lookup(ID + condition);
+        }
+    }
+}
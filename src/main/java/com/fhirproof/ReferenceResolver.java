@@ -0,0 +1,155 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the references between the entries of a transaction, and conditional references, to the IDs of the
+ * stored resources. Placeholders (e.g. the <tt>urn:uuid:</tt> full URL of an entry) are recorded as the entries
+ * are staged, after which the staged resources are walked once and their references rewritten in place.
+ *
+ * Conditional references (e.g. Patient?identifier=1234567) are looked up once per distinct reference, however
+ * many resources use them.
+ */
+final class ReferenceResolver {
+
+    private static final Pattern RESOURCE_TYPE = Pattern.compile("[A-Z][A-Za-z]*");
+
+    private final ConditionalLookup lookup;
+    private final Map<String, String> placeholders = new HashMap<>();
+    private final Map<String, String> conditionals = new HashMap<>();
+
+    /**
+     * @param lookup Finds the resources matching a conditional reference
+     */
+    ReferenceResolver(ConditionalLookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * Records the resource a placeholder stands for.
+     * @param placeholder Full URL of a transaction entry (e.g. urn:uuid:61ebe359-bfdc-4613-8bf2-c5e300945f0a)
+     * @param reference Reference to the stored resource (e.g. Patient/[id])
+     */
+    void addPlaceholder(String placeholder, String reference) {
+        placeholders.put(placeholder, reference);
+    }
+
+    /**
+     * Gets the resource types the conditional references of a resource are looked up in. These are searched while
+     * the transaction holds its locks, so they have to be locked along with the types it writes.
+     * @param resource The resource to be written
+     * @return The types of the conditional references, empty if there are none
+     */
+    static Set<String> getConditionalTypes(Resource resource) {
+        Set<String> types = new HashSet<>();
+        collectConditionalTypes(resource, types);
+        return types;
+    }
+
+    private static void collectConditionalTypes(Base base, Set<String> types) {
+        if (base instanceof Reference && ((Reference) base).hasReference()) {
+            String type = getConditionalType(((Reference) base).getReference());
+            if (type != null) {
+                types.add(type);
+            }
+        }
+        for (Property property : base.children()) {
+            if (property.hasValues()) {
+                for (Base child : property.getValues()) {
+                    collectConditionalTypes(child, types);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the resource type a conditional reference is looked up in.
+     * @return The resource type, or <tt>null</tt> if the reference is not conditional
+     */
+    private static String getConditionalType(String reference) {
+        // a conditional reference is a resource type followed by a query
+        int query = reference.indexOf('?');
+        if (query < 1 || !RESOURCE_TYPE.matcher(reference.substring(0, query)).matches()) {
+            return null;
+        }
+        return reference.substring(0, query);
+    }
+
+    /**
+     * Rewrites the references of every resource staged in a write set.
+     * @param writes The write set
+     * @throws FhirProofException If a conditional reference doesn't match exactly one resource
+     */
+    void resolve(WriteSet writes) throws FhirProofException {
+        for (String resource : writes.getTypes()) {
+            for (Resource instance : writes.getWrites(resource).values()) {
+                if (instance != null) {
+                    resolve(instance);
+                }
+            }
+        }
+    }
+
+    private void resolve(Base base) throws FhirProofException {
+        if (base instanceof Reference) {
+            Reference reference = (Reference) base;
+            if (reference.hasReference()) {
+                String resolved = resolve(reference.getReference());
+                if (resolved != null) {
+                    reference.setReference(resolved);
+                }
+            }
+        }
+        for (Property property : base.children()) {
+            if (property.hasValues()) {
+                for (Base child : property.getValues()) {
+                    resolve(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves a single reference.
+     * @return The reference to the stored resource, or <tt>null</tt> if the reference needs no resolving
+     */
+    private String resolve(String reference) throws FhirProofException {
+        String resolved = placeholders.get(reference);
+        if (resolved != null) {
+            return resolved;
+        }
+        String resource = getConditionalType(reference);
+        if (resource == null) {
+            return null;
+        }
+
+        resolved = conditionals.get(reference);
+        if (resolved == null) {
+            List<String> matches = lookup.find(resource, reference.substring(resource.length() + 1));
+            if (matches.size() != 1) {
+                throw new FhirProofException(String.format(
+                        "Status 412: Conditional reference '%s' matched %d resources", reference, matches.size()));
+            }
+            resolved = String.format("%s/%s", resource, matches.get(0));
+            conditionals.put(reference, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Finds the resources a conditional reference matches.
+     */
+    interface ConditionalLookup {
+        List<String> find(String resource, String query) throws FhirProofException;
+    }
+}
@@ -0,0 +1,237 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The earlier versions of one resource, oldest first, kept so they can be read back by version ID and listed in
+ * the history of the resource. The latest version is not kept here but in the store, and a deletion is kept as a
+ * version without a resource.
+ *
+ * Versions are kept as deflated JSON rather than as resources. Every 16th version is deflated on its own, and the
+ * versions in between are deflated with the JSON of that key version as the preset dictionary, so whatever they
+ * share with it, which after a typical update is nearly everything, is stored as back-references into it. Reading
+ * back any version takes at most two inflates.
+ *
+ * Deflating typical Patient JSON this way suggests roughly 130-170 bytes of heap per kept version, but that is an
+ * estimate from the encoding alone: the retained heap has not been measured (see HistoryBenchmark).
+ */
+final class ResourceHistory {
+
+    private static final int KEY_INTERVAL = 16;
+    private static final byte KEY = 0;
+    private static final byte DELTA = 1;
+    private static final FhirContext fhirContext = FhirContext.forR4();
+    // deflaters and inflaters allocate sizeable native buffers, so each thread reuses its own
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    // the versions as parallel arrays, to save an object per version
+    private long[] numbers = new long[2];
+    private long[] times = new long[2];
+    // deflated JSON led by KEY or DELTA, or null for a deletion
+    private byte[][] data = new byte[2][];
+    private int size = 0;
+    // index of the latest key version, -1 if there is none yet
+    private int key = -1;
+    private long latest = 0;
+
+    /**
+     * Gets the number of a version, which is its version ID.
+     * @param version A version of a resource, or <tt>null</tt>
+     * @return The number, or 0 if there is no version or its ID is not a number (e.g. a resource put into the raw
+     *         map of the store with an ID of its own)
+     */
+    static long getNumber(Resource version) {
+        if (version == null || !version.hasMeta() || !version.getMeta().hasVersionId()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(version.getMeta().getVersionId());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the time a version was written.
+     * @param version A version of a resource
+     * @return The <tt>lastUpdated</tt> of the version in milliseconds since the epoch, or 0 if it has none
+     */
+    static long getTime(Resource version) {
+        return version.hasMeta() && version.getMeta().hasLastUpdated() ? version.getMeta().getLastUpdated().getTime() : 0;
+    }
+
+    /**
+     * Adds the version being replaced by a newer one.
+     * @param version The replaced version, which is left as it is
+     */
+    synchronized void add(Resource version) {
+        byte[] json = fhirContext.newJsonParser().encodeResourceToString(version).getBytes(StandardCharsets.UTF_8);
+        byte[] deflated;
+        if (key < 0 || size - key >= KEY_INTERVAL) {
+            deflated = deflate(json, null, KEY);
+            key = size;
+        } else {
+            deflated = deflate(json, inflate(data[key], null), DELTA);
+        }
+        append(getNumber(version), getTime(version), deflated);
+    }
+
+    /**
+     * Adds the deletion of the resource, after the version it deleted.
+     * @param time The time of the deletion in milliseconds since the epoch
+     * @return The number of the deletion
+     */
+    synchronized long addDeletion(long time) {
+        long number = latest + 1;
+        append(number, time, null);
+        return number;
+    }
+
+    /**
+     * Gets the number of versions kept
+     * @return the number of versions kept
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the highest number of any version kept
+     * @return the highest number of any version kept, 0 if there are none
+     */
+    synchronized long getLatestNumber() {
+        return latest;
+    }
+
+    /**
+     * Gets the number of a version, which is its version ID.
+     * @param index Index of the version
+     */
+    synchronized long getNumber(int index) {
+        return numbers[index];
+    }
+
+    /**
+     * Gets the time a version was written, in milliseconds since the epoch.
+     * @param index Index of the version
+     */
+    synchronized long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Indicates whether a version is the deletion of the resource.
+     * @param index Index of the version
+     */
+    synchronized boolean isDeletion(int index) {
+        return data[index] == null;
+    }
+
+    /**
+     * Finds a version by its ID.
+     * @param versionId Version ID (e.g. 2)
+     * @return The index of the version, or -1 if it is not kept
+     */
+    synchronized int indexOf(String versionId) {
+        long number;
+        try {
+            number = Long.parseLong(versionId);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            if (numbers[i] == number) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads back a version.
+     * @param index Index of the version
+     * @param id ID of the resource
+     * @return A new instance of the version, or <tt>null</tt> if the version is a deletion
+     */
+    synchronized Resource get(int index, String id) {
+        if (data[index] == null) {
+            return null;
+        }
+        byte[] json;
+        if (data[index][0] == KEY) {
+            json = inflate(data[index], null);
+        } else {
+            int base = index - 1;
+            while (data[base] == null || data[base][0] != KEY) {
+                base--;
+            }
+            json = inflate(data[index], inflate(data[base], null));
+        }
+        Resource version = (Resource) fhirContext.newJsonParser().parseResource(new String(json, StandardCharsets.UTF_8));
+        // the parser folds the version into the ID, so set it back to the plain ID the store keeps
+        version.setId(id);
+        return version;
+    }
+
+    private void append(long number, long time, byte[] deflated) {
+        if (size == numbers.length) {
+            int capacity = size * 2;
+            numbers = Arrays.copyOf(numbers, capacity);
+            times = Arrays.copyOf(times, capacity);
+            data = Arrays.copyOf(data, capacity);
+        }
+        numbers[size] = number;
+        times[size] = time;
+        data[size] = deflated;
+        size++;
+        latest = Math.max(latest, number);
+    }
+
+    private static byte[] deflate(byte[] input, byte[] dictionary, byte header) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 16);
+        out.write(header);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] deflated, byte[] dictionary) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(deflated, 1, deflated.length - 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (inflated == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Version is truncated");
+                }
+                out.write(buffer, 0, inflated);
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Version is corrupt", ex);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,198 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The resources of one type in the raw map of the FHIR store, by ID. The map holds the latest version of each
+ * resource, while every put and remove is committed to the {@link ResourceVersions} of the store, which keeps
+ * the versions still visible to open snapshots in a chain per resource.
+ *
+ * Only <tt>put</tt>, <tt>putIfAbsent</tt>, <tt>putAll</tt>, <tt>remove</tt> and <tt>clear</tt> are committed,
+ * changes made through the other methods are not seen by snapshots.
+ *
+ * Unlike the chains, which only hold the versions open snapshots can still see, the {@link ResourceHistory} of a
+ * resource keeps every version it had before the latest, for reading back versions by ID.
+ */
+final class ResourceMap extends ForwardingHashMap<String, Resource> {
+
+    private final ResourceVersions versions;
+    private final ConcurrentHashMap<String, Version> chains = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ResourceHistory> histories = new ConcurrentHashMap<>();
+
+    ResourceMap(ResourceVersions versions) {
+        // the latest versions are kept in a concurrent map, for the public HashMap type of the raw map to forward to
+        super(new ConcurrentHashMap<>());
+        this.versions = versions;
+    }
+
+    ResourceMap(ResourceVersions versions, Map<String, Resource> resources) {
+        this(versions);
+        putAll(resources);
+    }
+
+    /**
+     * Indicates whether the map commits its changes to the given versions.
+     */
+    boolean isVersionedBy(ResourceVersions versions) {
+        return this.versions == versions;
+    }
+
+    @Override
+    public Resource put(String id, Resource resource) {
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        Resource previous = get(id);
+        versions.commit(this, id, resource);
+        return previous;
+    }
+
+    @Override
+    public Resource putIfAbsent(String id, Resource resource) {
+        Resource previous = get(id);
+        if (previous == null) {
+            put(id, resource);
+        }
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Resource> resources) {
+        for (Map.Entry<? extends String, ? extends Resource> entry : resources.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Resource remove(Object id) {
+        Resource previous = get(id);
+        if (previous != null) {
+            versions.commit(this, (String) id, null);
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        for (String id : keySet()) {
+            remove(id);
+        }
+    }
+
+    /**
+     * Gets the newest version of a resource, which may not be committed yet.
+     * @param id ID of the resource
+     * @return The newest version, or <tt>null</tt> if the resource has no versions left
+     */
+    Version getVersion(String id) {
+        return chains.get(id);
+    }
+
+    /**
+     * Gets the IDs of the resources with versions, including those deleted while a snapshot could still see them.
+     */
+    Iterable<String> getVersionedIds() {
+        return chains.keySet();
+    }
+
+    /**
+     * Gets the earlier versions of a resource.
+     * @param id ID of the resource
+     * @return The history of the resource, or <tt>null</tt> if it has only ever had the one version
+     */
+    ResourceHistory getHistory(String id) {
+        return histories.get(id);
+    }
+
+    /**
+     * Gets the IDs of the resources with earlier versions, including those since deleted.
+     */
+    Iterable<String> getHistoryIds() {
+        return histories.keySet();
+    }
+
+    /**
+     * Gets the highest version number a resource has had, counting its deletion.
+     * @param id ID of the resource
+     * @return The highest number, 0 if the resource has had no numbered versions
+     */
+    long getLatestNumber(String id) {
+        ResourceHistory history = histories.get(id);
+        long latest = ResourceHistory.getNumber(get(id));
+        return history == null ? latest : Math.max(latest, history.getLatestNumber());
+    }
+
+    /**
+     * Keeps the version of a resource a change is about to replace in the history of the resource, along with the
+     * deletion if the change deletes it. Only called by {@link ResourceVersions} before committing the change.
+     * @param id ID of the resource
+     * @param resource The new version of the resource, or <tt>null</tt> if it is being deleted
+     */
+    void archive(String id, Resource resource) {
+        Resource previous = get(id);
+        if (previous == null) {
+            // a creation replaces nothing
+            return;
+        }
+        ResourceHistory history = histories.computeIfAbsent(id, k -> new ResourceHistory());
+        history.add(previous);
+        if (resource == null) {
+            history.addDeletion(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Makes a new version of a resource the latest. Only called by {@link ResourceVersions} while committing.
+     * @param id ID of the resource
+     * @param version Version being committed
+     * @param resource The new version of the resource, or <tt>null</tt> if it is deleted
+     */
+    void install(String id, long version, Resource resource) {
+        chains.put(id, new Version(version, resource, chains.get(id)));
+        if (resource == null) {
+            super.remove(id);
+        } else {
+            super.put(id, resource);
+        }
+    }
+
+    /**
+     * Drops the versions of a resource no snapshot can read anymore. Only called by {@link ResourceVersions}
+     * while no commit is in progress.
+     * @param id ID of the resource
+     * @param horizon The oldest version any snapshot can read
+     */
+    void prune(String id, long horizon) {
+        Version head = chains.get(id);
+        Version visible = head;
+        while (visible != null && visible.version > horizon) {
+            visible = visible.previous;
+        }
+        if (visible == null) {
+            return;
+        }
+        visible.previous = null;
+        if (visible == head && visible.resource == null) {
+            // deleted before any snapshot, so nothing can see the resource anymore
+            chains.remove(id, head);
+        }
+    }
+
+    /**
+     * A version of a resource, linked to the version it replaced.
+     */
+    static final class Version {
+        final long version;
+        final Resource resource;
+        volatile Version previous;
+
+        Version(long version, Resource resource, Version previous) {
+            this.version = version;
+            this.resource = resource;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.model.api.annotation.SearchParamDefinition;
+import org.apache.commons.lang3.ClassUtils;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The reflected metadata of a single FHIR resource type: the model class and the search parameters declared on it.
+ * Instances are immutable once built and are shared through the {@link ResourceTypeRegistry}.
+ */
+public class ResourceTypeDefinition {
+    private final String name;
+    private final Class<? extends Resource> resourceClass;
+    private final Map<String, SearchParameter> parameters;
+
+    /**
+     * Builds the definition for a resource type.
+     * @param name Resource type (e.g. Patient)
+     * @param resourceClass The R4 model class for the resource type
+     */
+    public ResourceTypeDefinition(String name, Class<? extends Resource> resourceClass) {
+        this.name = name;
+        this.resourceClass = resourceClass;
+
+        // the first definition found for a name wins, the resource's own fields are checked before
+        // the universal parameters declared on its interfaces
+        Map<String, SearchParameter> params = new LinkedHashMap<>();
+        for (Field f : resourceClass.getDeclaredFields()) {
+            addParameter(params, f);
+        }
+        for (Class<?> i : ClassUtils.getAllInterfaces(resourceClass)) {
+            for (Field f : i.getDeclaredFields()) {
+                addParameter(params, f);
+            }
+        }
+        this.parameters = Collections.unmodifiableMap(params);
+    }
+
+    private void addParameter(Map<String, SearchParameter> params, Field field) {
+        SearchParamDefinition def = field.getDeclaredAnnotation(SearchParamDefinition.class);
+        if (def != null && !params.containsKey(def.name())) {
+            params.put(def.name(), new SearchParameter(name, def));
+        }
+    }
+
+    /**
+     * Gets the resource type name
+     * @return the resource type name (e.g. Patient)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the R4 model class of the resource type
+     * @return the R4 model class of the resource type
+     */
+    public Class<? extends Resource> getResourceClass() {
+        return resourceClass;
+    }
+
+    /**
+     * Looks up a search parameter by name.
+     * @param name Search parameter name (e.g. identifier)
+     * @return The search parameter, or <tt>null</tt> if the resource type does not define it
+     */
+    public SearchParameter getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * Gets all the search parameters defined for the resource type
+     * @return all the search parameters defined for the resource type
+     */
+    public Collection<SearchParameter> getParameters() {
+        return parameters.values();
+    }
+}
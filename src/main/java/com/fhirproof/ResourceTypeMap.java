@@ -0,0 +1,66 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The raw map of the FHIR store, from resource type to the resources of that type by ID. It is a
+ * <tt>HashMap</tt> only by type: both levels forward to <tt>ConcurrentHashMap</tt>s so the store can be read while
+ * it is written to, and the resources of each type are held in a {@link ResourceMap} that commits every change to
+ * the versions of the store. Maps of resources put directly into it are copied into a <tt>ResourceMap</tt>, so
+ * always <tt>get</tt> the map of a type after putting it.
+ */
+final class ResourceTypeMap extends ForwardingHashMap<String, HashMap<String, Resource>> {
+
+    private final ResourceVersions versions;
+
+    ResourceTypeMap(ResourceVersions versions) {
+        super(new ConcurrentHashMap<>());
+        this.versions = versions;
+    }
+
+    @Override
+    public HashMap<String, Resource> put(String key, HashMap<String, Resource> value) {
+        return super.put(key, concurrent(value));
+    }
+
+    @Override
+    public HashMap<String, Resource> putIfAbsent(String key, HashMap<String, Resource> value) {
+        return super.putIfAbsent(key, concurrent(value));
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends HashMap<String, Resource>> map) {
+        for (Map.Entry<? extends String, ? extends HashMap<String, Resource>> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public HashMap<String, Resource> computeIfAbsent(
+            String key, Function<? super String, ? extends HashMap<String, Resource>> mappingFunction) {
+        return super.computeIfAbsent(key, k -> {
+            HashMap<String, Resource> value = mappingFunction.apply(k);
+            return value == null ? null : concurrent(value);
+        });
+    }
+
+    /**
+     * Opens a snapshot of the map as of the latest committed version.
+     * @return The snapshot, which has to be closed once it is no longer read
+     */
+    Snapshot snapshot() {
+        return versions.open(this);
+    }
+
+    private HashMap<String, Resource> concurrent(Map<String, Resource> value) {
+        if (value instanceof ResourceMap && ((ResourceMap) value).isVersionedBy(versions)) {
+            return (ResourceMap) value;
+        }
+        return new ResourceMap(versions, value);
+    }
+}
@@ -0,0 +1,44 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A shared, thread-safe cache of {@link ResourceTypeDefinition}s. Each resource type is reflected over once on
+ * first use and the resulting definition is reused by every store instance afterwards.
+ */
+public final class ResourceTypeRegistry {
+    private static final String MODEL_PACKAGE = "org.hl7.fhir.r4.model.";
+    private static final ConcurrentHashMap<String, ResourceTypeDefinition> definitions = new ConcurrentHashMap<>();
+
+    private ResourceTypeRegistry() {
+    }
+
+    /**
+     * Gets the definition of a resource type, building it on first use.
+     * @param resource Resource type (e.g. Patient)
+     * @return The definition of the resource type
+     * @throws FhirProofException If the name is not an R4 resource type
+     */
+    public static ResourceTypeDefinition getDefinition(String resource) throws FhirProofException {
+        ResourceTypeDefinition definition = definitions.get(resource);
+        if (definition != null) {
+            return definition;
+        }
+
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(MODEL_PACKAGE + resource);
+        } catch (ClassNotFoundException cnfex) {
+            throw new FhirProofException(String.format("'%s' is not a supported resource type", resource));
+        }
+        if (!Resource.class.isAssignableFrom(clazz)) {
+            throw new FhirProofException(String.format("'%s' is not a supported resource type", resource));
+        }
+
+        // building a definition is idempotent so a racing thread simply loses the put
+        definitions.putIfAbsent(resource, new ResourceTypeDefinition(resource, clazz.asSubclass(Resource.class)));
+        return definitions.get(resource);
+    }
+}
@@ -0,0 +1,198 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The commit clock of a FHIR store. Every change to a resource is committed under the next version number and
+ * kept in a chain with the earlier versions of the resource, so a {@link Snapshot} taken at a version keeps
+ * seeing the store as it was at that version while later changes are made.
+ *
+ * Changes are logged until no open snapshot predates them, at which point the versions they replaced are
+ * reclaimed. The replaced versions are kept apart in the {@link ResourceHistory} of each resource as well.
+ */
+final class ResourceVersions {
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final ConcurrentLinkedDeque<Change> log = new ConcurrentLinkedDeque<>();
+    // guarded by itself, the number of open snapshots at each version
+    private final TreeMap<Long, Integer> open = new TreeMap<>();
+    private volatile long committed = 0;
+
+    /**
+     * Commits a change to a single resource.
+     * @param resources The map of resources of the type being changed
+     * @param id ID of the changed resource
+     * @param resource The new version of the resource, or <tt>null</tt> if it is being deleted
+     * @return The version the change was committed under
+     */
+    long commit(ResourceMap resources, String id, Resource resource) {
+        return commit(Collections.singletonList(new Write(resources, id, resource)));
+    }
+
+    /**
+     * Commits changes to several resources under a single version, so a snapshot sees either all of them or
+     * none of them.
+     * @param writes The changes to commit
+     * @return The version the changes were committed under
+     */
+    long commit(List<Write> writes) {
+        // encoding the replaced versions is the slow part of a commit, so it is done before taking the lock
+        for (Write write : writes) {
+            write.resources.archive(write.id, write.resource);
+        }
+        long version;
+        commitLock.lock();
+        try {
+            version = committed + 1;
+            for (Write write : writes) {
+                log.addLast(new Change(version, write.resources, write.id));
+                write.resources.install(write.id, version, write.resource);
+            }
+            committed = version;
+        } finally {
+            commitLock.unlock();
+        }
+        reclaim();
+        return version;
+    }
+
+    /**
+     * Opens a snapshot of the most recently committed version. The snapshot has to be closed for the versions
+     * it can see to be reclaimed.
+     * @param store The raw map of the store the snapshot reads
+     * @return The snapshot
+     */
+    Snapshot open(ResourceTypeMap store) {
+        synchronized (open) {
+            long version = committed;
+            open.merge(version, 1, Integer::sum);
+            return new Snapshot(this, store, version);
+        }
+    }
+
+    /**
+     * Releases a snapshot opened by {@link #open(ResourceTypeMap)}.
+     * @param version Version of the snapshot
+     */
+    void release(long version) {
+        synchronized (open) {
+            open.computeIfPresent(version, (k, count) -> count == 1 ? null : count - 1);
+        }
+        reclaim();
+    }
+
+    /**
+     * Gets the latest committed version
+     * @return the latest committed version
+     */
+    long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * Lists the changes to one resource type committed after a version, newest first.
+     * @param resources The map of resources of the type
+     * @param version Version to list the changes after
+     * @return Iterator over the IDs of the changed resources, which may repeat
+     */
+    Iterator<String> changedSince(ResourceMap resources, long version) {
+        Iterator<Change> changes = log.descendingIterator();
+        return new Iterator<String>() {
+            private String next = advance();
+
+            private String advance() {
+                while (changes.hasNext()) {
+                    Change change = changes.next();
+                    if (change.version <= version) {
+                        return null;
+                    }
+                    if (change.resources == resources) {
+                        return change.id;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                String current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Gets the oldest version any snapshot, open now or opened later, can read.
+     */
+    private long horizon() {
+        synchronized (open) {
+            return open.isEmpty() ? committed : Math.min(open.firstKey(), committed);
+        }
+    }
+
+    /**
+     * Drops the versions that no snapshot can read anymore. Only the oldest changes are looked at, and only by
+     * one thread at a time, so this is cheap enough to run after every commit and release.
+     */
+    private void reclaim() {
+        if (!commitLock.tryLock()) {
+            // whoever holds the lock reclaims once they are done
+            return;
+        }
+        try {
+            long horizon = horizon();
+            Change change;
+            while ((change = log.peekFirst()) != null && change.version <= horizon) {
+                log.pollFirst();
+                change.resources.prune(change.id, horizon);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * A change to one resource waiting to be committed.
+     */
+    static final class Write {
+        private final ResourceMap resources;
+        private final String id;
+        private final Resource resource;
+
+        /**
+         * @param resources The map of resources of the type being changed
+         * @param id ID of the changed resource
+         * @param resource The new version of the resource, or <tt>null</tt> if it is being deleted
+         */
+        Write(ResourceMap resources, String id, Resource resource) {
+            this.resources = resources;
+            this.id = id;
+            this.resource = resource;
+        }
+    }
+
+    private static final class Change {
+        private final long version;
+        private final ResourceMap resources;
+        private final String id;
+
+        Change(long version, ResourceMap resources, String id) {
+            this.version = version;
+            this.resources = resources;
+            this.id = id;
+        }
+    }
+}
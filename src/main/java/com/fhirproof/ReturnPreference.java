@@ -0,0 +1,53 @@
+package com.fhirproof;
+
+/**
+ * What a write returns besides its ID, version and time, as requested by the FHIR <tt>Prefer: return</tt>
+ * header.
+ */
+public enum ReturnPreference {
+    /**
+     * Nothing else, the metadata of the write is taken from the write itself.
+     */
+    MINIMAL("minimal"),
+    /**
+     * A copy of the resource as it was stored.
+     */
+    REPRESENTATION("representation"),
+    /**
+     * An OperationOutcome describing the write.
+     */
+    OPERATION_OUTCOME("OperationOutcome");
+
+    private final String code;
+
+    ReturnPreference(String code) {
+        this.code = code;
+    }
+
+    /**
+     * Gets the value of the preference in the <tt>Prefer</tt> header
+     * @return the value of the preference in the <tt>Prefer</tt> header (e.g. minimal)
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Looks up a preference by its value in the <tt>Prefer</tt> header.
+     * @param code Value of the preference, with or without the <tt>return=</tt> (e.g. return=minimal)
+     * @return The preference
+     * @throws FhirProofException If the value is not a known preference
+     */
+    public static ReturnPreference forCode(String code) throws FhirProofException {
+        String value = code.trim();
+        if (value.startsWith("return=")) {
+            value = value.substring("return=".length());
+        }
+        for (ReturnPreference preference : values()) {
+            if (preference.code.equals(value)) {
+                return preference;
+            }
+        }
+        throw new FhirProofException(String.format("Status 400: Unknown return preference '%s'", code));
+    }
+}
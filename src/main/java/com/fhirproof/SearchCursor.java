@@ -0,0 +1,112 @@
+package com.fhirproof;
+
+import java.util.List;
+
+/**
+ * The matches of a paged search, kept so its later pages are read from the list of matching IDs instead of running
+ * the search again. The cursor holds the snapshot the search ran against, so every page shows the store as it was
+ * when the first page was read, until the cursor is closed.
+ */
+final class SearchCursor {
+
+    private final String id;
+    private final String resource;
+    private final List<String> matches;
+    private final SearchIncludes includes;
+    private final ElementProjection projection;
+    private final boolean total;
+    private final Snapshot snapshot;
+    private long lastUsed;
+    private boolean closed = false;
+
+    SearchCursor(String id, String resource, List<String> matches, SearchIncludes includes, ElementProjection projection,
+                 boolean total, Snapshot snapshot, long now) {
+        this.id = id;
+        this.resource = resource;
+        this.matches = matches;
+        this.includes = includes;
+        this.projection = projection;
+        this.total = total;
+        this.snapshot = snapshot;
+        this.lastUsed = now;
+    }
+
+    /**
+     * Gets the opaque ID the pages of the search refer to the cursor by
+     * @return the ID of the cursor
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the resource type searched
+     * @return the resource type searched (e.g. Patient)
+     */
+    String getResource() {
+        return resource;
+    }
+
+    /**
+     * Gets the IDs of all the resources the search matched, in the order they are paged through
+     * @return the IDs of the matching resources
+     */
+    List<String> getMatches() {
+        return matches;
+    }
+
+    /**
+     * Gets the includes of the search, which are looked up for the matches of each page
+     * @return the <tt>_include</tt> and <tt>_revinclude</tt> parameters of the search
+     */
+    SearchIncludes getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Gets the elements of the matches each page returns
+     * @return the projection of the <tt>_elements</tt> or <tt>_summary</tt> parameter, <tt>null</tt> if there is none
+     */
+    ElementProjection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Indicates whether the pages give the total number of matches, which <tt>_total=none</tt> leaves out
+     * @return True if the pages give the total number of matches
+     */
+    boolean hasTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the snapshot the search ran against, which is only read while holding the lock of the cursor
+     * @return the snapshot the search ran against
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    synchronized void touch(long now) {
+        lastUsed = now;
+    }
+
+    synchronized boolean isExpired(long now, long timeToLive) {
+        return now - lastUsed > timeToLive;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the cursor, releasing its snapshot. Pages being read hold the lock of the cursor, so they finish
+     * before the snapshot is released.
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.fhirproof;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The <tt>_include</tt> and <tt>_revinclude</tt> parameters of a search. An include adds the resources the matches
+ * refer to (e.g. Encounter:subject), a reverse include the resources that refer to the matches. Each is applied to
+ * the matches of the search, and an <tt>:iterate</tt> one also to the resources included along the way.
+ */
+final class SearchIncludes {
+
+    static final String INCLUDE = "_include";
+    static final String REVINCLUDE = "_revinclude";
+    private static final String ITERATE = ":iterate";
+    // the name of :iterate before R4
+    private static final String RECURSE = ":recurse";
+
+    /**
+     * The names the include parameters can be given with
+     */
+    static final List<String> PARAMETERS = Collections.unmodifiableList(Arrays.asList(
+            INCLUDE, INCLUDE + ITERATE, INCLUDE + RECURSE, REVINCLUDE, REVINCLUDE + ITERATE, REVINCLUDE + RECURSE));
+
+    private final List<String> includes = new ArrayList<>();
+    private final List<String> iterateIncludes = new ArrayList<>();
+    private final List<String> revIncludes = new ArrayList<>();
+    private final List<String> iterateRevIncludes = new ArrayList<>();
+
+    /**
+     * Collects the include parameters of a search.
+     * @param params Search parameters and their values
+     */
+    SearchIncludes(Map<String, List<String>> params) {
+        add(params, INCLUDE, includes);
+        add(params, INCLUDE + ITERATE, iterateIncludes);
+        add(params, INCLUDE + RECURSE, iterateIncludes);
+        add(params, REVINCLUDE, revIncludes);
+        add(params, REVINCLUDE + ITERATE, iterateRevIncludes);
+        add(params, REVINCLUDE + RECURSE, iterateRevIncludes);
+    }
+
+    private static void add(Map<String, List<String>> params, String name, List<String> values) {
+        if (params.containsKey(name)) {
+            values.addAll(params.get(name));
+        }
+    }
+
+    /**
+     * Indicates whether the search includes anything besides its matches
+     * @return True if the search has no include parameters
+     */
+    boolean isEmpty() {
+        return includes.isEmpty() && iterateIncludes.isEmpty() && revIncludes.isEmpty() && iterateRevIncludes.isEmpty();
+    }
+
+    /**
+     * Indicates whether the included resources are themselves included from
+     * @return True if the search has an <tt>:iterate</tt> include parameter
+     */
+    boolean isIterated() {
+        return !iterateIncludes.isEmpty() || !iterateRevIncludes.isEmpty();
+    }
+
+    /**
+     * Gets the includes to apply to a set of resources
+     * @param matches True for the matches of the search, false for resources included along the way
+     * @return the includes (e.g. Encounter:subject:Patient)
+     */
+    List<String> getIncludes(boolean matches) {
+        return matches ? concat(includes, iterateIncludes) : iterateIncludes;
+    }
+
+    /**
+     * Gets the reverse includes to apply to a set of resources
+     * @param matches True for the matches of the search, false for resources included along the way
+     * @return the reverse includes (e.g. Encounter:subject)
+     */
+    List<String> getRevIncludes(boolean matches) {
+        return matches ? concat(revIncludes, iterateRevIncludes) : iterateRevIncludes;
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        List<String> all = new ArrayList<>(first);
+        all.addAll(second);
+        return all;
+    }
+}
@@ -0,0 +1,65 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.model.api.annotation.SearchParamDefinition;
+
+/**
+ * A search parameter that has been resolved for a specific resource type.
+ */
+public class SearchParameter {
+    private final String name;
+    private final String type;
+    private final String path;
+    private final SearchParamDefinition definition;
+
+    /**
+     * Constructs a resolved search parameter
+     * @param resource Resource type the parameter belongs to (e.g. Patient)
+     * @param definition Search parameter definition attribute declared on the model class
+     */
+    public SearchParameter(String resource, SearchParamDefinition definition) {
+        this.name = definition.name();
+        this.type = definition.type();
+        this.definition = definition;
+
+        if (!definition.path().equals("")) {
+            path = definition.path();
+        } else if (definition.name().equals("_id")) {
+            path = String.format("%s.id", resource);
+        } else {
+            // universal parameters without a path are not supported
+            path = null;
+        }
+    }
+
+    /**
+     * Gets the name of the search parameter
+     * @return the name of the search parameter (e.g. birthdate)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the search parameter type
+     * @return the search parameter type (e.g. token)
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Gets the FHIR Path expression used to extract the values of this parameter
+     * @return the FHIR Path expression, or <tt>null</tt> if the parameter is not supported
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the underlying definition attribute
+     * @return the underlying definition attribute
+     */
+    public SearchParamDefinition getDefinition() {
+        return definition;
+    }
+}
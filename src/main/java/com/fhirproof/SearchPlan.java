@@ -0,0 +1,177 @@
+package com.fhirproof;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The order in which the parameters of a search are applied. Parameters answered by a search index come first,
+ * smallest result first, and produce the candidates. The remaining parameters are then evaluated against those
+ * candidates, the most selective first, so each evaluation runs over as few resources as possible.
+ */
+public class SearchPlan {
+
+    private final String resource;
+    private final List<Step> steps;
+    private final List<String> candidates;
+
+    SearchPlan(String resource, List<Step> steps, List<String> candidates) {
+        this.resource = resource;
+        this.steps = Collections.unmodifiableList(steps);
+        this.candidates = candidates;
+    }
+
+    /**
+     * Gets the resource type being searched
+     * @return the resource type being searched (e.g. Patient)
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * Gets the steps of the plan in the order they are applied
+     * @return the steps of the plan in the order they are applied
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Gets the names of the search parameters in the order they are applied
+     * @return the names of the search parameters, including any modifier (e.g. name:exact)
+     */
+    public List<String> getParameters() {
+        return steps.stream().map(Step::getName).collect(Collectors.toList());
+    }
+
+    /**
+     * Gets the IDs of the resources satisfying all the indexed steps, which the other steps are applied to.
+     */
+    List<String> getCandidates() {
+        return candidates;
+    }
+
+    @Override
+    public String toString() {
+        return resource + steps;
+    }
+
+    /**
+     * A single search parameter of a plan along with its conditions.
+     */
+    public static class Step {
+        private final SearchParameter parameter;
+        private final String modifier;
+        private final List<String> ands;
+        private final List<String> ors;
+        private final Set<String> found;
+        private final boolean exact;
+        private final double estimate;
+        private final Set<String> changed;
+
+        Step(SearchParameter parameter, String modifier, List<String> ands, List<String> ors,
+             Set<String> found, boolean exact, double estimate) {
+            this(parameter, modifier, ands, ors, found, exact, estimate, Collections.emptySet());
+        }
+
+        Step(SearchParameter parameter, String modifier, List<String> ands, List<String> ors,
+             Set<String> found, boolean exact, double estimate, Set<String> changed) {
+            this.parameter = parameter;
+            this.modifier = modifier;
+            this.ands = ands;
+            this.ors = ors;
+            this.found = found;
+            this.exact = exact;
+            this.estimate = estimate;
+            this.changed = changed;
+        }
+
+        /**
+         * Gets the name of the search parameter
+         * @return the name of the search parameter, including any modifier (e.g. name:exact)
+         */
+        public String getName() {
+            return modifier == null ? parameter.getName() : parameter.getName() + ":" + modifier;
+        }
+
+        /**
+         * Gets the search parameter
+         * @return the search parameter
+         */
+        public SearchParameter getParameter() {
+            return parameter;
+        }
+
+        /**
+         * Gets the search parameter modifier
+         * @return the search parameter modifier (e.g. exact), or <tt>null</tt> if there is none
+         */
+        public String getModifier() {
+            return modifier;
+        }
+
+        /**
+         * Gets the 'and' conditions
+         * @return the 'and' conditions
+         */
+        public List<String> getAnds() {
+            return ands;
+        }
+
+        /**
+         * Gets the 'or' conditions
+         * @return the 'or' conditions
+         */
+        public List<String> getOrs() {
+            return ors;
+        }
+
+        /**
+         * Indicates whether the step is answered by a search index.
+         * @return True if a search index produces the matches of the step
+         */
+        public boolean isIndexed() {
+            return found != null;
+        }
+
+        /**
+         * Indicates whether the step is fully answered by a search index.
+         * @return True if the matches of the index need no further evaluation
+         */
+        public boolean isExact() {
+            return found != null && exact;
+        }
+
+        /**
+         * Gets the estimated number of resources the step matches. For indexed steps this is the number of
+         * resources the index matched, otherwise it is based on the selectivity of earlier searches.
+         * @return the estimated number of matching resources
+         */
+        public double getEstimate() {
+            return estimate;
+        }
+
+        /**
+         * Gets the IDs of the resources the search index matched, <tt>null</tt> if the step is not indexed.
+         */
+        Set<String> getFound() {
+            return found;
+        }
+
+        /**
+         * Gets the IDs among the found resources that changed since the snapshot being searched, so the index
+         * doesn't reflect the version being searched and they have to be evaluated even for an exact step.
+         */
+        Set<String> getChanged() {
+            return changed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s(%s, %.1f)", getName(), isExact() ? "index" : isIndexed() ? "index+scan" : "scan", estimate);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.fhirproof;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Running counts, per resource type and search parameter, of how many resources were evaluated against the
+ * parameter and how many of them matched. These give the selectivity estimates the search planner uses to order
+ * the parameters that are not answered by an index.
+ */
+public class SearchStatistics {
+
+    // the counts are halved once this many evaluations are recorded, so recent searches weigh more
+    private static final long MAX_EVALUATED = 1L << 20;
+
+    private final ConcurrentHashMap<String, long[]> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Records the outcome of evaluating a search parameter.
+     * @param resource Resource type (e.g. Patient)
+     * @param parameter Search parameter name, including any modifier (e.g. name:exact)
+     * @param evaluated Number of resources evaluated
+     * @param matched Number of those resources that matched
+     */
+    public void record(String resource, String parameter, long evaluated, long matched) {
+        if (evaluated == 0) {
+            return;
+        }
+        counts.compute(key(resource, parameter), (k, current) -> {
+            long totalEvaluated = (current == null ? 0 : current[0]) + evaluated;
+            long totalMatched = (current == null ? 0 : current[1]) + matched;
+            if (totalEvaluated > MAX_EVALUATED) {
+                totalEvaluated /= 2;
+                totalMatched /= 2;
+            }
+            return new long[] { totalEvaluated, totalMatched };
+        });
+    }
+
+    /**
+     * Gets the fraction of resources that have matched a search parameter.
+     * @param resource Resource type (e.g. Patient)
+     * @param parameter Search parameter name, including any modifier (e.g. name:exact)
+     * @return The fraction of evaluated resources that matched, or a negative number if nothing was recorded
+     */
+    public double getSelectivity(String resource, String parameter) {
+        long[] current = counts.get(key(resource, parameter));
+        if (current == null || current[0] == 0) {
+            return -1;
+        }
+        return (double) current[1] / current[0];
+    }
+
+    /**
+     * Discards all the recorded counts.
+     */
+    public void clear() {
+        counts.clear();
+    }
+
+    private static String key(String resource, String parameter) {
+        return resource + "." + parameter;
+    }
+}
@@ -0,0 +1,292 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A consistent view of a FHIR store as of one committed version. Changes committed after the snapshot was opened
+ * are not visible through it, and the versions it reads are kept until it is closed.
+ */
+final class Snapshot implements AutoCloseable {
+
+    private final ResourceVersions versions;
+    private final ResourceTypeMap store;
+    private final long version;
+    // streams can close a snapshot from more than one thread, and it must only be released once
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    Snapshot(ResourceVersions versions, ResourceTypeMap store, long version) {
+        this.versions = versions;
+        this.store = store;
+        this.version = version;
+    }
+
+    /**
+     * Gets the committed version the snapshot reads
+     * @return the committed version the snapshot reads
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Reads a resource as of the snapshot.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @return The stored resource, or <tt>null</tt> if it did not exist at the snapshot
+     */
+    Resource get(String resource, String id) {
+        ResourceMap resources = getResources(resource);
+        if (resources == null) {
+            return null;
+        }
+        ResourceMap.Version current = resources.getVersion(id);
+        while (current != null && current.version > version) {
+            current = current.previous;
+        }
+        return current == null ? null : current.resource;
+    }
+
+    /**
+     * Reads several resources of a type as of the snapshot, looking the type up once for all of them.
+     * @param resource Resource type (e.g. Patient)
+     * @param ids IDs of the resources
+     * @return The stored resources by ID, in the order of the IDs, leaving out those that did not exist at the
+     *         snapshot
+     */
+    Map<String, Resource> get(String resource, Collection<String> ids) {
+        Map<String, Resource> found = new LinkedHashMap<>();
+        ResourceMap resources = getResources(resource);
+        if (resources == null) {
+            return found;
+        }
+        for (String id : ids) {
+            ResourceMap.Version current = resources.getVersion(id);
+            while (current != null && current.version > version) {
+                current = current.previous;
+            }
+            if (current != null && current.resource != null) {
+                found.put(id, current.resource);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Gets the IDs of the resources of a type that existed at the snapshot.
+     * @param resource Resource type (e.g. Patient)
+     * @return IDs of the resources
+     */
+    List<String> getIds(String resource) {
+        ResourceMap resources = getResources(resource);
+        if (resources == null) {
+            return new ArrayList<>();
+        }
+        List<String> ids = new ArrayList<>();
+        for (String id : resources.getVersionedIds()) {
+            if (get(resource, id) != null) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Counts the resources of a type that existed at the snapshot. The resources stored now are counted, and then
+     * corrected for those changed since the snapshot, rather than visiting every resource. Only exact while the
+     * type is not being written to, e.g. under the read lock of the type.
+     * @param resource Resource type (e.g. Patient)
+     * @return Number of resources
+     */
+    int count(String resource) {
+        ResourceMap resources = getResources(resource);
+        if (resources == null) {
+            return 0;
+        }
+        int count = resources.size();
+        for (String id : getChanged(resource)) {
+            if (resources.containsKey(id)) {
+                count--;
+            }
+            if (get(resource, id) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the IDs of the resources of a type changed since the snapshot. The search indexes and the raw map
+     * reflect the latest version of these resources rather than the version of the snapshot.
+     * @param resource Resource type (e.g. Patient)
+     * @return IDs of the changed resources
+     */
+    Set<String> getChanged(String resource) {
+        ResourceMap resources = getResources(resource);
+        if (resources == null) {
+            return Collections.emptySet();
+        }
+        Set<String> changed = new HashSet<>();
+        for (Iterator<String> ids = versions.changedSince(resources, version); ids.hasNext(); ) {
+            changed.add(ids.next());
+        }
+        return changed;
+    }
+
+    /**
+     * Gets a view of the resources visible at the snapshot, shaped like the raw map of the store. Nothing is
+     * copied: each lookup reads the snapshot, so a lookup costs what a read does whatever the size of the store,
+     * and only iterating a type visits its resources. The view is only valid until the snapshot is closed.
+     * @return Unmodifiable map from resource type to the resources of that type by ID
+     */
+    HashMap<String, HashMap<String, Resource>> asMap() {
+        return new ForwardingHashMap<String, HashMap<String, Resource>>(new TypesView());
+    }
+
+    /**
+     * Releases the snapshot, letting the versions only it could read be reclaimed.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            versions.release(version);
+        }
+    }
+
+    private ResourceMap getResources(String resource) {
+        return (ResourceMap) store.get(resource);
+    }
+
+    /**
+     * The resource types of the store, each mapped to a view of its resources as of the snapshot.
+     */
+    private final class TypesView extends AbstractMap<String, HashMap<String, Resource>> {
+
+        @Override
+        public HashMap<String, Resource> get(Object resource) {
+            return store.containsKey(resource)
+                    ? new ForwardingHashMap<String, Resource>(new ResourcesView((String) resource))
+                    : null;
+        }
+
+        @Override
+        public boolean containsKey(Object resource) {
+            return store.containsKey(resource);
+        }
+
+        @Override
+        public Set<Map.Entry<String, HashMap<String, Resource>>> entrySet() {
+            return new AbstractSet<Map.Entry<String, HashMap<String, Resource>>>() {
+                @Override
+                public Iterator<Map.Entry<String, HashMap<String, Resource>>> iterator() {
+                    Iterator<String> resources = store.keySet().iterator();
+                    return new Iterator<Map.Entry<String, HashMap<String, Resource>>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return resources.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, HashMap<String, Resource>> next() {
+                            String resource = resources.next();
+                            return new AbstractMap.SimpleImmutableEntry<>(
+                                    resource, new ForwardingHashMap<String, Resource>(new ResourcesView(resource)));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return store.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * The resources of one type as of the snapshot, by ID.
+     */
+    private final class ResourcesView extends AbstractMap<String, Resource> {
+        private final String resource;
+
+        ResourcesView(String resource) {
+            this.resource = resource;
+        }
+
+        @Override
+        public Resource get(Object id) {
+            return id instanceof String ? Snapshot.this.get(resource, (String) id) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object id) {
+            return get(id) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Resource>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Resource>>() {
+                @Override
+                public Iterator<Map.Entry<String, Resource>> iterator() {
+                    ResourceMap resources = getResources(resource);
+                    Iterator<String> ids = resources == null
+                            ? Collections.<String>emptyIterator()
+                            : resources.getVersionedIds().iterator();
+                    return new Iterator<Map.Entry<String, Resource>>() {
+                        private Map.Entry<String, Resource> next = advance();
+
+                        // skips the IDs of resources that did not exist at the snapshot
+                        private Map.Entry<String, Resource> advance() {
+                            while (ids.hasNext()) {
+                                String id = ids.next();
+                                Resource found = Snapshot.this.get(resource, id);
+                                if (found != null) {
+                                    return new AbstractMap.SimpleImmutableEntry<>(id, found);
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        @Override
+                        public Map.Entry<String, Resource> next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, Resource> current = next;
+                            next = advance();
+                            return current;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Iterator<Map.Entry<String, Resource>> entries = iterator(); entries.hasNext(); entries.next()) {
+                        size++;
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+}
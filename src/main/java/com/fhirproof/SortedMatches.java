@@ -0,0 +1,153 @@
+package com.fhirproof;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The matches of a search in the order of its <tt>_sort</tt> parameter. The values the matches are sorted on are
+ * extracted once, up front, but the matches are only put in order as far as they are read: reading the first
+ * <tt>k</tt> selects them with a heap of <tt>k</tt> entries in a single pass, rather than sorting every match, so
+ * a page of the latest ten of many matches costs a pass over the values and not a full sort.
+ *
+ * Reading the list puts more of it in order, so it is not safe for concurrent use. The matches of a cursor are
+ * only read while holding the lock of the cursor.
+ */
+final class SortedMatches extends AbstractList<String> {
+
+    private final List<String> ids;
+    private final Comparable<?>[][] keys;
+    private final boolean[] descending;
+    // the rows in the order read so far, of which the first 'sorted' are in their final order
+    private final int[] order;
+    private int sorted = 0;
+
+    /**
+     * Constructs the sorted matches
+     * @param ids IDs of the matches, in the order they were found
+     * @param keys The values each match is sorted on, by position in <tt>ids</tt> and then by sort parameter.
+     *             A <tt>null</tt> value, for a match without one, sorts after the others.
+     * @param descending Whether each sort parameter sorts in descending order
+     */
+    SortedMatches(List<String> ids, Comparable<?>[][] keys, boolean[] descending) {
+        this.ids = ids;
+        this.keys = keys;
+        this.descending = descending;
+        this.order = new int[ids.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= order.length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        sortTo(index + 1);
+        return ids.get(order[index]);
+    }
+
+    @Override
+    public int size() {
+        return order.length;
+    }
+
+    @Override
+    public List<String> subList(int fromIndex, int toIndex) {
+        if (toIndex > order.length) {
+            throw new IndexOutOfBoundsException(String.valueOf(toIndex));
+        }
+        sortTo(toIndex);
+        return super.subList(fromIndex, toIndex);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        // iterating reads every match, so they are all put in order at once
+        sortTo(order.length);
+        return super.iterator();
+    }
+
+    /**
+     * Puts the first matches in their final order, if they aren't already.
+     * @param to The number of matches to put in order
+     */
+    private void sortTo(int to) {
+        if (to <= sorted) {
+            return;
+        }
+        // reading one match after another sorts ever larger runs, so the reads together cost no more than a sort
+        int count = Math.max(to, Math.min(order.length, sorted * 2)) - sorted;
+        int remaining = order.length - sorted;
+        Comparator<Integer> comparator = this::compare;
+
+        if ((long) count * 4 >= remaining) {
+            // selecting most of what remains is no cheaper than sorting it
+            Integer[] rest = new Integer[remaining];
+            for (int i = 0; i < remaining; i++) {
+                rest[i] = order[sorted + i];
+            }
+            Arrays.sort(rest, comparator);
+            for (int i = 0; i < remaining; i++) {
+                order[sorted + i] = rest[i];
+            }
+            sorted = order.length;
+            return;
+        }
+
+        // keep the 'count' first rows seen so far, with the last of them on top so it is the one replaced
+        PriorityQueue<Integer> heap = new PriorityQueue<>(count + 1, comparator.reversed());
+        for (int i = sorted; i < order.length; i++) {
+            int row = order[i];
+            if (heap.size() < count) {
+                heap.add(row);
+            } else if (compare(row, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(row);
+            }
+        }
+
+        // the selected rows follow the rows already in order, and the others follow them in their previous order
+        boolean[] selected = new boolean[order.length];
+        int[] first = new int[count];
+        for (int i = count - 1; i >= 0; i--) {
+            first[i] = heap.poll();
+            selected[first[i]] = true;
+        }
+        int[] rest = new int[remaining - count];
+        int next = 0;
+        for (int i = sorted; i < order.length; i++) {
+            if (!selected[order[i]]) {
+                rest[next++] = order[i];
+            }
+        }
+        System.arraycopy(first, 0, order, sorted, count);
+        System.arraycopy(rest, 0, order, sorted + count, rest.length);
+        sorted += count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(int left, int right) {
+        for (int i = 0; i < descending.length; i++) {
+            Comparable<Object> a = (Comparable<Object>) keys[left][i];
+            Comparable<Object> b = (Comparable<Object>) keys[right][i];
+            if (a == b) {
+                continue;
+            }
+            // matches without a value come last whichever the direction
+            if (a == null || b == null) {
+                return a == null ? 1 : -1;
+            }
+            int result = descending[i] ? b.compareTo(a) : a.compareTo(b);
+            if (result != 0) {
+                return result;
+            }
+        }
+        // matches that sort the same keep the order they were found in
+        return Integer.compare(left, right);
+    }
+}
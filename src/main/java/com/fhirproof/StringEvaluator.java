@@ -1,57 +1,77 @@
 package com.fhirproof;
 
 import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Address;
 import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Property;
 import org.hl7.fhir.r4.model.StringType;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
+import java.text.Normalizer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.regex.Pattern;
 
 /**
- * Search evaluator for string parameters
+ * Search evaluator for string parameters. Without a modifier a value matches if it starts with the parameter,
+ * ignoring case and accents. The <tt>exact</tt> modifier requires the whole value to match exactly and the
+ * <tt>contains</tt> modifier matches the parameter anywhere in the value, again ignoring case and accents.
  */
 public class StringEvaluator extends BaseEvaluator {
 
     protected static final String PARAM_TYPE = "string";
+    protected static final String EXACT = "exact";
+    protected static final String CONTAINS = "contains";
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
 
     public StringEvaluator(FhirContext fhirContext) {
         super(fhirContext);
     }
 
+    /**
+     * Normalizes a string for case and accent insensitive comparison.
+     * @param value The string to normalize
+     * @return The string with accents removed and case folded (e.g. an accented E becomes a plain e)
+     */
+    public static String normalize(String value) {
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
     @Override
     protected List<String> getComparisonValues(Base base) throws Exception {
         List<String> values = new ArrayList<>();
         if (base instanceof StringType) {
-            values.add(base.castToString(base).getValue());
+            add(values, (StringType) base);
+        } else if (base instanceof HumanName) {
+            // the most common complex string searches are read directly
+            HumanName name = (HumanName) base;
+            add(values, name.getTextElement());
+            add(values, name.getFamilyElement());
+            addAll(values, name.getGiven());
+            addAll(values, name.getPrefix());
+            addAll(values, name.getSuffix());
+        } else if (base instanceof Address) {
+            Address address = (Address) base;
+            add(values, address.getTextElement());
+            addAll(values, address.getLine());
+            add(values, address.getCityElement());
+            add(values, address.getDistrictElement());
+            add(values, address.getStateElement());
+            add(values, address.getPostalCodeElement());
+            add(values, address.getCountryElement());
         } else {
-
-            // some string searches are actually against complex objects that need to have their actual
-            // string primitive fields extracted for comparison
-            for (Field stringField :
-                    Arrays.stream(base.getClass().getDeclaredFields())
-                            .filter(f -> f.getType().equals(StringType.class))
-                            .collect(Collectors.toList())) {
-                stringField.setAccessible(true);
-                StringType value = (StringType) stringField.get(base);
-                if (value != null) values.add(value.getValue());
-            }
-
-            // also check for n..* type elements that should be added to the comparison list
-            for (Field list :
-                    Arrays.stream(base.getClass().getDeclaredFields())
-                            .filter(f -> f.getType().equals(List.class))
-                            .collect(Collectors.toList())) {
-                ParameterizedType actualType = (ParameterizedType) list.getGenericType();
-                if (actualType.getActualTypeArguments()[0].equals(StringType.class)) {
-                    list.setAccessible(true);
-                    Object obj = list.get(base);
-                    if (obj == null) continue;
-                    for (StringType value : (ArrayList<StringType>) obj) {
-                        if (value != null) values.add(value.getValue());
+            // other string searches against complex objects compare the string primitives of the object itself
+            for (Property property : base.children()) {
+                if (property.getName().equals("id")) {
+                    continue;
+                }
+                for (Base value : property.getValues()) {
+                    if (value instanceof StringType) {
+                        add(values, (StringType) value);
                     }
                 }
             }
@@ -59,10 +79,34 @@ public class StringEvaluator extends BaseEvaluator {
         return values;
     }
 
+    private static void add(List<String> values, StringType value) {
+        if (value != null && value.getValue() != null) {
+            values.add(value.getValue());
+        }
+    }
+
+    private static void addAll(List<String> values, List<StringType> list) {
+        for (StringType value : list) {
+            add(values, value);
+        }
+    }
+
     @Override
     protected boolean compare(String param, String query) {
+        return normalize(query).startsWith(normalize(param));
+    }
 
-        return param.equalsIgnoreCase(query);
+    @Override
+    protected boolean compare(String param, String query, String modifier) {
+        if (modifier == null) {
+            return compare(param, query);
+        } else if (modifier.equals(EXACT)) {
+            return param.equals(query);
+        } else if (modifier.equals(CONTAINS)) {
+            return normalize(query).contains(normalize(param));
+        }
+        throw new FHIRException(
+                String.format("Modifier ':%s' is not supported for '%s' searches", modifier, PARAM_TYPE));
     }
 
     @Override
@@ -0,0 +1,112 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Search index for string parameters. Each value is indexed under its normalized form in a sorted map, so the
+ * default starts-with search is a range scan over the values sharing the normalized prefix, and under its exact
+ * form for the <tt>exact</tt> modifier.
+ */
+public class StringIndex extends BaseSearchIndex implements ISortIndex {
+
+    private final TreeMap<String, Set<String>> normalized = new TreeMap<>();
+    private final HashMap<String, Set<String>> exact = new HashMap<>();
+    private final HashMap<String, List<String>> valuesById = new HashMap<>();
+
+    private final StringEvaluator evaluator;
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the search parameter path the index is built from
+     * @param evaluator Evaluator used to extract the string values
+     */
+    public StringIndex(IPathAccessor accessor, StringEvaluator evaluator) {
+        super(accessor);
+        this.evaluator = evaluator;
+    }
+
+    @Override
+    protected void index(String id, List<Base> values) throws Exception {
+        List<String> strings = new ArrayList<>();
+        for (Base value : values) {
+            strings.addAll(evaluator.getComparisonValues(value));
+        }
+        valuesById.put(id, strings);
+        for (String string : strings) {
+            exact.computeIfAbsent(string, k -> new HashSet<>()).add(id);
+            normalized.computeIfAbsent(StringEvaluator.normalize(string), k -> new HashSet<>()).add(id);
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        List<String> strings = valuesById.remove(id);
+        if (strings == null) {
+            return;
+        }
+        for (String string : strings) {
+            unlink(exact, string, id);
+            unlink(normalized, StringEvaluator.normalize(string), id);
+        }
+    }
+
+    @Override
+    protected Set<String> match(String condition) {
+        String prefix = StringEvaluator.normalize(condition);
+        Set<String> ids = new HashSet<>();
+        // the sorted keys sharing the prefix are contiguous, starting at the prefix itself
+        for (Map.Entry<String, Set<String>> entry : normalized.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            ids.addAll(entry.getValue());
+        }
+        return ids;
+    }
+
+    @Override
+    protected Set<String> match(String condition, String modifier) {
+        if (modifier == null) {
+            return match(condition);
+        } else if (modifier.equals(StringEvaluator.EXACT)) {
+            Set<String> ids = exact.get(condition);
+            return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+        }
+        return null;
+    }
+
+    @Override
+    public Comparable<?> getSortKey(String id, boolean descending) {
+        List<String> strings = valuesById.get(id);
+        if (strings == null) {
+            return null;
+        }
+        String key = null;
+        for (String string : strings) {
+            String value = StringEvaluator.normalize(string);
+            if (key == null || (descending ? value.compareTo(key) > 0 : value.compareTo(key) < 0)) {
+                key = value;
+            }
+        }
+        return key;
+    }
+
+    private static void unlink(Map<String, Set<String>> postings, String key, String id) {
+        Set<String> ids = postings.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    }
+}
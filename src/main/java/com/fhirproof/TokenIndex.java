@@ -0,0 +1,58 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Search index for token parameters. Each value is indexed under its full <tt>system|code</tt> token, its system
+ * and its code, which covers every form {@link TokenEvaluator} compares against with a single hash lookup.
+ */
+public class TokenIndex extends KeyedSearchIndex {
+
+    private static final String TOKEN = "=";
+    private static final String SYSTEM = "s";
+    private static final String CODE = "c";
+
+    private final TokenEvaluator evaluator;
+
+    /**
+     * Constructs an empty index
+     * @param accessor Accessor for the search parameter path the index is built from
+     * @param evaluator Evaluator used to build the comparison tokens
+     */
+    public TokenIndex(IPathAccessor accessor, TokenEvaluator evaluator) {
+        super(accessor);
+        this.evaluator = evaluator;
+    }
+
+    @Override
+    protected List<String> getKeys(Base value) throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (String token : evaluator.getComparisonValues(value)) {
+            keys.add(TOKEN + token);
+            int index = token.indexOf('|');
+            if (index >= 0) {
+                keys.add(SYSTEM + token.substring(0, index));
+            }
+            keys.add(CODE + token.substring(index + 1));
+        }
+        return keys;
+    }
+
+    @Override
+    protected Set<String> match(String condition) {
+        // mirrors the precedence of TokenEvaluator.compare
+        if (condition.startsWith("|")) {
+            return lookup(TOKEN + condition.substring(1));
+        } else if (condition.endsWith("|")) {
+            return lookup(SYSTEM + condition.substring(0, condition.length() - 1));
+        } else if (condition.contains("|")) {
+            return lookup(TOKEN + condition);
+        } else {
+            return lookup(CODE + condition);
+        }
+    }
+}
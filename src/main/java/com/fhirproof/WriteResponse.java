@@ -0,0 +1,86 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Date;
+
+/**
+ * This is the output of a create or update in the FHIR Proof store, shaped by the {@link ReturnPreference} of
+ * the write.
+ */
+public class WriteResponse {
+    private final String id;
+    private final String versionId;
+    private final Date lastUpdated;
+    private final int status;
+    private final Resource resource;
+    private final OperationOutcome outcome;
+
+    /**
+     * Constructs a new response
+     * @param id ID of the written resource
+     * @param versionId Version ID of the written resource
+     * @param lastUpdated Time of the write
+     * @param status Response HTTP status code
+     * @param resource Copy of the written resource, or <tt>null</tt> if it was not asked for
+     * @param outcome Outcome of the write, or <tt>null</tt> if it was not asked for
+     */
+    public WriteResponse(String id, String versionId, Date lastUpdated, int status, Resource resource, OperationOutcome outcome) {
+        this.id = id;
+        this.versionId = versionId;
+        this.lastUpdated = lastUpdated;
+        this.status = status;
+        this.resource = resource;
+        this.outcome = outcome;
+    }
+
+    /**
+     * Gets the ID of the written resource
+     * @return the ID of the written resource
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the version ID of the written resource
+     * @return the version ID of the written resource
+     */
+    public String getVersionId() {
+        return versionId;
+    }
+
+    /**
+     * Gets the time of the write
+     * @return the time of the write
+     */
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
+    /**
+     * Gets the write HTTP response status
+     * @return the write HTTP response status (e.g. 201)
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets a copy of the written resource
+     * @param <T> Resource type written
+     * @return a copy of the written resource, or <tt>null</tt> unless the representation was asked for
+     */
+    public <T extends Resource> T getResource() {
+        return (T) resource;
+    }
+
+    /**
+     * Gets the outcome of the write
+     * @return the outcome of the write, or <tt>null</tt> unless the OperationOutcome was asked for
+     */
+    public OperationOutcome getOutcome() {
+        return outcome;
+    }
+}
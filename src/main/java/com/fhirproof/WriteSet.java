@@ -0,0 +1,104 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes staged by a transaction, by resource type and ID, in the order they were first made. Nothing in the
+ * write set is visible in the store until the whole set is published, and discarding it leaves the store as it
+ * was.
+ */
+final class WriteSet {
+
+    // a null resource stages the deletion of the resource
+    private final Map<String, Map<String, Resource>> writes = new LinkedHashMap<>();
+    // the stored versions the changes were staged against, a null resource where there was none
+    private final Map<String, Map<String, Resource>> reads = new LinkedHashMap<>();
+
+    /**
+     * Indicates whether the write set changes a resource.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @return True if the resource is created, updated or deleted by the write set
+     */
+    boolean contains(String resource, String id) {
+        return writes.containsKey(resource) && writes.get(resource).containsKey(id);
+    }
+
+    /**
+     * Gets the staged version of a resource.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @return The staged version, or <tt>null</tt> if the resource is deleted or not changed by the write set
+     */
+    Resource get(String resource, String id) {
+        return writes.containsKey(resource) ? writes.get(resource).get(id) : null;
+    }
+
+    /**
+     * Stages a new version of a resource.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @param instance The new version, which the write set takes ownership of
+     */
+    void put(String resource, String id, Resource instance) {
+        writes.computeIfAbsent(resource, k -> new LinkedHashMap<>()).put(id, instance);
+    }
+
+    /**
+     * Stages the deletion of a resource.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     */
+    void delete(String resource, String id) {
+        writes.computeIfAbsent(resource, k -> new LinkedHashMap<>()).put(id, null);
+    }
+
+    /**
+     * Records the stored version of a resource the write set read, the first time it reads it.
+     * @param resource Resource type (e.g. Patient)
+     * @param id ID of the resource
+     * @param stored The stored version, or <tt>null</tt> if the resource was not stored
+     */
+    void addRead(String resource, String id, Resource stored) {
+        Map<String, Resource> read = reads.computeIfAbsent(resource, k -> new LinkedHashMap<>());
+        if (!read.containsKey(id)) {
+            read.put(id, stored);
+        }
+    }
+
+    /**
+     * Gets the stored versions of one resource type the write set read, to check they are still stored before
+     * publishing it.
+     * @param resource Resource type (e.g. Patient)
+     * @return The stored versions by ID, with <tt>null</tt> for resources that were not stored
+     */
+    Map<String, Resource> getReads(String resource) {
+        return reads.containsKey(resource) ? Collections.unmodifiableMap(reads.get(resource)) : Collections.emptyMap();
+    }
+
+    /**
+     * Gets the resource types changed by the write set
+     * @return the resource types changed by the write set
+     */
+    Set<String> getTypes() {
+        return Collections.unmodifiableSet(writes.keySet());
+    }
+
+    /**
+     * Gets the changes to one resource type.
+     * @param resource Resource type (e.g. Patient)
+     * @return The staged versions by ID, with <tt>null</tt> for deleted resources
+     */
+    Map<String, Resource> getWrites(String resource) {
+        return writes.containsKey(resource) ? Collections.unmodifiableMap(writes.get(resource)) : Collections.emptyMap();
+    }
+
+    boolean isEmpty() {
+        return writes.isEmpty();
+    }
+}
@@ -0,0 +1,206 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class ConcurrentStoreTests {
+
+    private static final int THREADS = 8;
+    private static final int PER_THREAD = 50;
+
+    @Test
+    public void search_does_not_change_store() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        Assert.assertEquals(0, store.search("Patient", "gender=female").getTotal());
+        Assert.assertFalse(store.store().containsKey("Patient"));
+    }
+
+    @Test
+    public void concurrent_writes_and_searches() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+            store.setIndexing(indexing);
+            int existing = store.search("Patient", "identifier=urn:concurrent|").getTotal();
+
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < PER_THREAD; i++) {
+                        String value = thread + "-" + i;
+                        String id = store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:concurrent").setValue(value)));
+                        // every thread sees its own writes, whatever the others are doing
+                        Assert.assertEquals(1, store.search("Patient", "identifier=urn:concurrent|" + value).getTotal());
+                        store.update("Patient", id, new Patient().addIdentifier(new Identifier().setSystem("urn:concurrent").setValue(value + "u")));
+                        Assert.assertEquals(1, store.search("Patient", "identifier=urn:concurrent|" + value + "u").getTotal());
+                        Assert.assertNotNull(store.read("Patient", id));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            pool.shutdown();
+            Assert.assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+
+            Assert.assertEquals(existing + THREADS * PER_THREAD, store.search("Patient", "identifier=urn:concurrent|").getTotal());
+        }
+    }
+
+    @Test
+    public void concurrent_conditional_creates() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<ConditionalCreateResponse>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(pool.submit(() -> store.conditionalCreate(
+                    new Patient().addIdentifier(new Identifier().setSystem("urn:mrn").setValue("once")), "identifier=urn:mrn|once")));
+        }
+        int created = 0;
+        for (Future<ConditionalCreateResponse> future : futures) {
+            if (future.get().getStatus() == 201) {
+                created++;
+            }
+        }
+        pool.shutdown();
+
+        Assert.assertEquals(1, created);
+        Assert.assertEquals(1, store.search("Patient", "identifier=urn:mrn|once").getTotal());
+    }
+
+    @Test
+    public void crossed_conditional_references_do_not_deadlock() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        // the lookups only lock the type they search when the indexes are used
+        store.setIndexing(true);
+        String target = store.create(new Encounter().addIdentifier(new Identifier().setSystem("urn:crossed").setValue("e")));
+        store.create(new Observation().addIdentifier(new Identifier().setSystem("urn:crossed").setValue("o")));
+
+        // each transaction writes the type the other one looks its conditional reference up in
+        Resource observation = new Observation().setEncounter(new Reference("Encounter?identifier=urn:crossed|e"));
+        Resource encounter = new Encounter().addReasonReference(new Reference("Observation?identifier=urn:crossed|o"));
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Resource resource : new Resource[] { observation, encounter }) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < PER_THREAD * 4; i++) {
+                        Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+                        transaction.addEntry().setResource(resource.copy()).setRequest(new Bundle.BundleEntryRequestComponent()
+                                .setMethod(Bundle.HTTPVerb.POST).setUrl(resource.getResourceType().name()));
+                        store.executeTransaction(transaction);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Assert.assertEquals(PER_THREAD * 4, store.search("Observation", "encounter=Encounter/" + target).getTotal());
+    }
+
+    @Test
+    public void concurrent_batch_updates_of_one_resource() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        store.setForkJoinPool(new ForkJoinPool(4));
+        String id = store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:batched").setValue("0")));
+
+        // the batch entries are staged without locks, so updates from other batches get in between and are retried
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                List<String> etags = new ArrayList<>();
+                for (int i = 0; i < PER_THREAD; i++) {
+                    Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+                    batch.addEntry().setResource(new Patient().addIdentifier(new Identifier().setSystem("urn:batched").setValue(thread + "-" + i)))
+                            .setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.PUT).setUrl("Patient/" + id));
+                    Bundle.BundleEntryResponseComponent response = store.executeTransaction(batch).getEntryFirstRep().getResponse();
+                    Assert.assertEquals("200 OK", response.getStatus());
+                    etags.add(response.getEtag());
+                }
+                return etags;
+            }));
+        }
+        Set<String> etags = new HashSet<>();
+        for (Future<List<String>> future : futures) {
+            etags.addAll(future.get(1, TimeUnit.MINUTES));
+        }
+        pool.shutdown();
+
+        // every update got a version of its own, and none was lost
+        Assert.assertEquals(THREADS * PER_THREAD, etags.size());
+        Assert.assertEquals(String.valueOf(1 + THREADS * PER_THREAD), store.<Patient>read("Patient", id).getMeta().getVersionId());
+        Assert.assertEquals(1 + THREADS * PER_THREAD, store.history("Patient", id, "").getTotal());
+    }
+
+    @Test
+    public void parallel_scan_matches_serial_scan() throws Exception {
+        String[] queries = {
+                "family=fam&gender=female",
+                "name:contains=7&birthdate=ge1950",
+                "identifier=urn:scan|&gender=male",
+                "active=true"
+        };
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore serial = TestFhirStore.getFhirStoreCopy();
+            FhirProofStore parallel = TestFhirStore.getFhirStoreCopy();
+            for (FhirProofStore store : new FhirProofStore[] { serial, parallel }) {
+                store.setIndexing(indexing);
+                for (int i = 0; i < 1000; i++) {
+                    store.create(new Patient()
+                            .setActive(i % 3 == 0)
+                            .setGender(i % 2 == 0 ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE)
+                            .setBirthDateElement(new DateType(String.valueOf(1900 + i % 100)))
+                            .addName(new HumanName().setFamily("Family" + i))
+                            .addIdentifier(new Identifier().setSystem("urn:scan").setValue(String.valueOf(i))));
+                }
+            }
+            ForkJoinPool pool = new ForkJoinPool(4);
+            parallel.setForkJoinPool(pool);
+            parallel.setParallelScanThreshold(1);
+
+            for (String query : queries) {
+                Assert.assertEquals(query, ids(serial.search("Patient", query)), ids(parallel.search("Patient", query)));
+            }
+            // references are resolved in the snapshot of the search on the workers too
+            String query = "patient=" + TestFhirStore.ID_PAT_1234567;
+            Assert.assertEquals(query, ids(serial.search("Encounter", query)), ids(parallel.search("Encounter", query)));
+            pool.shutdown();
+        }
+    }
+
+    private static List<String> ids(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(e -> e.getResource().getIdElement().getIdPart())
+                .collect(Collectors.toList());
+    }
+}
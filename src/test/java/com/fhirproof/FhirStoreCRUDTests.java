@@ -178,4 +178,40 @@ public class FhirStoreCRUDTests {
         FhirProofStore store = TestFhirStore.getFhirStoreCopy();
         store.read("Patient", "szdvasg");
     }
+
+    @Test
+    public void create_and_update_return_preference() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+
+        WriteResponse minimal = store.create(new Patient().setActive(true), ReturnPreference.MINIMAL);
+        Assert.assertEquals(201, minimal.getStatus());
+        Assert.assertNotNull(minimal.getVersionId());
+        Assert.assertNotNull(minimal.getLastUpdated());
+        Assert.assertNull(minimal.getResource());
+        Assert.assertNull(minimal.getOutcome());
+        Patient stored = store.read("Patient", minimal.getId());
+        Assert.assertEquals(stored.getMeta().getVersionId(), minimal.getVersionId());
+
+        WriteResponse representation = store.update("Patient", minimal.getId(), new Patient().setActive(false), ReturnPreference.REPRESENTATION);
+        Assert.assertEquals(200, representation.getStatus());
+        Patient returned = representation.getResource();
+        Assert.assertFalse(returned.getActive());
+        Assert.assertTrue(returned.equalsDeep(store.read("Patient", minimal.getId())));
+        // the representation is a copy, so changing it leaves the store alone
+        returned.setActive(true);
+        Assert.assertFalse(store.<Patient>read("Patient", minimal.getId()).getActive());
+
+        WriteResponse outcome = store.create(new Patient(), ReturnPreference.OPERATION_OUTCOME);
+        Assert.assertNull(outcome.getResource());
+        Assert.assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getOutcome().getIssueFirstRep().getSeverity());
+        Assert.assertEquals("Created Patient/" + outcome.getId(), outcome.getOutcome().getIssueFirstRep().getDiagnostics());
+    }
+
+    @Test
+    public void return_preference_codes() throws Exception {
+        Assert.assertEquals(ReturnPreference.MINIMAL, ReturnPreference.forCode("minimal"));
+        Assert.assertEquals(ReturnPreference.REPRESENTATION, ReturnPreference.forCode("return=representation"));
+        Assert.assertEquals(ReturnPreference.OPERATION_OUTCOME, ReturnPreference.forCode("OperationOutcome"));
+        Assert.assertThrows(FhirProofException.class, () -> ReturnPreference.forCode("everything"));
+    }
 }
@@ -2,6 +2,8 @@ package com.fhirproof;
 
 import com.fhirproof.resources.TestFhirStore;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -162,4 +164,34 @@ public class FhirStoreGeneralTests {
             Assert.assertEquals("Universal parameter of '_language' is not supported", ex.getMessage());
         }
     }
+
+    @Test
+    public void resource_type_definitions_shared() throws Exception {
+        ResourceTypeDefinition definition = ResourceTypeRegistry.getDefinition("Patient");
+        Assert.assertSame(definition, ResourceTypeRegistry.getDefinition("Patient"));
+        Assert.assertEquals(Patient.class, definition.getResourceClass());
+        Assert.assertEquals("token", definition.getParameter("identifier").getType());
+        Assert.assertEquals("Patient.id", definition.getParameter("_id").getPath());
+        Assert.assertNull(definition.getParameter("_language").getPath());
+        Assert.assertNull(definition.getParameter("fake"));
+    }
+
+    @Test(expected = FhirProofException.class)
+    public void resource_type_definition_unknown_type() throws Exception {
+        ResourceTypeRegistry.getDefinition("NotAResource");
+    }
+
+    @Test
+    public void conditional_create_from_json() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        String json = TestFhirStore.PARSER.encodeResourceToString(
+                new Patient().addIdentifier(new Identifier().setSystem("urn:mrn").setValue("cc-json")));
+
+        ConditionalCreateResponse created = store.conditionalCreate("Patient", json, "identifier=urn:mrn|cc-json");
+        Assert.assertEquals(201, created.getStatus());
+
+        ConditionalCreateResponse existing = store.conditionalCreate("Patient", json, "identifier=urn:mrn|cc-json");
+        Assert.assertEquals(200, existing.getStatus());
+        Assert.assertEquals(created.getResponse(), existing.getResponse());
+    }
 }
@@ -2,11 +2,23 @@ package com.fhirproof;
 
 import com.fhirproof.resources.TestFhirStore;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Provenance;
+import org.hl7.fhir.r4.model.Reference;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -104,4 +116,124 @@ public class FhirStoreSearchExtendedTests {
                     , bundle.getEntry().stream().anyMatch(e -> e.getResource().getIdElement().getIdPart().equals(expected.getValue())));
         }
     }
+
+    @Test
+    public void testRevIncludeManyPrimaryMatches() throws IOException, FhirProofException {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = new FhirProofStore();
+            store.setIndexing(indexing);
+            List<String> patients = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                String id = store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:many").setValue(String.valueOf(i))));
+                patients.add(id);
+                store.create(new Encounter().setSubject(new Reference("Patient/" + id)));
+                store.create(new Encounter().setSubject(new Reference("Patient/" + id)));
+            }
+            // every provenance refers to two of the matches, but is only included once
+            for (int i = 0; i < 300; i += 2) {
+                store.create(new Provenance()
+                        .addTarget(new Reference("Patient/" + patients.get(i)))
+                        .addTarget(new Reference("Patient/" + patients.get(i + 1))));
+            }
+
+            Bundle bundle = store.search("Patient", "identifier=urn:many|&_revinclude=Encounter:subject&_revinclude=Provenance:target");
+            assertEquals("Bundle has every patient, encounter and provenance", 300 + 600 + 150, bundle.getTotal());
+            Set<String> keys = bundle.getEntry().stream()
+                    .map(e -> e.getResource().getResourceType().name() + "/" + e.getResource().getIdElement().getIdPart())
+                    .collect(Collectors.toSet());
+            assertEquals("Bundle has no duplicate entries", bundle.getEntry().size(), keys.size());
+        }
+    }
+
+    @Test
+    public void testInclude() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+
+        Bundle bundle = store.search("Encounter", String.format("patient=%s&_include=Encounter:subject", TestFhirStore.ID_PAT_1234567));
+        assertEquals("Bundle has both encounters and their patient once", 3, bundle.getEntry().size());
+        assertEquals(keys("Encounter/" + TestFhirStore.ID_ENC_1234567_HH, "Encounter/" + TestFhirStore.ID_ENC_1234567_AMB,
+                "Patient/" + TestFhirStore.ID_PAT_1234567), keys(bundle));
+    }
+
+    @Test
+    public void testIncludeTargetType() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        String query = "_id=" + TestFhirStore.ID_OBS_9090909_GLUCOSE;
+
+        assertEquals(keys("Observation/" + TestFhirStore.ID_OBS_9090909_GLUCOSE, "Patient/" + TestFhirStore.ID_PAT_9090909),
+                keys(store.search("Observation", query + "&_include=Observation:subject:Patient")));
+        assertEquals(keys("Observation/" + TestFhirStore.ID_OBS_9090909_GLUCOSE),
+                keys(store.search("Observation", query + "&_include=Observation:subject:Group")));
+    }
+
+    @Test
+    public void testIncludeIterate() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        String query = "_id=" + TestFhirStore.ID_OBS_1234567_BLOOD + "&_include=Observation:encounter";
+
+        // without :iterate the encounter's subject is not included, as the encounter is not a match
+        assertEquals(keys("Observation/" + TestFhirStore.ID_OBS_1234567_BLOOD, "Encounter/" + TestFhirStore.ID_ENC_1234567_AMB),
+                keys(store.search("Observation", query + "&_include=Encounter:subject")));
+        assertEquals(keys("Observation/" + TestFhirStore.ID_OBS_1234567_BLOOD, "Encounter/" + TestFhirStore.ID_ENC_1234567_AMB,
+                "Patient/" + TestFhirStore.ID_PAT_1234567),
+                keys(store.search("Observation", query + "&_include:iterate=Encounter:subject")));
+        assertEquals(keys("Observation/" + TestFhirStore.ID_OBS_1234567_BLOOD, "Encounter/" + TestFhirStore.ID_ENC_1234567_AMB,
+                "Patient/" + TestFhirStore.ID_PAT_1234567),
+                keys(store.search("Observation", query + "&_include:recurse=Encounter:subject")));
+
+        // an iterated reverse include applies to the resources reverse included before it
+        assertEquals(keys("Patient/" + TestFhirStore.ID_PAT_3333333, "Encounter/" + TestFhirStore.ID_ENC_3333333,
+                "Observation/" + TestFhirStore.ID_OBS_3333333_NO),
+                keys(store.search("Patient", "identifier=3333333&_revinclude=Encounter:subject&_revinclude:iterate=Observation:encounter")));
+    }
+
+    @Test
+    public void testIncludeNotReference() throws IOException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        try {
+            store.search("Observation", "_include=Observation:code");
+            fail("Expected an include of a token parameter to fail");
+        } catch (FhirProofException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Status 400"));
+        }
+    }
+
+    @Test
+    public void testIncludeManyPrimaryMatches() throws IOException, FhirProofException {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = new FhirProofStore();
+            store.setIndexing(indexing);
+            String patient = null;
+            for (int i = 0; i < 300; i++) {
+                // every ten observations share a patient, which is included once
+                if (i % 10 == 0) {
+                    patient = store.create(new Patient());
+                }
+                String encounter = store.create(new Encounter().setSubject(new Reference("Patient/" + patient)));
+                store.create(new Observation()
+                        .addIdentifier(new Identifier().setSystem("urn:many").setValue(String.valueOf(i)))
+                        .setEncounter(new Reference("Encounter/" + encounter)));
+            }
+            String query = "identifier=urn:many|&_include=Observation:encounter&_include:iterate=Encounter:subject";
+
+            Bundle bundle = store.search("Observation", query);
+            assertEquals("Bundle has every observation, encounter and patient", 300 + 300 + 30, bundle.getTotal());
+            assertEquals("Bundle has no duplicate entries", bundle.getEntry().size(), keys(bundle).size());
+
+            // a page includes the resources its own matches refer to
+            Bundle page = store.search("Observation", query + "&_count=10&_offset=20");
+            assertEquals(300, page.getTotal());
+            assertEquals("Page has ten observations, their encounters and patient", 10 + 10 + 1, page.getEntry().size());
+        }
+    }
+
+    private static Set<String> keys(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    private static Set<String> keys(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(e -> e.getResource().getResourceType().name() + "/" + e.getResource().getIdElement().getIdPart())
+                .collect(Collectors.toSet());
+    }
 }
@@ -294,6 +294,138 @@ public class FhirStoreSearchTests {
         Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
     }
 
+    @Test
+    public void number_search_greater_by_magnitude() throws IOException, FhirProofException {
+        String query = "probability=gt9";
+        String resource = "RiskAssessment";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds =
+                Arrays.asList(
+                        TestFhirStore.ID_RISK_22_1_1,
+                        TestFhirStore.ID_RISK_22_1_2,
+                        TestFhirStore.ID_RISK_62_6,
+                        TestFhirStore.ID_RISK_84_0);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void number_search_implicit_precision() throws IOException, FhirProofException {
+        String query = "probability=22";
+        String resource = "RiskAssessment";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds =
+                Arrays.asList(TestFhirStore.ID_RISK_22_1_1, TestFhirStore.ID_RISK_22_1_2);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void number_search_ignores_scale() throws IOException, FhirProofException {
+        String query = "probability=84";
+        String resource = "RiskAssessment";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_RISK_84_0);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void number_search_starts_after() throws IOException, FhirProofException {
+        String query = "probability=sa62.6";
+        String resource = "RiskAssessment";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_RISK_84_0);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void number_search_ends_before() throws IOException, FhirProofException {
+        String query = "probability=eb22.1";
+        String resource = "RiskAssessment";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_RISK_1_22);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void number_search_approximate() throws IOException, FhirProofException {
+        String query = "probability=ap60";
+        String resource = "RiskAssessment";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_RISK_62_6);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
     @Test
     public void date_search_exact() throws IOException, FhirProofException {
         String query = "date=1963-05-26T12:13:14-05:00";
@@ -468,6 +600,137 @@ public class FhirStoreSearchTests {
         Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
     }
 
+    @Test
+    public void date_search_month_precision() throws IOException, FhirProofException {
+        String query = "date=1963-05";
+        String resource = "Observation";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_OBS_1675934_NO);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void date_search_not_equal() throws IOException, FhirProofException {
+        String query = "date=ne1963-05";
+        String resource = "Observation";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds =
+                Arrays.asList(
+                        TestFhirStore.ID_OBS_9090909_GLUCOSE,
+                        TestFhirStore.ID_OBS_3333333_NO,
+                        TestFhirStore.ID_OBS_1234567_BLOOD);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void date_search_starts_after() throws IOException, FhirProofException {
+        String query = "date=sa1963-05";
+        String resource = "Observation";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_OBS_9090909_GLUCOSE);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void date_search_ends_before() throws IOException, FhirProofException {
+        String query = "date=eb1963-05";
+        String resource = "Observation";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds =
+                Arrays.asList(TestFhirStore.ID_OBS_3333333_NO, TestFhirStore.ID_OBS_1234567_BLOOD);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void date_search_approximate() throws IOException, FhirProofException {
+        String query = "date=ap1965";
+        String resource = "Observation";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_OBS_1675934_NO);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void date_search_year_boundaries() throws IOException, FhirProofException {
+        String query = "birthdate=lt1888&birthdate=ge1887";
+        String resource = "Patient";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_PAT_1234567);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
     @Test
     public void reference_search_general() throws IOException, FhirProofException {
         String query = "subject=Patient/" + TestFhirStore.ID_PAT_1234567;
@@ -771,4 +1034,88 @@ public class FhirStoreSearchTests {
         Assert.assertEquals(expectedIds.size(), bundle.getTotal());
         Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
     }
+
+    @Test
+    public void string_search_starts_with() throws IOException, FhirProofException {
+        String query = "given=FRA";
+        String resource = "Patient";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_PAT_3333333);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void string_search_exact() throws IOException, FhirProofException {
+        String query = "given:exact=Frank";
+        String resource = "Patient";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_PAT_3333333);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void string_search_exact_case_sensitive() throws IOException, FhirProofException {
+        String query = "given:exact=frank";
+        String resource = "Patient";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList();
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
+
+    @Test
+    public void string_search_contains() throws IOException, FhirProofException {
+        String query = "family:contains=ARK";
+        String resource = "Patient";
+        Bundle bundle = TestFhirStore.getFhirStoreCopy().search(resource, query);
+
+        List<String> expectedIds = Arrays.asList(TestFhirStore.ID_PAT_1234567);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String id = entry.getResource().getIdElement().getIdPart();
+            if (!expectedIds.stream().anyMatch(i -> id.equals(i))) {
+                Assert.fail(
+                        String.format(
+                                "Unexpected search result for query '%s': %s",
+                                query, TestFhirStore.PARSER.encodeResourceToString(entry.getResource())));
+            }
+        }
+        Assert.assertEquals(expectedIds.size(), bundle.getTotal());
+        Assert.assertEquals(expectedIds.size(), bundle.getEntry().size());
+    }
 }
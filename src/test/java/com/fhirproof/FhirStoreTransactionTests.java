@@ -6,6 +6,10 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -347,6 +351,255 @@ public class FhirStoreTransactionTests {
         assertFalse("Response has no entries", response.hasEntry());
     }
 
+    @Test
+    public void testFailedTransactionWritesNothing() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        int practitioners = store.store().get("Practitioner").size();
+        Patient patient = store.read("Patient", TestFhirStore.ID_PAT_9090909);
+
+        Bundle trans = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                .setResource(new Practitioner().addName(new HumanName().setFamily("Williams")));
+        trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.PUT)
+                .setUrl("Patient/" + TestFhirStore.ID_PAT_9090909))
+                .setResource(patient.copy().setGender(Enumerations.AdministrativeGender.OTHER));
+        trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.DELETE)
+                .setUrl("Practitioner/" + TestFhirStore.ID_PRAC_DR_NO));
+        trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.DELETE)
+                .setUrl("Patient/fake-patient"));
+
+        assertThrows("Transaction with a failing entry", FhirProofException.class, () -> store.executeTransaction(trans));
+        assertEquals("No practitioner created or deleted", practitioners, store.store().get("Practitioner").size());
+        assertTrue("Practitioner not deleted", store.store().get("Practitioner").containsKey(TestFhirStore.ID_PRAC_DR_NO));
+        assertTrue("Patient not updated", patient.equalsDeep(store.read("Patient", TestFhirStore.ID_PAT_9090909)));
+    }
+
+    @Test
+    public void testIfMatchTransaction() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Patient patient = store.read("Patient", TestFhirStore.ID_PAT_9090909);
+        String version = patient.getMeta().getVersionId();
+
+        Bundle stale = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        stale.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.PUT)
+                .setUrl("Patient/" + TestFhirStore.ID_PAT_9090909).setIfMatch("W/\"stale\""))
+                .setResource(patient.copy().setGender(Enumerations.AdministrativeGender.OTHER));
+        assertThrows("Update of a stale version", FhirProofException.class, () -> store.executeTransaction(stale));
+        assertTrue("Patient not updated", patient.equalsDeep(store.read("Patient", TestFhirStore.ID_PAT_9090909)));
+
+        Bundle current = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        current.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.PUT)
+                .setUrl("Patient/" + TestFhirStore.ID_PAT_9090909).setIfMatch(String.format("W/\"%s\"", version)))
+                .setResource(patient.copy().setGender(Enumerations.AdministrativeGender.OTHER));
+        Bundle response = store.executeTransaction(current);
+        assertEquals("Transaction response Status matches", "200 OK", response.getEntryFirstRep().getResponse().getStatus());
+        assertEquals("Patient updated", Enumerations.AdministrativeGender.OTHER,
+                store.<Patient>read("Patient", TestFhirStore.ID_PAT_9090909).getGender());
+    }
+
+    @Test
+    public void testConditionalCreateSeesEarlierEntries() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Bundle trans = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < 2; i++) {
+            trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST)
+                    .setIfNoneExist("identifier=http://fake.org/ids/|888"))
+                    .setResource(new Practitioner().addIdentifier(new Identifier().setSystem("http://fake.org/ids/").setValue("888")));
+        }
+
+        Bundle response = store.executeTransaction(trans);
+        assertEquals("First entry creates", "201 Created", response.getEntry().get(0).getResponse().getStatus());
+        assertEquals("Second entry finds the first", "200 OK", response.getEntry().get(1).getResponse().getStatus());
+        assertEquals("Both entries at the same location",
+                response.getEntry().get(0).getResponse().getLocation(), response.getEntry().get(1).getResponse().getLocation());
+        assertEquals("One practitioner created", 1, store.search("Practitioner", "identifier=http://fake.org/ids/|888").getTotal());
+    }
+
+    @Test
+    public void testBatchEntriesSucceedOrFailIndependently() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+        batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                .setResource(new Practitioner().addIdentifier(new Identifier().setSystem("http://fake.org/ids/").setValue("999")));
+        batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.DELETE)
+                .setUrl("Patient/fake-patient"));
+        batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.GET)
+                .setUrl("Patient/" + TestFhirStore.ID_PAT_2222222));
+        batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent());
+
+        Bundle response = store.executeTransaction(batch);
+        assertEquals("Response is a Batch-Response type", Bundle.BundleType.BATCHRESPONSE, response.getType());
+        assertEquals("One response per entry", 4, response.getEntry().size());
+        assertEquals("Create succeeded", "201 Created", response.getEntry().get(0).getResponse().getStatus());
+        assertEquals("Delete failed", "404 Not Found", response.getEntry().get(1).getResponse().getStatus());
+        OperationOutcome outcome = (OperationOutcome) response.getEntry().get(1).getResponse().getOutcome();
+        assertEquals("Delete failure explained", OperationOutcome.IssueType.NOTFOUND, outcome.getIssueFirstRep().getCode());
+        assertEquals("Read succeeded", "200 OK", response.getEntry().get(2).getResponse().getStatus());
+        assertTrue("Read returned the patient", response.getEntry().get(2).hasResource());
+        assertEquals("Entry without a method failed", "400 Bad Request", response.getEntry().get(3).getResponse().getStatus());
+        assertEquals("Practitioner created despite the failures", 1,
+                store.search("Practitioner", "identifier=http://fake.org/ids/|999").getTotal());
+    }
+
+    @Test
+    public void testBatchEntriesForSameResourceRunInOrder() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setForkJoinPool(new ForkJoinPool(4));
+        Patient patient = store.read("Patient", TestFhirStore.ID_PAT_9090909);
+
+        Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+        for (int i = 0; i < 200; i++) {
+            batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.PUT)
+                    .setUrl("Patient/" + TestFhirStore.ID_PAT_9090909))
+                    .setResource(patient.copy().setName(Collections.singletonList(new HumanName().setFamily("Family" + i))));
+            batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                    .setResource(new Patient().addIdentifier(new Identifier().setSystem("urn:batch").setValue(String.valueOf(i))));
+        }
+
+        Bundle response = store.executeTransaction(batch);
+        Set<String> locations = new HashSet<>();
+        for (int i = 0; i < response.getEntry().size(); i++) {
+            Bundle.BundleEntryResponseComponent entryResponse = response.getEntry().get(i).getResponse();
+            assertEquals("Entry succeeded", i % 2 == 0 ? "200 OK" : "201 Created", entryResponse.getStatus());
+            if (i % 2 == 1) {
+                locations.add(entryResponse.getLocation());
+            }
+        }
+        assertEquals("Every create got its own ID", 200, locations.size());
+        assertEquals("Last update applied last", "Family199",
+                store.<Patient>read("Patient", TestFhirStore.ID_PAT_9090909).getNameFirstRep().getFamily());
+        assertEquals("Every patient created", 200, store.search("Patient", "identifier=urn:batch|").getTotal());
+    }
+
+    @Test
+    public void testBatchReadsOfResourceRunInOrderWithItsWrites() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setForkJoinPool(new ForkJoinPool(4));
+        String url = "Patient/" + TestFhirStore.ID_PAT_9090909;
+        Patient patient = store.read("Patient", TestFhirStore.ID_PAT_9090909);
+        long version = Long.parseLong(patient.getMeta().getVersionId());
+
+        // reads of a version and reads with parameters address the same resource as the updates before them
+        Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+        for (int i = 1; i <= 50; i++) {
+            batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.PUT).setUrl(url))
+                    .setResource(patient.copy().setName(Collections.singletonList(new HumanName().setFamily("Family" + i))));
+            batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.GET)
+                    .setUrl(url + "/_history/" + (version + i)));
+            batch.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.GET)
+                    .setUrl(url + "?_elements=name"));
+        }
+
+        Bundle response = store.executeTransaction(batch);
+        for (int i = 1; i <= 50; i++) {
+            for (int read = 1; read <= 2; read++) {
+                Bundle.BundleEntryComponent entry = response.getEntry().get((i - 1) * 3 + read);
+                assertEquals("Read succeeded", "200 OK", entry.getResponse().getStatus());
+                assertEquals("Read saw the update before it", "Family" + i,
+                        ((Patient) entry.getResource()).getNameFirstRep().getFamily());
+            }
+        }
+    }
+
+    @Test
+    public void testPlaceholderReferencesResolved() throws IOException, FhirProofException {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+            store.setIndexing(indexing);
+            String patientUrl = "urn:uuid:0f6c2a3e-6f1a-4c1e-9a55-0a1f2b3c4d5e";
+            String encounterUrl = "urn:uuid:7d9e8f10-1a2b-4c3d-8e4f-5a6b7c8d9e0f";
+
+            Bundle trans = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+            // the observation refers to entries that come after it
+            trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                    .setResource(new Observation().setSubject(new Reference(patientUrl)).setEncounter(new Reference(encounterUrl)));
+            trans.addEntry().setFullUrl(patientUrl).setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                    .setResource(new Patient().addIdentifier(new Identifier().setSystem("urn:mrn").setValue("placeholder")));
+            trans.addEntry().setFullUrl(encounterUrl).setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                    .setResource(new Encounter().setSubject(new Reference(patientUrl)));
+
+            Bundle response = store.executeTransaction(trans);
+            String patientId = lastPart(response.getEntry().get(1).getResponse().getLocation());
+            String encounterId = lastPart(response.getEntry().get(2).getResponse().getLocation());
+            Observation observation = store.read("Observation", lastPart(response.getEntry().get(0).getResponse().getLocation()));
+            assertEquals("Observation subject resolved", "Patient/" + patientId, observation.getSubject().getReference());
+            assertEquals("Observation encounter resolved", "Encounter/" + encounterId, observation.getEncounter().getReference());
+            assertEquals("Encounter found by its resolved subject", 1, store.search("Encounter", "patient=" + patientId).getTotal());
+        }
+    }
+
+    @Test
+    public void testConditionalReferencesResolved() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Bundle trans = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < 3; i++) {
+            trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                    .setResource(new Encounter().setSubject(new Reference("Patient?identifier=3333333")));
+        }
+
+        Bundle response = store.executeTransaction(trans);
+        for (Bundle.BundleEntryComponent entry : response.getEntry()) {
+            Encounter encounter = store.read("Encounter", lastPart(entry.getResponse().getLocation()));
+            assertEquals("Encounter subject resolved", "Patient/" + TestFhirStore.ID_PAT_3333333, encounter.getSubject().getReference());
+        }
+    }
+
+    @Test
+    public void testUnresolvedConditionalReferenceFailsTransaction() throws IOException, FhirProofException {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        int encounters = store.store().get("Encounter").size();
+        Bundle trans = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                .setResource(new Encounter().setSubject(new Reference("Patient?identifier=http://fake.org/ids/|nobody")));
+
+        assertThrows("Conditional reference without a match", FhirProofException.class, () -> store.executeTransaction(trans));
+        assertEquals("No encounter created", encounters, store.store().get("Encounter").size());
+    }
+
+    @Test
+    public void testTransactionReturnPreference() throws IOException, FhirProofException {
+        String patientUrl = "urn:uuid:3c1d5e7f-2b4a-4d6c-8e0f-1a2b3c4d5e6f";
+        Bundle trans = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        trans.addEntry().setFullUrl(patientUrl).setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                .setResource(new Patient().setActive(true));
+        trans.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST))
+                .setResource(new Encounter().setSubject(new Reference(patientUrl)));
+
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Bundle minimal = store.executeTransaction(trans, ReturnPreference.MINIMAL);
+        for (Bundle.BundleEntryComponent entry : minimal.getEntry()) {
+            assertFalse("Minimal response has no resource", entry.hasResource());
+            assertTrue("Minimal response has eTag", entry.getResponse().hasEtag());
+            assertTrue("Minimal response has Location", entry.getResponse().hasLocation());
+        }
+
+        Bundle representation = store.executeTransaction(trans, ReturnPreference.REPRESENTATION);
+        String patientId = lastPart(representation.getEntry().get(0).getResponse().getLocation());
+        Encounter encounter = (Encounter) representation.getEntry().get(1).getResource();
+        assertEquals("Representation has resolved references", "Patient/" + patientId, encounter.getSubject().getReference());
+        assertEntryResponse(representation.getEntry().get(1), "201 Created", store.read("Encounter", encounter.getIdElement().getIdPart()), true);
+        // the representation is a copy, so changing it leaves the store alone
+        ((Patient) representation.getEntry().get(0).getResource()).setActive(false);
+        assertTrue("Stored patient unchanged", store.<Patient>read("Patient", patientId).getActive());
+
+        Bundle outcome = store.executeTransaction(trans, ReturnPreference.OPERATION_OUTCOME);
+        Bundle.BundleEntryComponent entry = outcome.getEntry().get(0);
+        assertFalse("OperationOutcome response has no resource", entry.hasResource());
+        assertEquals("Response has an outcome", "Created Patient/" + lastPart(entry.getResponse().getLocation()),
+                ((OperationOutcome) entry.getResponse().getOutcome()).getIssueFirstRep().getDiagnostics());
+
+        trans.setType(Bundle.BundleType.BATCH);
+        trans.getEntry().remove(1);
+        Bundle batch = store.executeTransaction(trans, ReturnPreference.REPRESENTATION);
+        assertEntryResponse(batch.getEntryFirstRep(), "201 Created",
+                store.read("Patient", lastPart(batch.getEntryFirstRep().getResponse().getLocation())), true);
+    }
+
+    private static String lastPart(String location) {
+        String[] parts = location.split("/");
+        return parts[parts.length - 1];
+    }
+
     private void assertEntryResponse(Bundle.BundleEntryComponent entry, String status, Resource expectedResource, boolean checkResource) {
         if (checkResource) {
             assertTrue("Transaction entry has expected resource", expectedResource.equalsDeep(entry.getResource()));
@@ -0,0 +1,216 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class HistoryTests {
+
+    @Test
+    public void version_ids_count_up() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = store.create(patient("v1"));
+        Assert.assertEquals("1", store.<Patient>read("Patient", id).getMeta().getVersionId());
+
+        // updates within the same second still get versions of their own
+        Assert.assertEquals("2", store.update("Patient", id, patient("v2"), ReturnPreference.MINIMAL).getVersionId());
+        Assert.assertEquals("3", store.update("Patient", id, patient("v3"), ReturnPreference.MINIMAL).getVersionId());
+        Assert.assertEquals("3", store.<Patient>read("Patient", id).getMeta().getVersionId());
+    }
+
+    @Test
+    public void vread_reads_every_version() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = store.create(patient("v1"));
+        List<Patient> written = new ArrayList<>();
+        written.add(store.read("Patient", id));
+        // enough versions to span several key versions
+        for (int i = 2; i <= 40; i++) {
+            Patient patient = patient("v" + i);
+            patient.setText(new Narrative().setStatus(Narrative.NarrativeStatus.GENERATED)
+                    .setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\">Version " + i + "</div>"));
+            store.update("Patient", id, patient);
+            written.add(store.read("Patient", id));
+        }
+
+        for (Patient expected : written) {
+            Patient actual = store.vread("Patient", id, expected.getMeta().getVersionId());
+            Assert.assertTrue(expected.getMeta().getVersionId(), expected.equalsDeep(actual));
+        }
+    }
+
+    @Test
+    public void vread_missing_and_deleted_versions() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = store.create(patient("v1"));
+        store.update("Patient", id, patient("v2"));
+        store.delete("Patient", id);
+
+        // the versions before the deletion can still be read
+        Assert.assertEquals("v1", store.<Patient>vread("Patient", id, "1").getIdentifierFirstRep().getValue());
+        Assert.assertEquals("v2", store.<Patient>vread("Patient", id, "2").getIdentifierFirstRep().getValue());
+        try {
+            store.vread("Patient", id, "3");
+            Assert.fail("Expected reading the deletion to fail");
+        } catch (FhirProofException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Status 410"));
+        }
+        try {
+            store.vread("Patient", id, "4");
+            Assert.fail("Expected reading a version that was never written to fail");
+        } catch (FhirProofException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("not found"));
+        }
+    }
+
+    @Test
+    public void vread_results_isolated() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = store.create(patient("v1"));
+        store.update("Patient", id, patient("v2"));
+
+        store.<Patient>vread("Patient", id, "1").getIdentifierFirstRep().setValue("changed");
+        store.<Patient>vread("Patient", id, "2").getIdentifierFirstRep().setValue("changed");
+        Assert.assertEquals("v1", store.<Patient>vread("Patient", id, "1").getIdentifierFirstRep().getValue());
+        Assert.assertEquals("v2", store.<Patient>vread("Patient", id, "2").getIdentifierFirstRep().getValue());
+    }
+
+    @Test
+    public void instance_history_newest_first() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = store.create(patient("v1"));
+        store.update("Patient", id, patient("v2"));
+        store.delete("Patient", id);
+
+        Bundle history = store.history("Patient", id, "");
+        Assert.assertEquals(Bundle.BundleType.HISTORY, history.getType());
+        Assert.assertEquals(3, history.getTotal());
+        Assert.assertEquals(Arrays.asList("W/\"3\"", "W/\"2\"", "W/\"1\""), etags(history));
+        Assert.assertEquals(Arrays.asList(Bundle.HTTPVerb.DELETE, Bundle.HTTPVerb.PUT, Bundle.HTTPVerb.POST),
+                history.getEntry().stream().map(e -> e.getRequest().getMethod()).collect(Collectors.toList()));
+        Assert.assertFalse(history.getEntry().get(0).hasResource());
+        Assert.assertEquals("v2", ((Patient) history.getEntry().get(1).getResource()).getIdentifierFirstRep().getValue());
+
+        try {
+            store.history("Patient", "unknown", "");
+            Assert.fail("Expected the history of an unknown resource to fail");
+        } catch (FhirProofException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("not found"));
+        }
+    }
+
+    @Test
+    public void type_and_system_history_pages() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String id = store.create(patient("p" + i));
+            store.update("Patient", id, patient("p" + i + "-2"));
+            ids.add(id);
+        }
+        store.delete("Patient", ids.get(0));
+        store.create(new Observation().setStatus(Observation.ObservationStatus.FINAL));
+
+        Bundle all = store.history("Patient", "");
+        Assert.assertEquals(11, all.getTotal());
+        Assert.assertEquals(11, all.getEntry().size());
+        assertNewestFirst(all);
+
+        List<String> paged = new ArrayList<>();
+        Bundle page = store.history("Patient", "_count=4");
+        while (true) {
+            Assert.assertEquals(11, page.getTotal());
+            paged.addAll(entryKeys(page));
+            if (page.getLink("next") == null) {
+                break;
+            }
+            String next = page.getLink("next").getUrl();
+            page = store.history("Patient", next.substring(next.indexOf('?') + 1));
+        }
+        Assert.assertEquals(entryKeys(all), paged);
+
+        Bundle system = store.history("");
+        Assert.assertEquals(12, system.getTotal());
+        assertNewestFirst(system);
+    }
+
+    @Test
+    public void history_since() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = store.create(patient("v1"));
+        store.update("Patient", id, patient("v2"));
+        Date second = store.<Patient>read("Patient", id).getMeta().getLastUpdated();
+        store.update("Patient", id, patient("v3"));
+
+        Bundle since = store.history("Patient", id, "_since=" + new InstantType(second).getValueAsString());
+        for (Bundle.BundleEntryComponent entry : since.getEntry()) {
+            Assert.assertFalse(entry.getResponse().getLastModified().before(second));
+        }
+        Assert.assertTrue(etags(since).containsAll(Arrays.asList("W/\"3\"", "W/\"2\"")));
+
+        Assert.assertEquals(0, store.history("Patient", id, "_since=2999-01-01T00:00:00Z").getTotal());
+        Assert.assertEquals(3, store.history("Patient", id, "_since=2000-01-01").getTotal());
+        try {
+            store.history("Patient", id, "_sort=date");
+            Assert.fail("Expected an unsupported parameter to fail");
+        } catch (FhirProofException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Status 400"));
+        }
+    }
+
+    @Test
+    public void transaction_versions() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        String id = TestFhirStore.ID_PAT_2222222;
+        Patient original = store.read("Patient", id);
+
+        Bundle update = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        update.addEntry().setResource(patient("updated")).setRequest(new Bundle.BundleEntryRequestComponent()
+                .setMethod(Bundle.HTTPVerb.PUT).setUrl("Patient/" + id));
+        Assert.assertEquals("W/\"2\"", store.executeTransaction(update).getEntryFirstRep().getResponse().getEtag());
+
+        Bundle read = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        read.addEntry().setRequest(new Bundle.BundleEntryRequestComponent()
+                .setMethod(Bundle.HTTPVerb.GET).setUrl("Patient/" + id + "/_history/1"));
+        Bundle.BundleEntryComponent entry = store.executeTransaction(read).getEntryFirstRep();
+        Assert.assertTrue(original.equalsDeep(entry.getResource()));
+        Assert.assertEquals("W/\"1\"", entry.getResponse().getEtag());
+    }
+
+    private static void assertNewestFirst(Bundle history) {
+        for (int i = 1; i < history.getEntry().size(); i++) {
+            Date newer = history.getEntry().get(i - 1).getResponse().getLastModified();
+            Date older = history.getEntry().get(i).getResponse().getLastModified();
+            Assert.assertFalse(older.after(newer));
+        }
+    }
+
+    private static List<String> etags(Bundle history) {
+        return history.getEntry().stream().map(e -> e.getResponse().getEtag()).collect(Collectors.toList());
+    }
+
+    private static List<String> entryKeys(Bundle history) {
+        return history.getEntry().stream()
+                .map(e -> e.getFullUrl() + " " + e.getResponse().getEtag())
+                .collect(Collectors.toList());
+    }
+
+    private static Patient patient(String identifier) {
+        return new Patient()
+                .addIdentifier(new Identifier().setSystem("urn:history").setValue(identifier))
+                .addName(new HumanName().setFamily("History").addGiven(identifier));
+    }
+}
@@ -0,0 +1,87 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.context.SimpleWorkerContext;
+import org.hl7.fhir.r4.model.Age;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class PathCompilerTests {
+
+    @Test
+    public void simple_paths_compiled() {
+        Assert.assertNotNull(PathCompiler.compile("Patient.birthdate", null));
+        Assert.assertNotNull(PathCompiler.compile("Patient.name | Practitioner.name", null));
+        Assert.assertNotNull(PathCompiler.compile("(Observation.value as Quantity) | (Observation.value as SampledData)", null));
+        Assert.assertNotNull(PathCompiler.compile("Encounter.subject.where(resolve() is Patient)", null));
+    }
+
+    @Test
+    public void complex_paths_not_compiled() {
+        Assert.assertNull(PathCompiler.compile("Patient.deceased.exists() and Patient.deceased != false", null));
+        Assert.assertNull(PathCompiler.compile("Patient.extension('http://example.org/ext')", null));
+        Assert.assertNull(PathCompiler.compile("Bundle.entry[0].resource", null));
+        Assert.assertNull(PathCompiler.compile("name.given", null));
+    }
+
+    @Test
+    public void casts_match_type_exactly() throws Exception {
+        IPathAccessor asQuantity = PathCompiler.compile("Observation.value as Quantity", null);
+        IPathAccessor asAge = PathCompiler.compile("Observation.value as Age", null);
+
+        // as in the engine, a specialisation is not selected by a cast to the type it specialises
+        Observation age = new Observation().setValue(new Age().setValue(42).setUnit("a"));
+        Assert.assertTrue(asQuantity.evaluate(age).isEmpty());
+        Assert.assertEquals(1, asAge.evaluate(age).size());
+
+        Observation quantity = new Observation().setValue(new Quantity(72).setUnit("/min"));
+        Assert.assertEquals(1, asQuantity.evaluate(quantity).size());
+        Assert.assertTrue(asAge.evaluate(quantity).isEmpty());
+    }
+
+    @Test
+    public void unions_drop_equal_items() throws Exception {
+        IPathAccessor accessor = PathCompiler.compile("Patient.name | Patient.name", null);
+        Patient patient = new Patient().addName(new HumanName().setFamily("Doe")).addName(new HumanName().setFamily("Roe"));
+        Assert.assertEquals(patient.getName(), accessor.evaluate(patient));
+    }
+
+    @Test
+    public void compiled_paths_match_engine() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        FhirProofEvaluator hostServices = new FhirProofEvaluator(store);
+        FHIRPathEngine engine = new FHIRPathEngine(new SimpleWorkerContext());
+        engine.setHostServices(hostServices);
+
+        int compared = 0;
+        for (String type : store.store().keySet()) {
+            for (SearchParameter param : ResourceTypeRegistry.getDefinition(type).getParameters()) {
+                if (param.getPath() == null) {
+                    continue;
+                }
+                IPathAccessor accessor = PathCompiler.compile(param.getPath(), hostServices);
+                if (accessor == null) {
+                    continue;
+                }
+                for (Resource resource : store.store().get(type).values()) {
+                    List<Base> expected = engine.evaluate(resource, param.getPath());
+                    List<Base> actual = accessor.evaluate(resource);
+                    String message = String.format("%s '%s' on %s/%s", type, param.getName(), type, resource.getIdElement().getIdPart());
+
+                    Assert.assertEquals(message, expected, actual);
+                    compared++;
+                }
+            }
+        }
+        Assert.assertTrue("No compiled paths were compared", compared > 0);
+    }
+}
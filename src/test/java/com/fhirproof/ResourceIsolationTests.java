@@ -78,4 +78,64 @@ public class ResourceIsolationTests {
         pat_original.setBirthDateElement(DateType.parseV3("19991231"));
         Assert.assertFalse(store.store().get("Patient").get(id).equalsDeep(pat_original));
     }
+
+    @Test
+    public void shared_reads_not_copied() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        store.setSharedReads(true);
+        String id = store.create(new Patient().setGender(Enumerations.AdministrativeGender.MALE));
+
+        Patient pat_read = store.read("Patient", id);
+        Assert.assertSame(pat_read, store.read("Patient", id));
+        Assert.assertSame(pat_read, store.search("Patient", "_id=" + id).getEntryFirstRep().getResource());
+    }
+
+    @Test
+    public void shared_reads_keep_version_read() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        store.setSharedReads(true);
+        String id = store.create(new Patient().setGender(Enumerations.AdministrativeGender.MALE));
+
+        // an update stores a new version, leaving the one already handed out alone
+        Patient pat_read_1 = store.read("Patient", id);
+        store.update("Patient", id, new Patient().setGender(Enumerations.AdministrativeGender.FEMALE));
+        Patient pat_read_2 = store.read("Patient", id);
+        Assert.assertEquals(Enumerations.AdministrativeGender.MALE, pat_read_1.getGender());
+        Assert.assertEquals(Enumerations.AdministrativeGender.FEMALE, pat_read_2.getGender());
+    }
+
+    @Test
+    public void shared_reads_leave_store_alone() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        store.setSharedReads(true);
+        store.setIndexing(true);
+        String id = store.create(new Patient().setGender(Enumerations.AdministrativeGender.MALE));
+
+        // changing a shared resource reaches neither the stored version, the indexes nor the history
+        Patient pat_read = store.read("Patient", id);
+        Assert.assertNotSame(pat_read, store.store().get("Patient").get(id));
+        pat_read.setGender(Enumerations.AdministrativeGender.FEMALE);
+        Assert.assertEquals(Enumerations.AdministrativeGender.MALE,
+                ((Patient) store.store().get("Patient").get(id)).getGender());
+        Assert.assertEquals(1, store.search("Patient", "gender=male").getEntry().size());
+
+        store.update("Patient", id, new Patient().setGender(Enumerations.AdministrativeGender.OTHER));
+        Assert.assertEquals(Enumerations.AdministrativeGender.MALE,
+                store.<Patient>vread("Patient", id, "1").getGender());
+    }
+
+    @Test
+    public void shared_reads_writes_isolated() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        store.setSharedReads(true);
+
+        Patient pat_original = new Patient().setGender(Enumerations.AdministrativeGender.MALE);
+        String id = store.create(pat_original);
+        pat_original.setBirthDateElement(DateType.parseV3("19991231"));
+        Assert.assertFalse(store.<Patient>read("Patient", id).equalsDeep(pat_original));
+
+        store.update("Patient", id, pat_original);
+        pat_original.setBirthDateElement(DateType.parseV3("18881231"));
+        Assert.assertFalse(store.<Patient>read("Patient", id).equalsDeep(pat_original));
+    }
 }
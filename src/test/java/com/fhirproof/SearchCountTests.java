@@ -0,0 +1,113 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SearchCountTests {
+
+    @Test
+    public void count_summary_matches_search_total() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+            store.setIndexing(indexing);
+            assertCount(store, "Patient", "gender=female");
+            assertCount(store, "Patient", "gender=female&name=doe");
+            assertCount(store, "Patient", "birthdate=lt1950");
+            assertCount(store, "Encounter", "patient=" + TestFhirStore.ID_PAT_1234567);
+            assertCount(store, "Observation", "code=http://loinc.org|15074-8");
+            assertCount(store, "Patient", "identifier=unknown");
+
+            Bundle all = store.search("Patient", "_summary=count");
+            Assert.assertEquals(store.store().get("Patient").size(), all.getTotal());
+            Assert.assertEquals(0, all.getEntry().size());
+        }
+    }
+
+    @Test
+    public void count_summary_ignores_includes_and_paging() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Bundle bundle = store.search("Patient", "gender=female&_revinclude=Encounter:subject&_count=1&_summary=count");
+        Assert.assertEquals(store.search("Patient", "gender=female").getTotal(), bundle.getTotal());
+        Assert.assertEquals(0, bundle.getEntry().size());
+        Assert.assertTrue(bundle.getLink().isEmpty());
+    }
+
+    @Test
+    public void count_summary_sees_writes() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        for (int i = 0; i < 10; i++) {
+            store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:count").setValue(String.valueOf(i))));
+        }
+        String deleted = store.search("Patient", "identifier=urn:count|3").getEntryFirstRep().getResource().getIdElement().getIdPart();
+        store.delete("Patient", deleted);
+
+        Assert.assertEquals(9, store.search("Patient", "_summary=count").getTotal());
+        Assert.assertEquals(9, store.search("Patient", "identifier=urn:count|&_summary=count").getTotal());
+        Assert.assertEquals(0, store.search("Patient", "identifier=urn:count|3&_summary=count").getTotal());
+        Assert.assertEquals(0, store.search("Observation", "_summary=count").getTotal());
+    }
+
+    @Test
+    public void total_none_leaves_total_out() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Assert.assertFalse(store.search("Patient", "gender=female&_total=none").hasTotal());
+        Assert.assertFalse(store.search("Patient", "gender=female&_total=none&_summary=count").hasTotal());
+
+        Bundle first = store.search("Patient", "gender=female&_total=none&_count=1");
+        Assert.assertFalse(first.hasTotal());
+        Assert.assertEquals(1, first.getEntry().size());
+        Assert.assertFalse(store.loadPage(first.getLink("next").getUrl()).hasTotal());
+
+        Assert.assertTrue(store.search("Patient", "gender=female&_total=accurate").hasTotal());
+        Assert.assertTrue(store.search("Patient", "gender=female&_total=estimate&_count=1").hasTotal());
+    }
+
+    @Test
+    public void total_estimate_uses_statistics() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = new FhirProofStore();
+            store.setIndexing(indexing);
+            for (int i = 0; i < 1000; i++) {
+                store.create(new Patient().setGender(i % 4 == 0
+                        ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE));
+            }
+            String query = "gender=female&_summary=count";
+
+            // without statistics the parameter is tried on a sample of the patients
+            int sampled = store.search("Patient", query + "&_total=estimate").getTotal();
+            Assert.assertTrue(String.valueOf(sampled), sampled >= 50 && sampled <= 600);
+
+            Assert.assertEquals(250, store.search("Patient", query).getTotal());
+            int estimated = store.search("Patient", query + "&_total=estimate").getTotal();
+            if (indexing) {
+                Assert.assertEquals(250, estimated);
+            } else {
+                Assert.assertTrue(String.valueOf(estimated), Math.abs(estimated - 250) <= 25);
+            }
+        }
+    }
+
+    @Test
+    public void invalid_summary_and_total_rejected() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        for (String query : new String[] { "_total=maybe", "_summary=sometimes" }) {
+            try {
+                store.search("Patient", query);
+                Assert.fail("Expected " + query + " to fail");
+            } catch (FhirProofException ex) {
+                Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Status 400"));
+            }
+        }
+    }
+
+    private static void assertCount(FhirProofStore store, String resource, String query) throws Exception {
+        Bundle count = store.search(resource, query + "&_summary=count");
+        Assert.assertEquals(resource + "?" + query, store.search(resource, query).getTotal(), count.getTotal());
+        Assert.assertEquals(0, count.getEntry().size());
+    }
+}
@@ -0,0 +1,198 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Range;
+import org.hl7.fhir.r4.model.RiskAssessment;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class SearchIndexTests {
+
+    @Test
+    public void token_index_matches_scan() throws Exception {
+        assertIndexedMatchesScan("Observation", "code=15074-8");
+        assertIndexedMatchesScan("Observation", "code=http://loinc.org|15074-8");
+        assertIndexedMatchesScan("Observation", "code=http://loinc.org|");
+        assertIndexedMatchesScan("Observation", "code=|123456789");
+        assertIndexedMatchesScan("Patient", "identifier=2222222");
+        assertIndexedMatchesScan("Patient", "identifier=http://hospit.al/terminology/systemid/ehr/medical_record_number|1234567,9090909");
+        assertIndexedMatchesScan("Patient", "telecom=507-555-9876");
+        assertIndexedMatchesScan("Patient", "active=false");
+        assertIndexedMatchesScan("Patient", "gender=female&gender=male");
+        assertIndexedMatchesScan("Patient", "gender=female&name=doe");
+        assertIndexedMatchesScan("Patient", "_id=" + TestFhirStore.ID_PAT_2222222);
+        assertIndexedMatchesScan("Encounter", "class=HH");
+    }
+
+    @Test
+    public void token_index_maintained_by_writes() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setIndexing(true);
+        Assert.assertEquals(0, store.search("Patient", "identifier=urn:mrn|idx-1").getTotal());
+
+        String id = store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:mrn").setValue("idx-1")));
+        Assert.assertEquals(id, store.search("Patient", "identifier=urn:mrn|idx-1").getEntryFirstRep().getResource().getIdElement().getIdPart());
+
+        store.update("Patient", id, new Patient().addIdentifier(new Identifier().setSystem("urn:mrn").setValue("idx-2")));
+        Assert.assertEquals(0, store.search("Patient", "identifier=urn:mrn|idx-1").getTotal());
+        Assert.assertEquals(1, store.search("Patient", "identifier=urn:mrn|idx-2").getTotal());
+
+        store.delete("Patient", id);
+        Assert.assertEquals(0, store.search("Patient", "identifier=urn:mrn|idx-2").getTotal());
+    }
+
+    @Test
+    public void reference_index_matches_scan() throws Exception {
+        assertIndexedMatchesScan("Encounter", "subject=Patient/" + TestFhirStore.ID_PAT_1234567);
+        assertIndexedMatchesScan("Encounter", "patient=" + TestFhirStore.ID_PAT_1234567);
+        assertIndexedMatchesScan("Encounter", "patient=fake-patient");
+        assertIndexedMatchesScan("Provenance", String.format(
+                "target=Patient/%s&target=Patient/%s", TestFhirStore.ID_PAT_2222222, TestFhirStore.ID_PAT_3333333));
+        assertIndexedMatchesScan("Patient", "identifier=1234567&_revinclude=Encounter:subject&_revinclude=Observation:patient");
+        assertIndexedMatchesScan("Patient", "gender=female&_revinclude=Encounter:subject");
+        assertIndexedMatchesScan("Encounter", String.format(
+                "patient=%s&_revinclude=Provenance:target", TestFhirStore.ID_PAT_1234567));
+    }
+
+    @Test
+    public void reference_index_follows_target_lifecycle() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setIndexing(true);
+        String query = "patient=" + TestFhirStore.ID_PAT_9090909;
+        Assert.assertEquals(1, store.search("Encounter", query).getTotal());
+
+        // the patient search parameter only matches references that resolve to a Patient
+        store.delete("Patient", TestFhirStore.ID_PAT_9090909);
+        Assert.assertEquals(0, store.search("Encounter", query).getTotal());
+        Assert.assertEquals(1, store.search("Encounter", "subject=Patient/" + TestFhirStore.ID_PAT_9090909).getTotal());
+    }
+
+    @Test
+    public void date_index_matches_scan() throws Exception {
+        for (String prefix : new String[] { "", "eq", "ne", "gt", "ge", "lt", "le", "sa", "eb", "ap" }) {
+            assertIndexedMatchesScan("Observation", "date=" + prefix + "1963-05-26T12:13:14-05:00");
+            assertIndexedMatchesScan("Observation", "date=" + prefix + "1963-05");
+            assertIndexedMatchesScan("Patient", "birthdate=" + prefix + "1887");
+        }
+        assertIndexedMatchesScan("Patient", "birthdate=zz1900-01-01");
+        assertIndexedMatchesScan("Patient", "birthdate=lt1888&birthdate=ge1887");
+        assertIndexedMatchesScan("Observation", "date=1895,1924&code=15074-8");
+    }
+
+    @Test
+    public void date_index_maintained_by_writes() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setIndexing(true);
+        Assert.assertEquals(0, store.search("Patient", "birthdate=2001-02").getTotal());
+
+        String id = store.create(new Patient().setBirthDateElement(new DateType("2001-02-03")));
+        Assert.assertEquals(1, store.search("Patient", "birthdate=2001-02").getTotal());
+
+        store.update("Patient", id, new Patient().setBirthDateElement(new DateType("2002-02-03")));
+        Assert.assertEquals(0, store.search("Patient", "birthdate=2001-02").getTotal());
+        Assert.assertEquals(1, store.search("Patient", "birthdate=sa2001-02&birthdate=eb2003").getTotal());
+
+        store.delete("Patient", id);
+        Assert.assertEquals(0, store.search("Patient", "birthdate=2002").getTotal());
+    }
+
+    @Test
+    public void number_index_matches_scan() throws Exception {
+        for (String prefix : new String[] { "", "eq", "ne", "gt", "ge", "lt", "le", "sa", "eb", "ap" }) {
+            assertIndexedMatchesScan("RiskAssessment", "probability=" + prefix + "22.1");
+            assertIndexedMatchesScan("RiskAssessment", "probability=" + prefix + "60");
+            assertIndexedMatchesScan("RiskAssessment", "probability=" + prefix + "1e2");
+        }
+        assertIndexedMatchesScan("RiskAssessment", "probability=zz22.1");
+        assertIndexedMatchesScan("RiskAssessment", "probability=gt9&probability=lt84");
+        assertIndexedMatchesScan("RiskAssessment", "probability=1.22,84.0");
+    }
+
+    @Test
+    public void number_index_keeps_open_ranges() throws Exception {
+        FhirProofStore scanned = TestFhirStore.getFhirStoreCopy();
+        FhirProofStore indexed = TestFhirStore.getFhirStoreCopy();
+        indexed.setIndexing(true);
+        indexed.search("RiskAssessment", "probability=22.1");
+        for (FhirProofStore store : new FhirProofStore[] { scanned, indexed }) {
+            store.create(risk(new Range().setLow(new Quantity(50))));
+            store.create(risk(new Range().setHigh(new Quantity(10))));
+        }
+
+        for (String prefix : new String[] { "", "eq", "ne", "gt", "ge", "lt", "le", "sa", "eb", "ap" }) {
+            for (String value : new String[] { "5", "22.1", "60" }) {
+                String query = "probability=" + prefix + value;
+                Assert.assertEquals(query, scanned.search("RiskAssessment", query).getTotal(),
+                        indexed.search("RiskAssessment", query).getTotal());
+            }
+        }
+        // 62.6, 84.0 and the range from 50 up
+        Assert.assertEquals(3, indexed.search("RiskAssessment", "probability=gt60").getTotal());
+    }
+
+    @Test
+    public void string_index_matches_scan() throws Exception {
+        assertIndexedMatchesScan("Patient", "given=frank");
+        assertIndexedMatchesScan("Patient", "given=FR");
+        assertIndexedMatchesScan("Patient", "given=frank,franky.&given=f.");
+        assertIndexedMatchesScan("Patient", "name=doe&name=jane");
+        assertIndexedMatchesScan("Patient", "name=doe,franklin");
+        assertIndexedMatchesScan("Patient", "address=amster");
+        assertIndexedMatchesScan("Patient", "given:exact=Frank");
+        assertIndexedMatchesScan("Patient", "given:exact=frank");
+        assertIndexedMatchesScan("Patient", "family:contains=ar");
+    }
+
+    @Test
+    public void string_index_ignores_case_and_accents() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+            store.setIndexing(indexing);
+            String id = store.create(new Patient().addName(new HumanName().setFamily("Mu\u00f1oz").addGiven("Ren\u00e9e")));
+
+            Assert.assertEquals(1, store.search("Patient", "family=munoz").getTotal());
+            Assert.assertEquals(1, store.search("Patient", "given=RENEE").getTotal());
+            Assert.assertEquals(1, store.search("Patient", "family:exact=Mu\u00f1oz").getTotal());
+            Assert.assertEquals(0, store.search("Patient", "family:exact=Munoz").getTotal());
+
+            store.update("Patient", id, new Patient().addName(new HumanName().setFamily("Moreno")));
+            Assert.assertEquals(0, store.search("Patient", "family=mu").getTotal());
+            Assert.assertEquals(id, store.search("Patient", "family=mor").getEntryFirstRep().getResource().getIdElement().getIdPart());
+        }
+    }
+
+    /**
+     * Runs the same query against an indexed and an un-indexed copy of the test store and checks they agree.
+     */
+    static void assertIndexedMatchesScan(String resource, String query) throws Exception {
+        FhirProofStore scanned = TestFhirStore.getFhirStoreCopy();
+        FhirProofStore indexed = TestFhirStore.getFhirStoreCopy();
+        indexed.setIndexing(true);
+
+        Set<String> expected = ids(scanned.search(resource, query));
+        // search twice so the second search runs against the already built index
+        indexed.search(resource, query);
+        Set<String> actual = ids(indexed.search(resource, query));
+        Assert.assertEquals(String.format("Indexed results differ for %s?%s", resource, query), expected, actual);
+    }
+
+    static Set<String> ids(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(e -> e.getResource().getIdElement().getIdPart())
+                .collect(Collectors.toSet());
+    }
+
+    private static RiskAssessment risk(Range probability) {
+        return new RiskAssessment().addPrediction(new RiskAssessment.RiskAssessmentPredictionComponent()
+                .setProbability(probability));
+    }
+}
@@ -0,0 +1,108 @@
+package com.fhirproof;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class SearchPagingTests {
+
+    private static final String QUERY = "identifier=urn:page|";
+
+    @Test
+    public void pages_link_through_every_match() throws Exception {
+        FhirProofStore store = createStore(25);
+        List<String> expected = ids(store.search("Patient", QUERY));
+
+        Bundle page = store.search("Patient", QUERY + "&_count=10");
+        Assert.assertEquals(25, page.getTotal());
+        Assert.assertNull(page.getLink("previous"));
+        List<String> actual = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        while (true) {
+            actual.addAll(ids(page));
+            sizes.add(page.getEntry().size());
+            if (page.getLink("next") == null) {
+                break;
+            }
+            page = store.loadPage(page.getLink("next").getUrl());
+            Assert.assertNotNull(page.getLink("previous"));
+        }
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(Arrays.asList(10, 10, 5), sizes);
+
+        Bundle previous = store.loadPage(page.getLink("previous").getUrl());
+        Assert.assertEquals(expected.subList(10, 20), ids(previous));
+    }
+
+    @Test
+    public void pages_read_from_snapshot_of_first_page() throws Exception {
+        FhirProofStore store = createStore(25);
+        Bundle first = store.search("Patient", QUERY + "&_count=10");
+        List<String> expected = ids(store.loadPage(first.getLink("next").getUrl()));
+
+        // later changes are not seen by the pages of a search already running
+        store.delete("Patient", expected.get(0));
+        store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:page").setValue("late")));
+        Bundle second = store.loadPage(first.getLink("next").getUrl());
+        Assert.assertEquals(expected, ids(second));
+        Assert.assertEquals(25, second.getTotal());
+        Assert.assertEquals(25, store.search("Patient", QUERY).getTotal());
+    }
+
+    @Test
+    public void offset_pages_without_cursor() throws Exception {
+        FhirProofStore store = createStore(25);
+        List<String> expected = ids(store.search("Patient", QUERY));
+
+        Bundle page = store.search("Patient", QUERY + "&_offset=20&_count=10");
+        Assert.assertEquals(expected.subList(20, 25), ids(page));
+        Assert.assertEquals(25, page.getTotal());
+        Assert.assertNull(page.getLink("next"));
+        Assert.assertEquals(expected.subList(10, 20), ids(store.loadPage(page.getLink("previous").getUrl())));
+    }
+
+    @Test
+    public void single_page_has_no_cursor() throws Exception {
+        FhirProofStore store = createStore(5);
+        Bundle page = store.search("Patient", QUERY + "&_count=10");
+        Assert.assertEquals(5, page.getEntry().size());
+        Assert.assertEquals(5, page.getTotal());
+        Assert.assertNotNull(page.getLink("self"));
+        Assert.assertNull(page.getLink("next"));
+        Assert.assertNull(page.getLink("previous"));
+
+        Assert.assertEquals(0, store.search("Patient", QUERY + "&_count=0").getEntry().size());
+        Assert.assertEquals(5, store.search("Patient", QUERY + "&_count=0").getTotal());
+    }
+
+    @Test(expected = FhirProofException.class)
+    public void unknown_cursor_fails() throws Exception {
+        createStore(1).search("Patient", "_cursor=nothing&_offset=10&_count=10");
+    }
+
+    @Test(expected = FhirProofException.class)
+    public void negative_count_fails() throws Exception {
+        createStore(1).search("Patient", QUERY + "&_count=-1");
+    }
+
+    private static FhirProofStore createStore(int patients) throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        for (int i = 0; i < patients; i++) {
+            store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:page").setValue(String.valueOf(i))));
+        }
+        return store;
+    }
+
+    private static List<String> ids(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(e -> e.getResource().getIdElement().getIdPart())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,73 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SearchPlanTests {
+
+    @Test
+    public void indexed_parameters_smallest_first() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setIndexing(true);
+
+        SearchPlan plan = store.plan("Patient", "gender=female&identifier=1234567");
+        Assert.assertEquals(Arrays.asList("identifier", "gender"), plan.getParameters());
+        Assert.assertTrue(plan.getSteps().stream().allMatch(SearchPlan.Step::isExact));
+        Assert.assertEquals(1, plan.getSteps().get(0).getEstimate(), 0);
+    }
+
+    @Test
+    public void scanned_parameters_after_indexed() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setIndexing(true);
+
+        SearchPlan plan = store.plan("Patient", "name:contains=oe&gender=female");
+        Assert.assertEquals(Arrays.asList("gender", "name:contains"), plan.getParameters());
+        Assert.assertTrue(plan.getSteps().get(0).isIndexed());
+        Assert.assertFalse(plan.getSteps().get(1).isIndexed());
+        Assert.assertEquals(
+                TestFhirStore.getFhirStoreCopy().search("Patient", "name:contains=oe&gender=female").getTotal(),
+                store.search("Patient", "name:contains=oe&gender=female").getTotal());
+    }
+
+    @Test
+    public void resolving_references_verified_after_index() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        store.setIndexing(true);
+
+        SearchPlan.Step step = store.plan("Encounter", "patient=" + TestFhirStore.ID_PAT_1234567).getSteps().get(0);
+        Assert.assertTrue(step.isIndexed());
+        Assert.assertFalse(step.isExact());
+    }
+
+    @Test
+    public void scanned_parameters_ordered_by_selectivity() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        for (int i = 0; i < 200; i++) {
+            store.create(new Patient()
+                    .setGender(Enumerations.AdministrativeGender.FEMALE)
+                    .addIdentifier(new Identifier().setSystem("urn:mrn").setValue(String.valueOf(i))));
+        }
+
+        // without statistics the planner samples the parameters, so the unselective gender goes last
+        String query = "gender=female&identifier=urn:mrn|7";
+        Assert.assertEquals(Arrays.asList("identifier", "gender"), store.plan("Patient", query).getParameters());
+        Assert.assertEquals(1, store.search("Patient", query).getTotal());
+
+        // and the statistics gathered by the search keep that order
+        Assert.assertEquals(Arrays.asList("identifier", "gender"), store.plan("Patient", query).getParameters());
+    }
+
+    @Test
+    public void equally_selective_parameters_keep_query_order() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Assert.assertEquals(
+                Arrays.asList("given", "family"), store.plan("Patient", "given=frank&family=franklin").getParameters());
+    }
+}
@@ -0,0 +1,206 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.stream.Stream;
+
+public class SearchProjectionTests {
+
+    private static final String QUERY = "identifier=urn:projection|";
+
+    @Test
+    public void elements_keep_mandatory_elements() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = createObservation(store, "1");
+
+        Observation projected = (Observation) store.search("Observation", QUERY + "&_elements=value")
+                .getEntryFirstRep().getResource();
+        Assert.assertEquals(id, projected.getIdElement().getIdPart());
+        Assert.assertEquals(72, projected.getValueQuantity().getValue().intValue());
+        // status and code are mandatory, so they are returned whether asked for or not
+        Assert.assertEquals(Observation.ObservationStatus.FINAL, projected.getStatus());
+        Assert.assertTrue(projected.hasCode());
+        Assert.assertFalse(projected.hasText());
+        Assert.assertFalse(projected.hasContained());
+        Assert.assertFalse(projected.hasSubject());
+        Assert.assertFalse(projected.hasIdentifier());
+        Assert.assertTrue(isSubsetted(projected));
+
+        projected = (Observation) store.search("Observation", QUERY + "&_elements=Observation.subject,identifier")
+                .getEntryFirstRep().getResource();
+        Assert.assertTrue(projected.hasSubject());
+        Assert.assertTrue(projected.hasIdentifier());
+        Assert.assertFalse(projected.hasValue());
+    }
+
+    @Test
+    public void summary_selects_elements() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        createObservation(store, "1");
+
+        Observation summary = (Observation) store.search("Observation", QUERY + "&_summary=true").getEntryFirstRep().getResource();
+        Assert.assertTrue(summary.hasSubject());
+        Assert.assertTrue(summary.hasValue());
+        Assert.assertFalse(summary.hasText());
+        Assert.assertFalse(summary.hasContained());
+        Assert.assertFalse(summary.hasNote());
+        Assert.assertTrue(isSubsetted(summary));
+
+        Observation text = (Observation) store.search("Observation", QUERY + "&_summary=text").getEntryFirstRep().getResource();
+        Assert.assertTrue(text.hasText());
+        Assert.assertTrue(text.hasStatus());
+        Assert.assertFalse(text.hasSubject());
+        Assert.assertFalse(text.hasValue());
+
+        Observation data = (Observation) store.search("Observation", QUERY + "&_summary=data").getEntryFirstRep().getResource();
+        Assert.assertFalse(data.hasText());
+        Assert.assertTrue(data.hasContained());
+        Assert.assertTrue(data.hasNote());
+        Assert.assertTrue(data.hasValue());
+
+        Observation whole = (Observation) store.search("Observation", QUERY + "&_summary=false").getEntryFirstRep().getResource();
+        Assert.assertTrue(whole.hasText());
+        Assert.assertFalse(isSubsetted(whole));
+    }
+
+    @Test
+    public void unknown_summary_rejected() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        try {
+            store.search("Observation", "_summary=brief");
+            Assert.fail("Expected an unknown summary to fail");
+        } catch (FhirProofException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Status 400"));
+        }
+    }
+
+    @Test
+    public void projection_leaves_stored_resource_alone() throws Exception {
+        for (boolean sharedReads : new boolean[] { false, true }) {
+            FhirProofStore store = new FhirProofStore();
+            store.setSharedReads(sharedReads);
+            String id = createObservation(store, "1");
+
+            store.search("Observation", QUERY + "&_elements=value");
+            store.read("Observation", id, "_summary=true");
+            Observation stored = (Observation) store.store().get("Observation").get(id);
+            Assert.assertFalse(isSubsetted(stored));
+            Assert.assertTrue(stored.hasText());
+            Assert.assertTrue(stored.hasContained());
+        }
+    }
+
+    @Test
+    public void projected_pages_and_includes() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String patient = store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:projection").setValue("p")));
+        for (int i = 0; i < 5; i++) {
+            createObservation(store, String.valueOf(i), patient);
+        }
+
+        Bundle page = store.search("Observation", QUERY + "&_elements=value&_include=Observation:patient&_count=2");
+        int observations = 0;
+        while (true) {
+            for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                Resource resource = entry.getResource();
+                if (resource instanceof Observation) {
+                    observations++;
+                    Assert.assertTrue(isSubsetted(resource));
+                    Assert.assertFalse(((Observation) resource).hasSubject());
+                } else {
+                    // the included patient is returned whole
+                    Assert.assertEquals(patient, resource.getIdElement().getIdPart());
+                    Assert.assertFalse(isSubsetted(resource));
+                    Assert.assertTrue(((Patient) resource).hasIdentifier());
+                }
+            }
+            if (page.getLink("next") == null) {
+                break;
+            }
+            page = store.loadPage(page.getLink("next").getUrl());
+        }
+        Assert.assertEquals(5, observations);
+    }
+
+    @Test
+    public void read_projects_resource() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String id = createObservation(store, "1");
+
+        Observation projected = store.read("Observation", id, "_elements=subject");
+        Assert.assertTrue(projected.hasSubject());
+        Assert.assertFalse(projected.hasValue());
+        Assert.assertTrue(isSubsetted(projected));
+
+        Observation whole = store.read("Observation", id, "_summary=false");
+        Assert.assertTrue(whole.hasValue());
+        Assert.assertFalse(isSubsetted(whole));
+    }
+
+    @Test
+    public void transaction_get_projects_resource() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        transaction.addEntry().setRequest(new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.GET)
+                .setUrl("Patient/" + TestFhirStore.ID_PAT_2222222 + "?_elements=gender"));
+
+        Bundle.BundleEntryComponent entry = store.executeTransaction(transaction).getEntryFirstRep();
+        Patient patient = (Patient) entry.getResource();
+        Assert.assertTrue(patient.hasGender());
+        Assert.assertFalse(patient.hasName());
+        Assert.assertTrue(isSubsetted(patient));
+        Assert.assertEquals(FhirProofStore.FHIR_STORE_URL + "Patient/" + TestFhirStore.ID_PAT_2222222,
+                entry.getResponse().getLocation());
+    }
+
+    @Test
+    public void stream_projects_resources() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        createObservation(store, "1");
+        try (Stream<Resource> stream = store.searchStream("Observation", QUERY + "&_elements=value")) {
+            Observation projected = (Observation) stream.findFirst().get();
+            Assert.assertTrue(projected.hasValue());
+            Assert.assertFalse(projected.hasSubject());
+        }
+        try {
+            store.searchStream("Observation", QUERY + "&_summary=count");
+            Assert.fail("Expected a streamed count to fail");
+        } catch (FhirProofException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Status 400"));
+        }
+    }
+
+    private static boolean isSubsetted(Resource resource) {
+        return resource.getMeta().getTag(ElementProjection.SUBSETTED_SYSTEM, ElementProjection.SUBSETTED_CODE) != null;
+    }
+
+    private static String createObservation(FhirProofStore store, String value) {
+        return createObservation(store, value, null);
+    }
+
+    private static String createObservation(FhirProofStore store, String value, String patient) {
+        Observation observation = new Observation()
+                .setStatus(Observation.ObservationStatus.FINAL)
+                .setCode(new CodeableConcept(new Coding("http://loinc.org", "8867-4", "Heart rate")))
+                .addIdentifier(new Identifier().setSystem("urn:projection").setValue(value))
+                .setSubject(new Reference(patient == null ? "#device" : "Patient/" + patient))
+                .setValue(new Quantity(72).setUnit("/min"));
+        observation.addNote().setText("Taken at rest");
+        observation.setText(new Narrative().setStatus(Narrative.NarrativeStatus.GENERATED)
+                .setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\">Heart rate 72 /min</div>"));
+        observation.addContained(new Patient().setId("device"));
+        return store.create(observation);
+    }
+}
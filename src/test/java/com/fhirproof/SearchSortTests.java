@@ -0,0 +1,195 @@
+package com.fhirproof;
+
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class SearchSortTests {
+
+    private static final String QUERY = "identifier=urn:sort|";
+
+    @Test
+    public void sorts_on_date() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+            store.setIndexing(indexing);
+            List<String> latest = Arrays.asList(TestFhirStore.ID_OBS_9090909_GLUCOSE, TestFhirStore.ID_OBS_1675934_NO,
+                    TestFhirStore.ID_OBS_3333333_NO, TestFhirStore.ID_OBS_1234567_BLOOD);
+
+            Assert.assertEquals(latest, ids(store.search("Observation", "_sort=-date")));
+            List<String> earliest = new ArrayList<>(latest);
+            Collections.reverse(earliest);
+            Assert.assertEquals(earliest, ids(store.search("Observation", "_sort=date")));
+            Assert.assertEquals(latest.subList(0, 2), ids(store.search("Observation", "_sort=-date&_count=2")));
+        }
+    }
+
+    @Test
+    public void sorts_on_several_parameters() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = new FhirProofStore();
+            store.setIndexing(indexing);
+            String smith1990 = createPatient(store, "Smith", "1990-01-01");
+            String jones = createPatient(store, "Jones", "1970-01-01");
+            String smith2000 = createPatient(store, "smith", "2000-01-01");
+            String none = createPatient(store, null, null);
+            String adams = createPatient(store, "Adams", null);
+
+            // names are sorted ignoring case, and resources without a value come last in either direction
+            Assert.assertEquals(Arrays.asList(adams, jones, smith2000, smith1990, none),
+                    ids(store.search("Patient", QUERY + "&_sort=family,-birthdate")));
+            Assert.assertEquals(Arrays.asList(smith1990, smith2000, jones, adams, none),
+                    ids(store.search("Patient", QUERY + "&_sort=-family&_sort=birthdate")));
+            List<String> byBirthDate = ids(store.search("Patient", QUERY + "&_sort=-birthdate"));
+            Assert.assertEquals(Arrays.asList(smith2000, smith1990, jones), byBirthDate.subList(0, 3));
+            Assert.assertEquals(new HashSet<>(Arrays.asList(none, adams)), new HashSet<>(byBirthDate.subList(3, 5)));
+        }
+    }
+
+    @Test
+    public void sorted_pages_match_full_sort() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = new FhirProofStore();
+            store.setIndexing(indexing);
+            Random random = new Random(17);
+            for (int i = 0; i < 500; i++) {
+                // few distinct dates, so most matches tie with others
+                createPatient(store, null, random.nextInt(10) == 0 ? null : String.valueOf(1900 + random.nextInt(50)));
+            }
+            String query = QUERY + "&_sort=-birthdate";
+            List<String> expected = ids(store.search("Patient", query));
+            Assert.assertEquals(500, expected.size());
+
+            Assert.assertEquals(expected.subList(0, 10), ids(store.search("Patient", query + "&_count=10")));
+            Assert.assertEquals(expected.subList(250, 260), ids(store.search("Patient", query + "&_count=10&_offset=250")));
+
+            List<String> actual = new ArrayList<>();
+            Bundle page = store.search("Patient", query + "&_count=7");
+            while (true) {
+                actual.addAll(ids(page));
+                if (page.getLink("next") == null) {
+                    break;
+                }
+                page = store.loadPage(page.getLink("next").getUrl());
+            }
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void sorted_pages_read_from_snapshot_of_first_page() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        store.setIndexing(true);
+        for (int i = 0; i < 20; i++) {
+            createPatient(store, null, String.valueOf(1950 + i));
+        }
+        String query = QUERY + "&_sort=birthdate";
+        List<String> expected = ids(store.search("Patient", query));
+
+        Bundle first = store.search("Patient", query + "&_count=5");
+        store.update("Patient", expected.get(19), new Patient()
+                .addIdentifier(new Identifier().setSystem("urn:sort").setValue("moved"))
+                .setBirthDateElement(new DateType("1900")));
+        Bundle second = store.loadPage(first.getLink("next").getUrl());
+        Assert.assertEquals(expected.subList(5, 10), ids(second));
+        Assert.assertEquals(expected.get(19), ids(store.search("Patient", query + "&_count=1")).get(0));
+    }
+
+    @Test
+    public void unknown_sort_parameter_rejected() throws Exception {
+        FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+        try {
+            store.search("Patient", "_sort=shoe-size");
+            Assert.fail("Expected sorting on an unknown parameter to fail");
+        } catch (FhirProofException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("shoe-size"));
+        }
+    }
+
+    @Test
+    public void sorted_matches_read_in_any_order() {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            int size = 1 + random.nextInt(300);
+            List<String> ids = new ArrayList<>();
+            Comparable<?>[][] keys = new Comparable<?>[size][2];
+            for (int i = 0; i < size; i++) {
+                ids.add("id-" + i);
+                keys[i][0] = random.nextInt(8) == 0 ? null : random.nextInt(20);
+                keys[i][1] = random.nextInt(8) == 0 ? null : String.valueOf((char) ('a' + random.nextInt(5)));
+            }
+            boolean[] descending = { random.nextBoolean(), random.nextBoolean() };
+            List<String> expected = sortFully(ids, keys, descending);
+
+            SortedMatches sorted = new SortedMatches(ids, keys, descending);
+            List<String> actual = new ArrayList<>();
+            while (actual.size() < size) {
+                int from = actual.size();
+                int to = Math.min(size, from + 1 + random.nextInt(size / 10 + 2));
+                if (random.nextBoolean()) {
+                    actual.addAll(sorted.subList(from, to));
+                } else {
+                    actual.add(sorted.get(from));
+                }
+            }
+            Assert.assertEquals(expected, actual);
+            Assert.assertEquals(expected, new ArrayList<>(sorted));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> sortFully(List<String> ids, Comparable<?>[][] keys, boolean[] descending) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            rows.add(i);
+        }
+        rows.sort((left, right) -> {
+            for (int k = 0; k < descending.length; k++) {
+                Comparable<Object> a = (Comparable<Object>) keys[left][k];
+                Comparable<Object> b = (Comparable<Object>) keys[right][k];
+                if (a == null || b == null) {
+                    if (a != b) {
+                        return a == null ? 1 : -1;
+                    }
+                    continue;
+                }
+                int result = descending[k] ? b.compareTo(a) : a.compareTo(b);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Integer.compare(left, right);
+        });
+        return rows.stream().map(ids::get).collect(Collectors.toList());
+    }
+
+    private static String createPatient(FhirProofStore store, String family, String birthDate) throws Exception {
+        Patient patient = new Patient().addIdentifier(new Identifier().setSystem("urn:sort").setValue(String.valueOf(family)));
+        if (family != null) {
+            patient.addName(new HumanName().setFamily(family));
+        }
+        if (birthDate != null) {
+            patient.setBirthDateElement(new DateType(birthDate));
+        }
+        return store.create(patient);
+    }
+
+    private static List<String> ids(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(e -> e.getResource().getIdElement().getIdPart())
+                .collect(Collectors.toList());
+    }
+}
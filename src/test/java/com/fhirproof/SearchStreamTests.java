@@ -0,0 +1,118 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fhirproof.resources.TestFhirStore;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class SearchStreamTests {
+
+    @Test
+    public void stream_matches_search() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = TestFhirStore.getFhirStoreCopy();
+            store.setIndexing(indexing);
+            for (String query : new String[] { "gender=female", "name=doe&gender=female", "birthdate=ge1900", "identifier=nothing" }) {
+                Set<String> expected = SearchIndexTests.ids(store.search("Patient", query));
+                try (Stream<Resource> stream = store.searchStream("Patient", query)) {
+                    List<String> actual = new ArrayList<>();
+                    stream.forEach(r -> actual.add(r.getIdElement().getIdPart()));
+                    Assert.assertEquals(query, expected.size(), actual.size());
+                    Assert.assertEquals(query, expected, new HashSet<>(actual));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stream_stops_early() throws Exception {
+        CountingTokenEvaluator evaluator = new CountingTokenEvaluator();
+        FhirProofStore store = createStore(100, evaluator);
+
+        try (Stream<Resource> stream = store.searchStream("Patient", "gender=female")) {
+            Optional<Resource> first = stream.findFirst();
+            Assert.assertTrue(first.isPresent());
+        }
+        Assert.assertEquals(1, evaluator.evaluations.get());
+
+        evaluator.evaluations.set(0);
+        try (Stream<Resource> stream = store.searchStream("Patient", "gender=female&_count=5")) {
+            Assert.assertEquals(5, stream.count());
+        }
+        Assert.assertEquals(5, evaluator.evaluations.get());
+    }
+
+    @Test
+    public void stream_reads_store_as_of_its_creation() throws Exception {
+        FhirProofStore store = createStore(10, null);
+        try (Stream<Resource> stream = store.searchStream("Patient", "gender=female")) {
+            store.create(new Patient().setGender(Enumerations.AdministrativeGender.FEMALE));
+            Assert.assertEquals(10, stream.count());
+        }
+        Assert.assertEquals(11, store.search("Patient", "gender=female").getTotal());
+    }
+
+    @Test
+    public void stream_results_isolated() throws Exception {
+        FhirProofStore store = createStore(1, null);
+        try (Stream<Resource> stream = store.searchStream("Patient", "gender=female")) {
+            ((Patient) stream.findFirst().get()).setGender(Enumerations.AdministrativeGender.MALE);
+        }
+        Assert.assertEquals(1, store.search("Patient", "gender=female").getTotal());
+    }
+
+    @Test
+    public void conditional_create_stops_at_second_match() throws Exception {
+        CountingTokenEvaluator evaluator = new CountingTokenEvaluator();
+        FhirProofStore store = createStore(100, evaluator);
+
+        ConditionalCreateResponse response = store.conditionalCreate(new Patient(), "gender=female");
+        Assert.assertEquals(412, response.getStatus());
+        Assert.assertEquals(2, evaluator.evaluations.get());
+    }
+
+    @Test(expected = FhirProofException.class)
+    public void stream_rejects_revinclude() throws Exception {
+        createStore(1, null).searchStream("Patient", "gender=female&_revinclude=Encounter:subject");
+    }
+
+    private static FhirProofStore createStore(int patients, TokenEvaluator evaluator) throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        if (evaluator != null) {
+            store.addEvaluator(evaluator);
+        }
+        for (int i = 0; i < patients; i++) {
+            store.create(new Patient()
+                    .setGender(Enumerations.AdministrativeGender.FEMALE)
+                    .addIdentifier(new Identifier().setSystem("urn:stream").setValue(String.valueOf(i))));
+        }
+        return store;
+    }
+
+    private static class CountingTokenEvaluator extends TokenEvaluator {
+        private final AtomicInteger evaluations = new AtomicInteger();
+
+        CountingTokenEvaluator() {
+            super(FhirContext.forR4());
+        }
+
+        @Override
+        public boolean evaluate(List<Base> bases, List<String> ands, List<String> ors, String modifier) throws Exception {
+            evaluations.incrementAndGet();
+            return super.evaluate(bases, ands, ors, modifier);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.fhirproof;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class SnapshotTests {
+
+    @Test
+    public void snapshot_unaffected_by_later_writes() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String updated = store.create(new Patient().setGender(Enumerations.AdministrativeGender.FEMALE));
+        String deleted = store.create(new Patient().setGender(Enumerations.AdministrativeGender.MALE));
+
+        try (Snapshot snapshot = ((ResourceTypeMap) store.store()).snapshot()) {
+            store.update("Patient", updated, new Patient().setGender(Enumerations.AdministrativeGender.OTHER));
+            store.delete("Patient", deleted);
+            String created = store.create(new Patient());
+
+            Assert.assertEquals(Enumerations.AdministrativeGender.FEMALE, ((Patient) snapshot.get("Patient", updated)).getGender());
+            Assert.assertNotNull(snapshot.get("Patient", deleted));
+            Assert.assertNull(snapshot.get("Patient", created));
+            Assert.assertEquals(new HashSet<>(Arrays.asList(updated, deleted)), new HashSet<>(snapshot.getIds("Patient")));
+            Assert.assertEquals(new HashSet<>(Arrays.asList(updated, deleted, created)), snapshot.getChanged("Patient"));
+        }
+        Assert.assertEquals(Enumerations.AdministrativeGender.OTHER, store.<Patient>read("Patient", updated).getGender());
+    }
+
+    @Test
+    public void snapshot_counts_resources_as_of_snapshot() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String updated = store.create(new Patient());
+        String deleted = store.create(new Patient());
+        store.create(new Patient());
+
+        try (Snapshot snapshot = ((ResourceTypeMap) store.store()).snapshot()) {
+            store.update("Patient", updated, new Patient().setGender(Enumerations.AdministrativeGender.OTHER));
+            store.delete("Patient", deleted);
+            store.create(new Patient());
+            store.create(new Patient());
+
+            Assert.assertEquals(3, snapshot.count("Patient"));
+            Assert.assertEquals(snapshot.getIds("Patient").size(), snapshot.count("Patient"));
+            Assert.assertEquals(0, snapshot.count("Encounter"));
+        }
+        Assert.assertEquals(4, store.search("Patient", "_summary=count").getTotal());
+    }
+
+    @Test
+    public void versions_reclaimed_once_snapshots_close() throws Exception {
+        FhirProofStore store = new FhirProofStore();
+        String updated = store.create(new Patient());
+        String deleted = store.create(new Patient());
+        Assert.assertEquals(1, versionCount(store, "Patient", updated));
+
+        Snapshot snapshot = ((ResourceTypeMap) store.store()).snapshot();
+        for (int i = 0; i < 3; i++) {
+            store.update("Patient", updated, new Patient());
+        }
+        store.delete("Patient", deleted);
+        // the version the snapshot reads is kept along with every version after it
+        Assert.assertEquals(4, versionCount(store, "Patient", updated));
+        Assert.assertEquals(2, versionCount(store, "Patient", deleted));
+
+        snapshot.close();
+        Assert.assertEquals(1, versionCount(store, "Patient", updated));
+        Assert.assertEquals(0, versionCount(store, "Patient", deleted));
+    }
+
+    @Test
+    public void search_sees_store_as_of_its_start() throws Exception {
+        for (boolean indexing : new boolean[] { false, true }) {
+            FhirProofStore store = new FhirProofStore();
+            store.setIndexing(indexing);
+            String[] patients = new String[3];
+            String[] encounters = new String[3];
+            for (int i = 0; i < patients.length; i++) {
+                patients[i] = store.create(new Patient()
+                        .setGender(Enumerations.AdministrativeGender.FEMALE)
+                        .setBirthDateElement(new DateType("1970-01-0" + (i + 1))));
+                encounters[i] = store.create(new Encounter().setSubject(new Reference("Patient/" + patients[i])));
+            }
+            String query = "gender=female&birthdate=ge1900&_revinclude=Encounter:subject";
+            HashSet<String> expected = new HashSet<>(Arrays.asList(patients));
+            expected.addAll(Arrays.asList(encounters));
+
+            // hold the search up part way through, after it looked up the genders but before the birth dates
+            PausingDateEvaluator evaluator = new PausingDateEvaluator();
+            store.addEvaluator(evaluator);
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            Future<Bundle> search = pool.submit(() -> store.search("Patient", query));
+            Assert.assertTrue(evaluator.paused.await(1, TimeUnit.MINUTES));
+
+            // none of these wait for the search to finish
+            Patient changed = store.read("Patient", patients[0]);
+            store.update("Patient", patients[0], changed.setGender(Enumerations.AdministrativeGender.MALE));
+            store.delete("Encounter", encounters[1]);
+            store.create(new Encounter().setSubject(new Reference("Patient/" + patients[2])));
+            store.create(new Patient().setGender(Enumerations.AdministrativeGender.FEMALE).setBirthDateElement(new DateType("1980")));
+            evaluator.resume.countDown();
+
+            Bundle bundle = search.get(1, TimeUnit.MINUTES);
+            pool.shutdown();
+            Assert.assertEquals(expected, SearchIndexTests.ids(bundle));
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.getResource() instanceof Patient) {
+                    Assert.assertEquals(Enumerations.AdministrativeGender.FEMALE, ((Patient) entry.getResource()).getGender());
+                }
+            }
+            Assert.assertNotEquals(expected, SearchIndexTests.ids(store.search("Patient", query)));
+        }
+    }
+
+    private static int versionCount(FhirProofStore store, String resource, String id) {
+        int count = 0;
+        ResourceMap resources = (ResourceMap) store.store().get(resource);
+        for (ResourceMap.Version version = resources.getVersion(id); version != null; version = version.previous) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Date evaluator that holds up the first evaluation until it is told to resume.
+     */
+    private static class PausingDateEvaluator extends DateEvaluator {
+        private final CountDownLatch paused = new CountDownLatch(1);
+        private final CountDownLatch resume = new CountDownLatch(1);
+
+        PausingDateEvaluator() {
+            super(FhirContext.forR4());
+        }
+
+        @Override
+        public boolean evaluate(List<Base> bases, List<String> ands, List<String> ors, String modifier) throws Exception {
+            if (paused.getCount() > 0) {
+                paused.countDown();
+                resume.await();
+            }
+            return super.evaluate(bases, ands, ors, modifier);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.fhirproof.benchmarks;
+
+import com.fhirproof.FhirProofStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading a 10k entry batch of patients and encounters into an empty store, with the batch entries
+ * running on pools of different sizes. A parallelism of 1 is the sequential baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    private static final int ENTRIES = 10000;
+
+    @Param({ "1", "4", "8" })
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private Bundle batch;
+    private FhirProofStore store;
+
+    @Setup
+    public void setUp() {
+        pool = new ForkJoinPool(parallelism);
+        batch = new Bundle().setType(Bundle.BundleType.BATCH);
+        for (int i = 0; i < ENTRIES; i++) {
+            Bundle.BundleEntryRequestComponent request = new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.POST);
+            if (i % 2 == 0) {
+                batch.addEntry().setRequest(request).setResource(new Patient()
+                        .addName(new HumanName().setFamily("Family" + i).addGiven("Given" + i))
+                        .addIdentifier(new Identifier().setSystem("urn:mrn").setValue(String.valueOf(i))));
+            } else {
+                batch.addEntry().setRequest(request).setResource(new Encounter()
+                        .setSubject(new Reference("Patient/" + (i - 1))));
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpStore() throws Exception {
+        store = new FhirProofStore();
+        store.setIndexing(true);
+        store.setForkJoinPool(pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Bundle loadBatch() throws Exception {
+        return store.executeTransaction(batch);
+    }
+}
@@ -0,0 +1,96 @@
+package com.fhirproof.benchmarks;
+
+import com.fhirproof.FhirProofStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a single store shared between threads. Compare the single and all-thread variants
+ * of each read to see how reads scale across cores, and the mixed group to see reads running alongside writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentStoreBenchmark {
+
+    private static final int PATIENTS = 10000;
+
+    private FhirProofStore store;
+    private List<String> ids;
+
+    @Setup
+    public void setUp() throws Exception {
+        store = new FhirProofStore();
+        store.setIndexing(true);
+        ids = new ArrayList<>();
+        for (int i = 0; i < PATIENTS; i++) {
+            ids.add(store.create(patient(i)));
+        }
+    }
+
+    private static Patient patient(int i) {
+        return new Patient()
+                .setGender(i % 2 == 0 ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE)
+                .addName(new HumanName().setFamily("Family" + i).addGiven("Given" + i))
+                .addIdentifier(new Identifier().setSystem("urn:mrn").setValue(String.valueOf(i)));
+    }
+
+    private String randomId() {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    private Bundle randomSearch() throws Exception {
+        return store.search("Patient", "identifier=urn:mrn|" + ThreadLocalRandom.current().nextInt(PATIENTS));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Patient readSingleThread() throws Exception {
+        return store.read("Patient", randomId());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Patient readAllThreads() throws Exception {
+        return store.read("Patient", randomId());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Bundle searchSingleThread() throws Exception {
+        return randomSearch();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Bundle searchAllThreads() throws Exception {
+        return randomSearch();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Bundle mixedSearch() throws Exception {
+        return randomSearch();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedUpdate() throws Exception {
+        int i = ThreadLocalRandom.current().nextInt(PATIENTS);
+        store.update("Patient", ids.get(i), patient(i));
+    }
+}
@@ -0,0 +1,129 @@
+package com.fhirproof.benchmarks;
+
+import com.fhirproof.FhirProofStore;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what keeping the versions replaced by updates costs: the time of an update, which encodes the version
+ * it replaces, the time of reading back earlier versions, and, with {@link #millionUpdates}, the heap the history
+ * of a million updates takes up, reported in the <tt>retainedBytes</tt> and <tt>bytesPerUpdate</tt> counters.
+ *
+ * The heap per update has not been measured yet. The figure of roughly 130-170 bytes given for the history is an
+ * estimate from deflating typical Patient JSON alone, which {@link #millionUpdates} is there to confirm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+    private static final int PATIENTS = 10000;
+    private static final int VERSIONS = 20;
+    private static final int UPDATES = 1000000;
+
+    private FhirProofStore store;
+    private List<String> ids;
+
+    @Setup
+    public void setUp() throws Exception {
+        store = new FhirProofStore();
+        ids = createPatients(store);
+        for (int version = 2; version <= VERSIONS; version++) {
+            for (String id : ids) {
+                store.update("Patient", id, patient(version));
+            }
+        }
+    }
+
+    private static List<String> createPatients(FhirProofStore store) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < PATIENTS; i++) {
+            ids.add(store.create(patient(1)));
+        }
+        return ids;
+    }
+
+    private static Patient patient(int version) {
+        Patient patient = new Patient()
+                .setGender(Enumerations.AdministrativeGender.FEMALE)
+                .setActive(version % 2 == 0)
+                .addIdentifier(new Identifier().setSystem("urn:mrn").setValue("1234567"))
+                .addName(new HumanName().setFamily("Doe").addGiven("Jane").addGiven("Quinn"))
+                .addTelecom(new ContactPoint().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("555-01" + version % 100))
+                .addAddress(new Address().addLine("534 Erewhon St").setCity("PleasantVille").setPostalCode("3999"));
+        patient.setText(new Narrative().setStatus(Narrative.NarrativeStatus.GENERATED)
+                .setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\">Jane Quinn Doe, version " + version + "</div>"));
+        return patient;
+    }
+
+    private String randomId() {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    @Benchmark
+    public void update() throws Exception {
+        store.update("Patient", randomId(), patient(ThreadLocalRandom.current().nextInt(VERSIONS)));
+    }
+
+    @Benchmark
+    public Patient vread() throws Exception {
+        return store.vread("Patient", randomId(), String.valueOf(1 + ThreadLocalRandom.current().nextInt(VERSIONS - 1)));
+    }
+
+    @Benchmark
+    public Bundle instanceHistory() throws Exception {
+        return store.history("Patient", randomId(), "_count=10");
+    }
+
+    /**
+     * The heap retained by the history of the updates of {@link #millionUpdates}.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Retained {
+        public long retainedBytes;
+        public long bytesPerUpdate;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public void millionUpdates(Retained retained) throws Exception {
+        FhirProofStore updated = new FhirProofStore();
+        List<String> patients = createPatients(updated);
+        long before = usedHeap();
+        for (int i = 0; i < UPDATES; i++) {
+            updated.update("Patient", patients.get(i % PATIENTS), patient(2 + i / PATIENTS));
+        }
+        retained.retainedBytes = usedHeap() - before;
+        retained.bytesPerUpdate = retained.retainedBytes / UPDATES;
+        // keep the store reachable until the heap has been measured
+        updated.vread("Patient", patients.get(0), "1");
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,67 @@
+package com.fhirproof.benchmarks;
+
+import com.fhirproof.FhirProofStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures searches returning large result sets, with and without reverse includes, so the time spent assembling
+ * the Bundle stays in line with the number of entries in it, and with reads shared rather than copied. Counting
+ * the same matches with _summary=count shows the cost of the search without the Bundle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LargeResultBenchmark {
+
+    @Param({ "5000", "20000" })
+    public int patients;
+
+    @Param({ "false", "true" })
+    public boolean indexing;
+
+    @Param({ "false", "true" })
+    public boolean sharedReads;
+
+    private FhirProofStore store;
+
+    @Setup
+    public void setUp() throws Exception {
+        store = new FhirProofStore();
+        store.setIndexing(indexing);
+        store.setSharedReads(sharedReads);
+        for (int i = 0; i < patients; i++) {
+            String id = store.create(new Patient().setGender(Enumerations.AdministrativeGender.FEMALE));
+            store.create(new Encounter().setSubject(new Reference("Patient/" + id)));
+        }
+    }
+
+    @Benchmark
+    public Bundle search() throws Exception {
+        return store.search("Patient", "gender=female");
+    }
+
+    @Benchmark
+    public Bundle searchWithRevInclude() throws Exception {
+        return store.search("Patient", "gender=female&_revinclude=Encounter:subject");
+    }
+
+    @Benchmark
+    public Bundle countSummary() throws Exception {
+        return store.search("Patient", "gender=female&_summary=count");
+    }
+
+    @Benchmark
+    public Bundle elementsSearch() throws Exception {
+        return store.search("Patient", "gender=female&_elements=gender");
+    }
+}
@@ -0,0 +1,58 @@
+package com.fhirproof.benchmarks;
+
+import com.fhirproof.FhirProofStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an unindexed Observation search that has to evaluate every resource of the type, with the scan running
+ * on pools of different sizes. A parallelism of 1 is the serial baseline, and the search should scale close to
+ * linearly with the parallelism up to the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelScanBenchmark {
+
+    @Param({ "100000", "1000000" })
+    public int rows;
+
+    @Param({ "1", "4", "16" })
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private FhirProofStore store;
+
+    @Setup
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(parallelism);
+        store = new FhirProofStore();
+        store.setForkJoinPool(pool);
+        store.setParallelScanThreshold(parallelism == 1 ? Integer.MAX_VALUE : 1);
+        for (int i = 0; i < rows; i++) {
+            store.create(new Observation()
+                    .setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", i % 2 == 0 ? "15074-8" : "8867-4", null)))
+                    .setEffective(new DateTimeType(String.format("%d-%02d-01", 1950 + i % 70, 1 + i % 12))));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Bundle unindexedSearch() throws Exception {
+        return store.search("Observation", "code=http://loinc.org|15074-8&date=ge2000");
+    }
+}
@@ -0,0 +1,69 @@
+package com.fhirproof.benchmarks;
+
+import ca.uhn.fhir.model.api.annotation.SearchParamDefinition;
+import com.fhirproof.FhirProofStore;
+import com.fhirproof.ResourceTypeRegistry;
+import com.fhirproof.SearchParameter;
+import org.apache.commons.lang3.ClassUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares resolving a search parameter through the shared {@link ResourceTypeRegistry} against the per-call
+ * reflection the store used to perform, along with the cost of a short search that includes the lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchParameterBenchmark {
+
+    private FhirProofStore store;
+
+    @Setup
+    public void setUp() throws Exception {
+        store = new FhirProofStore();
+        for (int i = 0; i < 10; i++) {
+            store.create(new Patient().addIdentifier(new Identifier().setSystem("urn:mrn").setValue(String.valueOf(i))));
+        }
+    }
+
+    @Benchmark
+    public SearchParamDefinition reflectiveLookup() throws Exception {
+        Class<?> clazz = Class.forName("org.hl7.fhir.r4.model.Patient");
+        List<SearchParamDefinition> paramDefs =
+                Arrays.stream(clazz.getDeclaredFields())
+                        .map(f -> f.getDeclaredAnnotation(SearchParamDefinition.class))
+                        .filter(a -> a != null)
+                        .collect(Collectors.toList());
+        for (Class<?> i : ClassUtils.getAllInterfaces(clazz)) {
+            for (Field f : i.getDeclaredFields()) {
+                SearchParamDefinition def = f.getDeclaredAnnotation(SearchParamDefinition.class);
+                if (def != null) {
+                    paramDefs.add(def);
+                }
+            }
+        }
+        return paramDefs.stream().filter(pd -> pd.name().equals("identifier")).findFirst().get();
+    }
+
+    @Benchmark
+    public SearchParameter registryLookup() throws Exception {
+        return ResourceTypeRegistry.getDefinition("Patient").getParameter("identifier");
+    }
+
+    @Benchmark
+    public Bundle shortSearch() throws Exception {
+        return store.search("Patient", "identifier=urn:mrn|5");
+    }
+}
@@ -0,0 +1,58 @@
+package com.fhirproof.benchmarks;
+
+import com.fhirproof.FhirProofStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sorted searches, so reading the first page of a sort over many matches costs a pass over their sort
+ * values rather than a full sort of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int observations;
+
+    @Param({ "false", "true" })
+    public boolean indexing;
+
+    private FhirProofStore store;
+
+    @Setup
+    public void setUp() throws Exception {
+        store = new FhirProofStore();
+        store.setIndexing(indexing);
+        store.setSharedReads(true);
+        Random random = new Random(7);
+        long start = new DateTimeType("2000-01-01T00:00:00Z").getValue().getTime();
+        for (int i = 0; i < observations; i++) {
+            store.create(new Observation()
+                    .setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "15074-8", null)))
+                    .setEffective(new DateTimeType(new Date(start + (long) random.nextInt(Integer.MAX_VALUE) * 1000))));
+        }
+    }
+
+    @Benchmark
+    public Bundle latestTen() throws Exception {
+        return store.search("Observation", "code=15074-8&_sort=-date&_count=10");
+    }
+
+    @Benchmark
+    public Bundle sortAll() throws Exception {
+        return store.search("Observation", "code=15074-8&_sort=-date");
+    }
+}